@@ -4,6 +4,7 @@ import android.app.Activity;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
@@ -27,7 +28,12 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Get preview and picture images.
@@ -46,6 +52,7 @@ public final class CameraLib implements
         Camera.PictureCallback,
         Camera.AutoFocusCallback,
         View.OnTouchListener,
+        FrameSource.FrameCallback,
         Callback {
     private final static String TAG = CameraLib.class.getSimpleName();
 
@@ -54,11 +61,21 @@ public final class CameraLib implements
     private final static int WHAT_CALLBACK_PREVIEW = 2;
     private final static int WHAT_PROCESS_PICTURE = 3;
     private final static int WHAT_CALLBACK_PICTURE = 4;
+    private final static int WHAT_CONSUME_LATEST = 5;
 
     private final static int NUM_PREVIEW_BUFFERS = 3;
 
+    // One slot held by the latest frame consumer, one waiting in the mailbox.
+    private final static int NUM_LATEST_FRAME_BUFFERS = 2;
+
     private final static int TARGET_PICTURE_AREA = 1166400;
 
+    // Rotated pictures are decoded in strips of about this size.
+    private final static int PICTURE_STRIP_BYTES = 1024 * 1024;
+
+    // Default decoded picture budget, as a fraction of the heap.
+    private final static int PICTURE_BUDGET_HEAP_DIVISOR = 8;
+
     // ------------------------------------------------------------------------
 
     @SuppressWarnings({"EmptyMethod", "UnusedParameters"})
@@ -76,11 +93,55 @@ public final class CameraLib implements
         /**
          * Handle a camera picture.  Pictures are much larger than previews.
          *
-         * @param pBitmap (Bitmap) Picture image.
+         * @param pBitmap (Bitmap) Picture image, null if it could not be decoded.
          */
         void onPicture(Bitmap pBitmap);
     }
 
+    /**
+     * Optional listener for the raw preview data, for consumers that sample
+     * the camera format directly instead of using the converted bitmap.
+     */
+    @SuppressWarnings("UnusedParameters")
+    public interface CameraLibPreviewDataListener {
+
+        /**
+         * Handle raw camera preview data.  Called on the callback thread
+         * after CameraLibListener.onPreview.  The buffer is returned to the
+         * camera as soon as this returns, so do not keep a reference to it.
+         *
+         * The data is not rotated, see getPreviewMatrix.
+         *
+         * @param pData (byte[]) NV21 preview data.
+         * @param pWidth (int) Preview width.
+         * @param pHeight (int) Preview height.
+         * @param pTimestampMsecs (long) Milliseconds since start.
+         */
+        void onPreviewData(byte[] pData, int pWidth, int pHeight, long pTimestampMsecs);
+    }
+
+    /**
+     * Optional slow consumer that only ever wants the newest preview frame,
+     * such as a classifier.  Runs on its own thread.  Frames that arrive
+     * while it is busy replace each other in a one-frame mailbox, replaced
+     * frames go straight back to the camera.
+     */
+    @SuppressWarnings("UnusedParameters")
+    public interface CameraLibLatestFrameListener {
+
+        /**
+         * Handle the newest converted preview frame.  The bitmap and data
+         * stay valid until this returns, then they are recycled.
+         *
+         * @param pBitmap (Bitmap) Preview image.
+         * @param pData (byte[]) NV21 preview data, not rotated.
+         * @param pWidth (int) Preview data width.
+         * @param pHeight (int) Preview data height.
+         * @param pTimestampMsecs (long) Milliseconds since start.
+         */
+        void onLatestPreview(Bitmap pBitmap, byte[] pData, int pWidth, int pHeight, long pTimestampMsecs);
+    }
+
     // ------------------------------------------------------------------------
 
     @SuppressWarnings("WeakerAccess")
@@ -103,6 +164,196 @@ public final class CameraLib implements
 
     // ------------------------------------------------------------------------
 
+    /**
+     * One preview buffer and its converted bitmap.  Ownership moves between
+     * the camera, processing and callback threads by compare-and-set on the
+     * state, so the preview path never takes the CameraLib monitor.
+     *
+     * FREE -> QUEUED_TO_CAMERA -> CONVERTING -> DELIVERED -> QUEUED_TO_CAMERA ...
+     *
+     * DELIVERED covers the listener callbacks and the latest frame mailbox.
+     *
+     * Slots are discarded (set FREE) by stop, which makes any in-flight
+     * transition fail so stale messages are ignored.
+     */
+    private final static class PreviewSlot {
+        private final static int FREE = 0;
+        private final static int QUEUED_TO_CAMERA = 1;
+        private final static int CONVERTING = 2;
+        private final static int DELIVERED = 3;
+
+        private final int mIndex;
+        private final byte[] mData;
+        private final int mWidth;
+        private final int mHeight;
+        private final Bitmap mBitmap;
+        private final PreviewReorderBuffer mReorder;
+        private final AtomicInteger mState = new AtomicInteger(FREE);
+        private volatile long mTimestamp = 0L;
+        private volatile long mArrivalMsecs = 0L;
+        private volatile long mSequence = 0L;
+        private volatile boolean mConverted = false;
+
+        private PreviewSlot(int pIndex, byte[] pData, int pWidth, int pHeight, Bitmap pBitmap, PreviewReorderBuffer pReorder) {
+            mIndex = pIndex;
+            mData = pData;
+            mWidth = pWidth;
+            mHeight = pHeight;
+            mBitmap = pBitmap;
+            mReorder = pReorder;
+        }
+
+        private boolean transition(int pFrom, int pTo) {
+            return mState.compareAndSet(pFrom, pTo);
+        }
+    }
+
+    /**
+     * Puts frames converted by several workers back in camera order before
+     * the listener callbacks.  One per set of preview slots.  Sequence
+     * numbers are assigned on the camera thread, everything else is only
+     * touched on the callback thread.
+     *
+     * At most one frame per slot is in flight, so a ring indexed by
+     * sequence modulo the slot count never collides.
+     */
+    private final static class PreviewReorderBuffer {
+        private final PreviewSlot[] mPending;
+        private long mNextAssigned = 0L;
+        private long mNextDelivered = 0L;
+
+        private PreviewReorderBuffer(int pNumSlots) {
+            mPending = new PreviewSlot[pNumSlots];
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Per-thread preview conversion state.  Each worker has its own pixel
+     * buffer (plus scratch bitmap, canvas and transform for the JPEG
+     * fallback) so several frames can be converted at the same time.
+     */
+    private final class ConversionWorker {
+        private final int mIndex;
+        private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+        private final Matrix mPreviewMatrix = new Matrix();
+        private final Canvas mCanvas = new Canvas();
+        private final Paint mPaint = new Paint();
+        private int mPreviewRotation = 0;
+        private boolean mPreviewFlipVertical = false;
+
+        private HandlerThread mThread;
+        private volatile Handler mHandler;
+
+        private volatile Bitmap mTempBitmap;
+        private volatile int[] mPreviewPixels;
+        private int mPreviewJpegBufferSize = 0;
+        private ByteArrayOutputStream mPreviewJpegOutputStream;
+
+        private ConversionWorker(int pIndex) {
+            mIndex = pIndex;
+            mOptions.inPreferredConfig = mBitmapOptions.inPreferredConfig;
+            mOptions.inMutable = true;
+            mOptions.inTempStorage = new byte[1024 * 32];  // docs suggest 16 KB
+        }
+
+        private void start() {
+            mThread = new HandlerThread(TAG + ".convert" + mIndex);
+            mThread.setPriority(Thread.MIN_PRIORITY);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper(), CameraLib.this);
+        }
+
+        private void stop() {
+            if (mHandler != null) {
+                mHandler.removeMessages(WHAT_PROCESS_PREVIEW);
+                mThread.quitSafely();
+                mHandler = null;
+                mThread = null;
+            }
+        }
+
+        private void allocate(int pWidth, int pHeight) {
+            mPreviewMatrix.set(mMatrix);
+            mPreviewRotation = mRotation;
+            mPreviewFlipVertical = mFlipVertical;
+            if (mUseJpegConversion) {
+                mTempBitmap = Bitmap.createBitmap(pWidth, pHeight, mOptions.inPreferredConfig);
+            } else {
+                mPreviewPixels = new int[pWidth * pHeight];
+            }
+        }
+
+        private void release() {
+            mTempBitmap = null;
+            mPreviewPixels = null;
+        }
+
+        /**
+         * Convert NV21 directly to rotated ARGB pixels, then copy into the preview bitmap.
+         */
+        private void convertPreview(byte[] pData, Bitmap pPreviewBitmap) {
+            // Scratch may be released by stop while this runs, the frame is discarded anyway.
+            final int[] pixels = mPreviewPixels;
+            if (pixels == null) {
+                return;
+            }
+
+            YuvConverter.nv21ToArgb(pData, mPreviewRect.width(), mPreviewRect.height(),
+                    mPreviewRotation, mPreviewFlipVertical, pixels);
+
+            final int w = pPreviewBitmap.getWidth();
+            final int h = pPreviewBitmap.getHeight();
+            pPreviewBitmap.setPixels(pixels, 0, w, 0, 0, w, h);
+        }
+
+        /**
+         * Fallback conversion: compress NV21 to JPEG, decode, then rotate into the preview bitmap.
+         */
+        private void convertPreviewWithJpeg(byte[] pData, Bitmap pPreviewBitmap) {
+            final Bitmap tempBitmap = mTempBitmap;
+            if (tempBitmap == null) {
+                return;
+            }
+
+            // Convert raw YUV to JPEG.
+            {
+                // Load into a YuvImage (from NV21 camera format).
+                final YuvImage yuvImage = new YuvImage(pData, ImageFormat.NV21, mPreviewRect.width(), mPreviewRect.height(), null);
+
+                final int w = yuvImage.getWidth();
+                final int h = yuvImage.getHeight();
+                final int jpegBufferSize = (int) (w * h * 8.25) + 1024;  // 8.25 bytes per pixel, plus 1K slop
+                if (mPreviewJpegOutputStream == null || mPreviewJpegBufferSize < jpegBufferSize) {
+                    Log.d(TAG, "convertPreviewWithJpeg: resizing buffer to " + jpegBufferSize + " bytes");
+                    mPreviewJpegBufferSize = jpegBufferSize;
+                    mPreviewJpegOutputStream = null;  // release before attempting to reallocate at new size
+                    mPreviewJpegOutputStream = new ByteArrayOutputStream(jpegBufferSize);
+                }
+                mPreviewJpegOutputStream.reset();
+                yuvImage.compressToJpeg(mPreviewRect, 90, mPreviewJpegOutputStream);
+            }
+            final byte[] jpeg = mPreviewJpegOutputStream.toByteArray();
+
+            // Convert JPEG to bitmap.
+            mOptions.inBitmap = tempBitmap;  // attempt to load into pre-allocated bitmap
+            Bitmap decodedBitmap;
+            try {
+                decodedBitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, mOptions);
+            } catch (IllegalArgumentException e) {
+                mOptions.inBitmap = null;
+                decodedBitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, mOptions);
+            }
+
+            // Copy into the pre-allocated bitmaps ring.
+            mCanvas.setBitmap(pPreviewBitmap);
+            mCanvas.drawBitmap(decodedBitmap, mPreviewMatrix, mPaint);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
     /**
      * Create a CameraLib.
      */
@@ -110,7 +361,16 @@ public final class CameraLib implements
         private final Activity mActivity;
         private final BitmapFactory.Options mBitmapOptions = new BitmapFactory.Options();
         private CameraLibListener mListener;
+        private CameraLibPreviewDataListener mPreviewDataListener = null;
+        private CameraLibLatestFrameListener mLatestFrameListener = null;
         private View mPreviewView = null;
+        private boolean mUseJpegConversion = false;
+        private int mNumConversionWorkers = 1;
+        private FrameSource mFrameSource = null;
+        private final List<int[]> mPreviewTargets = new ArrayList<>();
+        private int mPictureTargetWidth = 0;
+        private int mPictureTargetHeight = 0;
+        private long mPictureMemoryBudget = Runtime.getRuntime().maxMemory() / PICTURE_BUDGET_HEAP_DIVISOR;
 
         public Builder(Activity pActivity) {
             mActivity = pActivity;
@@ -129,6 +389,100 @@ public final class CameraLib implements
             return this;
         }
 
+        /**
+         * Convert previews by compressing to JPEG and decoding, instead of
+         * the direct YUV to ARGB conversion.  Much slower, only useful as a
+         * fallback if the direct conversion misbehaves on some device.
+         *
+         * @param pUseJpegConversion (boolean) True to use the JPEG round trip.
+         * @return (Builder) Self, for chaining.
+         */
+        @SuppressWarnings("unused")
+        public Builder setUseJpegConversion(boolean pUseJpegConversion) {
+            mUseJpegConversion = pUseJpegConversion;
+            return this;
+        }
+
+        /**
+         * Number of threads converting preview frames in parallel.  Frames
+         * are still delivered to the listeners in camera order.  Each
+         * worker costs a preview sized scratch bitmap and pixel buffer.
+         *
+         * @param pNumConversionWorkers (int) Worker count, at least 1.
+         * @return (Builder) Self, for chaining.
+         */
+        @SuppressWarnings("unused")
+        public Builder setNumConversionWorkers(int pNumConversionWorkers) {
+            if (pNumConversionWorkers < 1) {
+                throw new IllegalArgumentException("workers " + pNumConversionWorkers);
+            }
+            mNumConversionWorkers = pNumConversionWorkers;
+            return this;
+        }
+
+        /**
+         * Ask for the smallest preview that still covers this size, in
+         * either orientation, such as a classifier's input size.  May be
+         * added several times, the preview covers all targets.  Without a
+         * target the preview is about a quarter of the screen.
+         *
+         * @param pWidth (int) Minimum width.
+         * @param pHeight (int) Minimum height.
+         * @return (Builder) Self, for chaining.
+         */
+        public Builder addPreviewTarget(int pWidth, int pHeight) {
+            if (pWidth <= 0 || pHeight <= 0) {
+                throw new IllegalArgumentException("target " + pWidth + "x" + pHeight);
+            }
+            mPreviewTargets.add(new int[] {pWidth, pHeight});
+            return this;
+        }
+
+        /**
+         * Smallest useful picture, in either orientation.  Pictures are
+         * decoded at the largest power of two reduction that still covers
+         * it.  Default is full resolution (within the memory budget).
+         *
+         * @param pWidth (int) Minimum width.
+         * @param pHeight (int) Minimum height.
+         * @return (Builder) Self, for chaining.
+         */
+        @SuppressWarnings("unused")
+        public Builder setPictureTarget(int pWidth, int pHeight) {
+            mPictureTargetWidth = pWidth;
+            mPictureTargetHeight = pHeight;
+            return this;
+        }
+
+        /**
+         * Maximum size of a decoded picture bitmap.  Default is an eighth of the heap.
+         *
+         * @param pBytes (long) Budget in bytes.
+         * @return (Builder) Self, for chaining.
+         */
+        @SuppressWarnings("unused")
+        public Builder setPictureMemoryBudget(long pBytes) {
+            if (pBytes <= 0) {
+                throw new IllegalArgumentException("budget " + pBytes);
+            }
+            mPictureMemoryBudget = pBytes;
+            return this;
+        }
+
+        /**
+         * Take preview frames from a source other than the camera, such as
+         * a ReplayFrameSource for benchmarks and regression tests.  Frames
+         * are not rotated and pictures are not available.
+         *
+         * @param pFrameSource (FrameSource) Frame source, null for the camera.
+         * @return (Builder) Self, for chaining.
+         */
+        @SuppressWarnings("unused")
+        public Builder setFrameSource(FrameSource pFrameSource) {
+            mFrameSource = pFrameSource;
+            return this;
+        }
+
         /**
          * Attach the listener.
          *
@@ -140,6 +494,28 @@ public final class CameraLib implements
             return this;
         }
 
+        /**
+         * Attach the raw preview data listener.
+         *
+         * @param pListener (CameraLibPreviewDataListener) Listener.
+         * @return (Builder) Self, for chaining.
+         */
+        public Builder setPreviewDataListener(CameraLibPreviewDataListener pListener) {
+            mPreviewDataListener = pListener;
+            return this;
+        }
+
+        /**
+         * Attach a consumer that only receives the newest preview frame.
+         *
+         * @param pListener (CameraLibLatestFrameListener) Listener.
+         * @return (Builder) Self, for chaining.
+         */
+        public Builder setLatestFrameListener(CameraLibLatestFrameListener pListener) {
+            mLatestFrameListener = pListener;
+            return this;
+        }
+
         /**
          * Sets the onTouch listener on this view to auto-focus the preview.
          *
@@ -167,41 +543,61 @@ public final class CameraLib implements
     private final Activity mActivity;
     private final BitmapFactory.Options mBitmapOptions;
     private final CameraLibListener mListener;
+    private final CameraLibPreviewDataListener mPreviewDataListener;
+    private final CameraLibLatestFrameListener mLatestFrameListener;
+    private final int mNumPreviewBuffers;
+    private final boolean mUseJpegConversion;
+    private final ConversionWorker[] mConversionWorkers;
+    private final FrameSource mFrameSource;
+    private final PreviewSizeChooser mPreviewSizeChooser;
+    private final int mPictureTargetWidth;
+    private final int mPictureTargetHeight;
+    private final long mPictureMemoryBudget;
 
     private final Rect mPreviewRect = new Rect();
     private final Rect mPictureRect = new Rect();
 
-    // Do preview processing and listener callbacks on separate threads (multi-core CPU).
+    // Do preview conversion, picture processing and listener callbacks on separate threads (multi-core CPU).
     private HandlerThread mProcessingThread;
     private HandlerThread mCallbackThread;
-    private Handler mProcessingHandler;
-    private Handler mCallbackHandler;
+    private HandlerThread mLatestFrameThread;
+    private volatile Handler mProcessingHandler;
+    private volatile Handler mCallbackHandler;
+    private volatile Handler mLatestFrameHandler;
+
+    // Latest frame mailbox, holds at most one DELIVERED slot.
+    private final AtomicReference<PreviewSlot> mLatestFrameMailbox = new AtomicReference<>();
+    private final AtomicLong mLatestFramesDelivered = new AtomicLong();
+    private final AtomicLong mLatestFramesSuperseded = new AtomicLong();
+    // Written by whichever conversion worker finished last.
+    private volatile long mLastConversionMsecs = 0L;
+    // Uptime the frame now in onLatestPreview arrived, only used on the latest frame thread.
+    private long mLatestFrameArrivalMsecs = 0L;
 
     private final SurfaceTexture mSurfaceTexture;
 
     private int mCameraId;
-    private Camera mCamera = null;
+    private volatile Camera mCamera = null;
     private Camera.Parameters mCameraParameters = null;
     private boolean mCameraCanAutoFocus = false;
+    // Set when an autoFocus sweep starts, cleared by onAutoFocus.  Frames
+    // taken meanwhile are usually out of focus.
+    private volatile boolean mFocusing = false;
     private boolean mCameraCanZoom = false;
     private int mCameraMaxZoom = 0;
 
-    private final List<byte[]> mPreviewBuffers = new ArrayList<>();
-    private final List<Bitmap> mPreviewBitmaps = new ArrayList<>();
-    private final List<Long> mPreviewTimestamps = new ArrayList<>();
-    private Bitmap mTempBitmap;
-
-    private int mPreviewJpegBufferSize = 0;
-    private ByteArrayOutputStream mPreviewJpegOutputStream;
-
+    // Replaced (never modified) when buffers are reallocated, so readers need no lock.
+    private volatile PreviewSlot[] mPreviewSlots = null;
+    private volatile Map<byte[], PreviewSlot> mPreviewSlotsByData = null;
+    // Preview transform, both as a Matrix and as the equivalent rotation / flip for YuvConverter.
     private final Matrix mMatrix = new Matrix();
-    private final Canvas mCanvas = new Canvas();
-    private final Paint mPaint = new Paint();
+    private int mRotation = 0;
+    private boolean mFlipVertical = false;
 
-    private long mStartTimestamp = 0L;
+    private volatile long mStartTimestamp = 0L;
     private float mTouchDistance = 0f;
 
-    private boolean mSuppressPreview = true;
+    private volatile boolean mSuppressPreview = true;
 
     private boolean mSafeToTakePicture = false;
 
@@ -209,10 +605,33 @@ public final class CameraLib implements
         mActivity = pBuilder.mActivity;
         mBitmapOptions = pBuilder.mBitmapOptions;
         mListener = pBuilder.mListener;
+        mPreviewDataListener = pBuilder.mPreviewDataListener;
+        mLatestFrameListener = pBuilder.mLatestFrameListener;
+        // One buffer in flight per extra worker.
+        mNumPreviewBuffers = NUM_PREVIEW_BUFFERS
+                + (pBuilder.mNumConversionWorkers - 1)
+                + (mLatestFrameListener != null ? NUM_LATEST_FRAME_BUFFERS : 0);
+        mUseJpegConversion = pBuilder.mUseJpegConversion;
+        mFrameSource = pBuilder.mFrameSource;
+        mPictureTargetWidth = pBuilder.mPictureTargetWidth;
+        mPictureTargetHeight = pBuilder.mPictureTargetHeight;
+        mPictureMemoryBudget = pBuilder.mPictureMemoryBudget;
+
+        mPreviewSizeChooser = new PreviewSizeChooser(mUseJpegConversion
+                ? PreviewSizeChooser.JPEG_NSECS_PER_PIXEL
+                : PreviewSizeChooser.DIRECT_NSECS_PER_PIXEL);
+        for (int[] target : pBuilder.mPreviewTargets) {
+            mPreviewSizeChooser.addTarget(target[0], target[1]);
+        }
 
         mBitmapOptions.inMutable = true;
         mBitmapOptions.inTempStorage = new byte[1024 * 32];  // docs suggest 16 KB
 
+        mConversionWorkers = new ConversionWorker[pBuilder.mNumConversionWorkers];
+        for (int i = 0; i < mConversionWorkers.length; i++) {
+            mConversionWorkers[i] = new ConversionWorker(i);
+        }
+
         mSurfaceTexture = new SurfaceTexture(99);  // bogus texture, needed to get preview
 
         // Remember preferred camera, try to use front-facing if not already set.
@@ -242,14 +661,43 @@ public final class CameraLib implements
     public void start() {
         Log.d(TAG, "start");
 
-        if (mCamera == null) {
+        if (mFrameSource != null) {
+            if (mPreviewSlots == null) {
+                openFrameSource();  // allocates preview buffers
+            }
+        } else if (mCamera == null) {
             Log.d(TAG, "start: creating camera");
             openCamera();  // allocates preview buffers
         }
 
-        synchronized (this) {
-            mStartTimestamp = SystemClock.elapsedRealtime();
-            mSuppressPreview = false;
+        // Threads first, so frames are never sequenced without a worker to convert them.
+        mProcessingThread = new HandlerThread(TAG + ".processing");
+        mProcessingThread.setPriority(Thread.MIN_PRIORITY);
+        mProcessingThread.start();
+        mProcessingHandler = new Handler(mProcessingThread.getLooper(), this);
+
+        for (ConversionWorker worker : mConversionWorkers) {
+            worker.start();
+        }
+
+        mCallbackThread = new HandlerThread(TAG + ".callback");
+        mCallbackThread.setPriority(Thread.MIN_PRIORITY);
+        mCallbackThread.start();
+        mCallbackHandler = new Handler(mCallbackThread.getLooper(), this);
+
+        if (mLatestFrameListener != null) {
+            mLatestFrameThread = new HandlerThread(TAG + ".latest");
+            mLatestFrameThread.setPriority(Thread.MIN_PRIORITY);
+            mLatestFrameThread.start();
+            mLatestFrameHandler = new Handler(mLatestFrameThread.getLooper(), this);
+        }
+
+        mStartTimestamp = SystemClock.elapsedRealtime();
+        mSuppressPreview = false;
+
+        if (mFrameSource != null) {
+            mFrameSource.start(this);
+            return;
         }
 
         mCamera.setPreviewCallbackWithBuffer(this);
@@ -258,38 +706,24 @@ public final class CameraLib implements
 
         if (mCameraCanAutoFocus) {
             try {
+                mFocusing = true;
                 mCamera.autoFocus(this);
             } catch (RuntimeException e) {
+                mFocusing = false;
                 Log.w(TAG, "start: " + e.toString(), e);
                 // ignore
             }
         }
-
-        synchronized (this) {
-            mProcessingThread = new HandlerThread(TAG + ".processing");
-            mProcessingThread.setPriority(Thread.MIN_PRIORITY);
-            mProcessingThread.start();
-            mProcessingHandler = new Handler(mProcessingThread.getLooper(), this);
-        }
-
-        synchronized (this) {
-            mCallbackThread = new HandlerThread(TAG + ".callback");
-            mCallbackThread.setPriority(Thread.MIN_PRIORITY);
-            mCallbackThread.start();
-            mCallbackHandler = new Handler(mCallbackThread.getLooper(), this);
-        }
     }
 
     /**
-     * Stop the camera.
+     * Stop the camera.  Waits for an in-flight latest frame callback to return.
      */
     public void stop() {
         Log.d(TAG, "stop");
 
         // Stop processing previews before destroying things.
-        synchronized (this) {
-            mSuppressPreview = true;
-        }
+        mSuppressPreview = true;
 
         if (mCamera != null) {
             try {
@@ -301,31 +735,50 @@ public final class CameraLib implements
             mCamera.release();
             mCamera = null;
         }
+        if (mFrameSource != null) {
+            mFrameSource.stop();
+        }
         mSafeToTakePicture = false;
+        mFocusing = false;
 
-        mPreviewBuffers.clear();
-        mPreviewBitmaps.clear();
-        mTempBitmap = null;
+        discardPreviewSlots();
 
-        synchronized (this) {
-            if (mProcessingHandler != null) {
-                mProcessingHandler.removeMessages(WHAT_PROCESS_PREVIEW);
-                mProcessingHandler.removeMessages(WHAT_PROCESS_PICTURE);
-                mProcessingThread.quitSafely();
-                mProcessingHandler = null;
-                mProcessingThread = null;
-            }
+        for (ConversionWorker worker : mConversionWorkers) {
+            worker.stop();
+            worker.release();
+        }
+
+        if (mProcessingHandler != null) {
+            mProcessingHandler.removeMessages(WHAT_PROCESS_PICTURE);
+            mProcessingThread.quitSafely();
+            mProcessingHandler = null;
+            mProcessingThread = null;
+        }
+
+        if (mCallbackHandler != null) {
+            mCallbackHandler.removeMessages(WHAT_CALLBACK_PREVIEW);
+            mCallbackHandler.removeMessages(WHAT_CALLBACK_PICTURE);
+            mCallbackThread.quitSafely();
+            mCallbackHandler = null;
+            mCallbackThread = null;
         }
 
-        synchronized (this) {
-            if (mCallbackHandler != null) {
-                mCallbackHandler.removeMessages(WHAT_CALLBACK_PREVIEW);
-                mCallbackHandler.removeMessages(WHAT_CALLBACK_PICTURE);
-                mCallbackThread.quitSafely();
-                mCallbackHandler = null;
-                mCallbackThread = null;
+        if (mLatestFrameHandler != null) {
+            mLatestFrameHandler.removeMessages(WHAT_CONSUME_LATEST);
+            mLatestFrameThread.quitSafely();
+            // Wait out an in-flight onLatestPreview, so a restart never has
+            // two consumer threads running the listener at once.
+            if (mLatestFrameThread != Thread.currentThread()) {
+                try {
+                    mLatestFrameThread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
             }
+            mLatestFrameHandler = null;
+            mLatestFrameThread = null;
         }
+        mLatestFrameMailbox.set(null);
     }
 
     /**
@@ -353,6 +806,16 @@ public final class CameraLib implements
         mActivity.getSharedPreferences(TAG, Context.MODE_PRIVATE).edit().putInt("mCameraId", mCameraId).apply();
     }
 
+    /**
+     * Is an autofocus sweep running?  Safe to call from any thread, such as
+     * a preview listener deciding whether a frame is worth using.
+     *
+     * @return (boolean) True between the autoFocus call and onAutoFocus.
+     */
+    public boolean isFocusing() {
+        return mFocusing;
+    }
+
     @SuppressWarnings("unused")
     public boolean getIsFrontFacingCamera() {
         if (mCamera == null) {
@@ -440,6 +903,77 @@ public final class CameraLib implements
         return new Rect(mPreviewRect);
     }
 
+    /**
+     * Number of frames handed to the latest frame listener.
+     *
+     * @return (long) Count since creation.
+     */
+    @SuppressWarnings("unused")
+    public long getLatestFramesDelivered() {
+        return mLatestFramesDelivered.get();
+    }
+
+    /**
+     * Time the last preview conversion took, for latency budgets.
+     *
+     * @return (long) Milliseconds, 0 before the first frame.
+     */
+    public long getLastConversionMsecs() {
+        return mLastConversionMsecs;
+    }
+
+    /**
+     * Time since the frame being handled by onLatestPreview arrived from the
+     * camera or frame source, so conversion, the mailbox wait and whatever
+     * the listener did so far.  Call from onLatestPreview.
+     *
+     * @return (long) Milliseconds.
+     */
+    public long getLatestFrameAgeMsecs() {
+        return SystemClock.uptimeMillis() - mLatestFrameArrivalMsecs;
+    }
+
+    /**
+     * Replace the preview targets (see Builder.addPreviewTarget), such as
+     * to trade preview resolution for speed.  A running camera is
+     * restarted to pick the new size, so call on the thread that calls
+     * start and stop, then re-read getPreviewSize and getPreviewMatrix.
+     *
+     * @param pTargets (int[]...) Targets, each {minimum width, minimum height}.
+     */
+    public void setPreviewTargets(int[]... pTargets) {
+        mPreviewSizeChooser.clearTargets();
+        for (int[] target : pTargets) {
+            Log.d(TAG, "setPreviewTargets " + target[0] + "x" + target[1]);
+            mPreviewSizeChooser.addTarget(target[0], target[1]);
+        }
+        if (mCamera != null) {
+            stop();
+            start();
+        }
+    }
+
+    /**
+     * Number of frames replaced in the mailbox by a newer frame before the
+     * latest frame listener got to them.
+     *
+     * @return (long) Count since creation.
+     */
+    @SuppressWarnings("unused")
+    public long getLatestFramesSuperseded() {
+        return mLatestFramesSuperseded.get();
+    }
+
+    /**
+     * Transform applied to the raw preview data (rotation and mirroring) to
+     * produce the preview bitmaps.
+     *
+     * @return (Matrix) Copy of the preview transform.
+     */
+    public Matrix getPreviewMatrix() {
+        return new Matrix(mMatrix);
+    }
+
     /**
      * Take a picture, invokes listener callback.
      *
@@ -487,9 +1021,9 @@ public final class CameraLib implements
         mCameraMaxZoom = mCameraParameters.getMaxZoom();
 
         final boolean rotateBitmaps = fixCameraRotation(mCameraParameters);
-        allocatePreviewBuffers(mCameraParameters, rotateBitmaps);
-
         final Camera.Size previewSize = mCameraParameters.getPreviewSize();
+        allocatePreviewBuffers(previewSize.width, previewSize.height, rotateBitmaps);
+
         mPreviewRect.set(0, 0, previewSize.width, previewSize.height);
 
         final Camera.Size pictureSize = mCameraParameters.getPictureSize();
@@ -508,9 +1042,28 @@ public final class CameraLib implements
         }
     }
 
+    private void openFrameSource() {
+        final int width = mFrameSource.getWidth();
+        final int height = mFrameSource.getHeight();
+        Log.d(TAG, "openFrameSource: " + width + "x" + height);
+
+        // Recorded frames are used as is.
+        mMatrix.reset();
+        mRotation = 0;
+        mFlipVertical = false;
+
+        mPreviewRect.set(0, 0, width, height);
+        allocatePreviewBuffers(width, height, false);
+    }
+
     private void choosePreviewSize(Camera.Parameters pParameters) {
         Log.d(TAG, "choosePreviewSize");
 
+        if (mPreviewSizeChooser.hasTarget()) {
+            choosePreviewSizeForTarget(pParameters);
+            return;
+        }
+
         final Point screenSize = new Point();
         mActivity.getWindowManager().getDefaultDisplay().getSize(screenSize);
         final int screenArea = screenSize.x * screenSize.y;
@@ -547,6 +1100,28 @@ public final class CameraLib implements
         }
     }
 
+    /**
+     * Cheapest supported size meeting the consumers' targets, see PreviewSizeChooser.
+     */
+    private void choosePreviewSizeForTarget(Camera.Parameters pParameters) {
+        final List<Camera.Size> sizes = pParameters.getSupportedPreviewSizes();
+        final int[] widths = new int[sizes.size()];
+        final int[] heights = new int[sizes.size()];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = sizes.get(i).width;
+            heights[i] = sizes.get(i).height;
+            Log.d(TAG, "choosePreviewSizeForTarget: candidate " + widths[i] + "x" + heights[i]
+                    + " meets=" + mPreviewSizeChooser.meetsTarget(widths[i], heights[i])
+                    + " ~" + mPreviewSizeChooser.getConversionMsecs(widths[i], heights[i]) + " msecs");
+        }
+
+        final int best = mPreviewSizeChooser.choose(widths, heights);
+        if (best != -1) {
+            Log.d(TAG, "choosePreviewSizeForTarget: using " + widths[best] + ", " + heights[best]);
+            pParameters.setPreviewSize(widths[best], heights[best]);
+        }
+    }
+
     private void choosePictureSize(Camera.Parameters pParameters) {
         Log.d(TAG, "choosePictureSize");
 
@@ -591,18 +1166,20 @@ public final class CameraLib implements
      *
      * See http://developer.android.com/reference/android/hardware/Camera.Parameters.html#setPreviewFormat(int)
      */
-    private void allocatePreviewBuffers(Camera.Parameters pParameters, boolean pRotateBitmaps) {
+    private void allocatePreviewBuffers(int pWidth, int pHeight, boolean pRotateBitmaps) {
         Log.d(TAG, "allocatePreviewBuffers");
 
-        final Camera.Size previewSize = pParameters.getPreviewSize();
-        final int width = previewSize.width;
-        final int height = previewSize.height;
+        final int width = pWidth;
+        final int height = pHeight;
 
         final int yStride   = (int) Math.ceil(width / 16.0) * 16;
         final int uvStride  = (int) Math.ceil((yStride / 2) / 16.0) * 16;
         final int ySize     = yStride * height;
         final int uvSize    = uvStride * height / 2;
-        final int size      = ySize + uvSize * 2;
+        int size            = ySize + uvSize * 2;
+        if (mFrameSource != null) {
+            size = Math.max(size, mFrameSource.getBufferSize());
+        }
         //final int yRowIndex = yStride * y;
         //final int uRowIndex = ySize + uvSize + uvStride * c;
         //final int vRowIndex = ySize + uvStride * c;
@@ -610,17 +1187,80 @@ public final class CameraLib implements
         final int w = pRotateBitmaps ? height : width;
         final int h = pRotateBitmaps ? width : height;
 
-        synchronized (this) {
-            mPreviewBuffers.clear();
-            mPreviewBitmaps.clear();
-            mPreviewTimestamps.clear();
-            for (int i = 0; i < NUM_PREVIEW_BUFFERS; i++) {
-                mPreviewBuffers.add(new byte[size]);
-                mPreviewBitmaps.add(Bitmap.createBitmap(w, h, mBitmapOptions.inPreferredConfig));
-                mPreviewTimestamps.add(0L);
-                mCamera.addCallbackBuffer(mPreviewBuffers.get(i));
+        discardPreviewSlots();
+
+        for (ConversionWorker worker : mConversionWorkers) {
+            worker.allocate(width, height);
+        }
+
+        final PreviewReorderBuffer reorder = new PreviewReorderBuffer(mNumPreviewBuffers);
+        final PreviewSlot[] slots = new PreviewSlot[mNumPreviewBuffers];
+        final Map<byte[], PreviewSlot> slotsByData = new IdentityHashMap<>();
+        for (int i = 0; i < mNumPreviewBuffers; i++) {
+            slots[i] = new PreviewSlot(i, new byte[size], width, height, Bitmap.createBitmap(w, h, mBitmapOptions.inPreferredConfig), reorder);
+            slotsByData.put(slots[i].mData, slots[i]);
+        }
+
+        // Publish before handing buffers to the camera.
+        mPreviewSlotsByData = slotsByData;
+        mPreviewSlots = slots;
+        for (PreviewSlot slot : slots) {
+            slot.mState.set(PreviewSlot.QUEUED_TO_CAMERA);
+            queuePreviewBuffer(slot.mData);
+        }
+    }
+
+    /**
+     * Forget the current preview slots.  Marking them FREE makes any
+     * transition still in flight on another thread fail.
+     */
+    private void discardPreviewSlots() {
+        final PreviewSlot[] slots = mPreviewSlots;
+        mPreviewSlots = null;
+        mPreviewSlotsByData = null;
+        if (slots != null) {
+            for (PreviewSlot slot : slots) {
+                slot.mState.set(PreviewSlot.FREE);
             }
-            mTempBitmap = Bitmap.createBitmap(width, height, mBitmapOptions.inPreferredConfig);
+        }
+    }
+
+    private boolean isCurrentSlot(PreviewSlot pSlot) {
+        final PreviewSlot[] slots = mPreviewSlots;
+        return slots != null && slots[pSlot.mIndex] == pSlot;
+    }
+
+    /**
+     * Hand an empty buffer to the camera, or the frame source if there is one.
+     */
+    private void queuePreviewBuffer(byte[] pData) {
+        if (mFrameSource != null) {
+            mFrameSource.addBuffer(pData);
+            return;
+        }
+        final Camera camera = mCamera;
+        if (camera != null) {
+            try {
+                camera.addCallbackBuffer(pData);
+            } catch (RuntimeException e) {
+                // Camera released by stop while returning the buffer.
+                Log.w(TAG, "queuePreviewBuffer: " + e.toString());
+            }
+        }
+    }
+
+    /**
+     * Give a slot's buffer back to the camera for reuse / flow control.
+     *
+     * @param pSlot (PreviewSlot) Slot.
+     * @param pFromState (int) State the caller owns the slot in.
+     */
+    private void returnToCamera(PreviewSlot pSlot, int pFromState) {
+        if (!pSlot.transition(pFromState, PreviewSlot.QUEUED_TO_CAMERA)) {
+            return;  // discarded by stop
+        }
+        if (isCurrentSlot(pSlot)) {
+            queuePreviewBuffer(pSlot.mData);
         }
     }
 
@@ -653,6 +1293,8 @@ public final class CameraLib implements
         // actually rotate the pixels (some just set the rotation in the XFIF).
 
         mMatrix.reset();
+        mRotation = result;
+        mFlipVertical = false;
 
         // Preview images are not rotated.  Compute a matrix to rotate them in software.
         if (result != 0) {
@@ -681,6 +1323,7 @@ public final class CameraLib implements
                 y = previewSize.width / 2;
             }
             mMatrix.postScale(1f, -1f, x, y);  // invert, image is mirrored -- this appears to be the standard way to deal with it
+            mFlipVertical = true;
             //mMatrix.postRotate(180, x, y);  // rotated
         }
 
@@ -692,23 +1335,49 @@ public final class CameraLib implements
     @Override
     public void onPreviewFrame(byte[] pData, Camera pCamera) {
         // data is NV21
+        handleFrame(pData, SystemClock.elapsedRealtime() - mStartTimestamp);
+    }
+
+    @Override
+    public void onFrame(byte[] pData, long pTimestampMsecs) {
+        handleFrame(pData, pTimestampMsecs);
+    }
 
+    @Override
+    public void onError(Exception pException) {
+        Log.e(TAG, "onError: frame source stopped", pException);
+    }
+
+    private void handleFrame(byte[] pData, long pTimestampMsecs) {
         if (pData == null) {
-            Log.d(TAG, "onPreviewFrame: null buffer, aborting");
+            Log.d(TAG, "handleFrame: null buffer, aborting");
             return;
         }
 
-        synchronized (this) {
-            final int bufferIndex = mPreviewBuffers.indexOf(pData);
-            if (bufferIndex < 0) {
-                Log.d(TAG, "onPreviewFrame: not a preview buffer, aborting");
-                return;
-            }
-            mPreviewTimestamps.set(bufferIndex, SystemClock.elapsedRealtime() - mStartTimestamp);
-            if (mProcessingHandler != null) {
-                mProcessingHandler.sendMessage(mProcessingHandler.obtainMessage(WHAT_PROCESS_PREVIEW, pData));
-            }
+        final Map<byte[], PreviewSlot> slotsByData = mPreviewSlotsByData;
+        final PreviewSlot slot = slotsByData != null ? slotsByData.get(pData) : null;
+        if (slot == null) {
+            Log.d(TAG, "handleFrame: not a preview buffer, aborting");
+            return;
         }
+        if (!slot.transition(PreviewSlot.QUEUED_TO_CAMERA, PreviewSlot.CONVERTING)) {
+            Log.d(TAG, "handleFrame: buffer not queued (state " + slot.mState.get() + "), aborting");
+            return;
+        }
+
+        // Spread frames over the workers in camera order.
+        final PreviewReorderBuffer reorder = slot.mReorder;
+        final ConversionWorker worker = mConversionWorkers[(int) (reorder.mNextAssigned % mConversionWorkers.length)];
+        final Handler handler = worker.mHandler;
+        if (handler == null) {
+            returnToCamera(slot, PreviewSlot.CONVERTING);
+            return;
+        }
+
+        slot.mTimestamp = pTimestampMsecs;
+        slot.mArrivalMsecs = SystemClock.uptimeMillis();
+        slot.mSequence = reorder.mNextAssigned++;
+        handler.sendMessage(handler.obtainMessage(WHAT_PROCESS_PREVIEW, worker.mIndex, 0, slot));
     }
 
     @Override
@@ -726,16 +1395,16 @@ public final class CameraLib implements
         }
 
         // Now queue picture work, will run after any in-progress preview work finishes.
-        synchronized (this) {
-            if (mProcessingHandler != null) {
-                mProcessingHandler.sendMessage(mProcessingHandler.obtainMessage(WHAT_PROCESS_PICTURE, pData));
-            }
+        final Handler handler = mProcessingHandler;
+        if (handler != null) {
+            handler.sendMessage(handler.obtainMessage(WHAT_PROCESS_PICTURE, pData));
         }
     }
 
     @Override
     public void onAutoFocus(boolean pSuccess, Camera pCamera) {
         Log.d(TAG, "onAutoFocus: success=" + pSuccess);
+        mFocusing = false;
     }
 
     // ------------------------------------------------------------------------
@@ -744,10 +1413,10 @@ public final class CameraLib implements
     public boolean handleMessage(Message pMsg) {
         switch (pMsg.what) {
             case WHAT_PROCESS_PREVIEW:
-                processPreview((byte[]) pMsg.obj);
+                processPreview(mConversionWorkers[pMsg.arg1], (PreviewSlot) pMsg.obj);
                 break;
             case WHAT_CALLBACK_PREVIEW:
-                callbackPreview((byte[]) pMsg.obj);
+                callbackPreview((PreviewSlot) pMsg.obj);
                 break;
             case WHAT_PROCESS_PICTURE:
                 processPicture((byte[]) pMsg.obj);
@@ -755,6 +1424,9 @@ public final class CameraLib implements
             case WHAT_CALLBACK_PICTURE:
                 callbackPicture((Bitmap) pMsg.obj);
                 break;
+            case WHAT_CONSUME_LATEST:
+                consumeLatestPreview();
+                break;
             default:
                 throw new IllegalArgumentException("what=" + pMsg.what);
         }
@@ -763,128 +1435,266 @@ public final class CameraLib implements
 
     // ------------------------------------------------------------------------
 
-    private void processPreview(byte[] pData) {
-        // Grab buffers under lock.  Abort if buffers have changed.
-        final Bitmap previewBitmap;
-        synchronized (this) {
-            final int bufferIndex = mPreviewBuffers.indexOf(pData);
-            if (bufferIndex < 0) {
-                Log.d(TAG, "processPreview: not a preview buffer, aborting");
-                return;
-            }
-            if (mSuppressPreview) {
-                if (mCamera != null) {
-                    mCamera.addCallbackBuffer(pData);
-                }
-                return;
-            }
-            previewBitmap = mPreviewBitmaps.get(bufferIndex);
+    private void processPreview(ConversionWorker pWorker, PreviewSlot pSlot) {
+        // Abort if buffers have changed.
+        if (!isCurrentSlot(pSlot)) {
+            Log.d(TAG, "processPreview: not a preview buffer, aborting");
+            return;
         }
 
-        // Convert raw YUV to JPEG.
-        {
-            // Load into a YuvImage (from NV21 camera format).
-            final YuvImage yuvImage = new YuvImage(pData, ImageFormat.NV21, mPreviewRect.width(), mPreviewRect.height(), null);
-
-            final int w = yuvImage.getWidth();
-            final int h = yuvImage.getHeight();
-            final int jpegBufferSize = (int) (w * h * 8.25) + 1024;  // 8.25 bytes per pixel, plus 1K slop
-            if (mPreviewJpegOutputStream == null || mPreviewJpegBufferSize < jpegBufferSize) {
-                Log.d(TAG, "handleMessage: resizing buffer to " + jpegBufferSize + " bytes");
-                mPreviewJpegBufferSize = jpegBufferSize;
-                mPreviewJpegOutputStream = null;  // release before attempting to reallocate at new size
-                mPreviewJpegOutputStream = new ByteArrayOutputStream(jpegBufferSize);
+        // Always pass the frame on, even unconverted, so the reorder stage
+        // does not wait for a sequence number that never arrives.
+        pSlot.mConverted = false;
+        if (!mSuppressPreview) {
+            final long startTime = SystemClock.uptimeMillis();
+            if (mUseJpegConversion) {
+                pWorker.convertPreviewWithJpeg(pSlot.mData, pSlot.mBitmap);
+            } else {
+                pWorker.convertPreview(pSlot.mData, pSlot.mBitmap);
             }
-            mPreviewJpegOutputStream.reset();
-            yuvImage.compressToJpeg(mPreviewRect, 90, mPreviewJpegOutputStream);
+            mLastConversionMsecs = SystemClock.uptimeMillis() - startTime;
+            pSlot.mConverted = true;
         }
-        final byte[] jpeg = mPreviewJpegOutputStream.toByteArray();
 
-        // Convert JPEG to bitmap.
-        mBitmapOptions.inBitmap = mTempBitmap;  // attempt to load into pre-allocated bitmap
-        Bitmap decodedBitmap;
-        try {
-            decodedBitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, mBitmapOptions);
-        } catch (IllegalArgumentException e) {
-            mBitmapOptions.inBitmap = null;
-            decodedBitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, mBitmapOptions);
+        if (!pSlot.transition(PreviewSlot.CONVERTING, PreviewSlot.DELIVERED)) {
+            return;  // discarded by stop while converting
         }
+        final Handler handler = mCallbackHandler;
+        if (handler != null) {
+            handler.sendMessage(handler.obtainMessage(WHAT_CALLBACK_PREVIEW, pSlot));
+        } else {
+            returnToCamera(pSlot, PreviewSlot.DELIVERED);
+        }
+    }
 
-        // Copy into the pre-allocated bitmaps ring.  If no transform is used could swap to avoid copy.
-        mCanvas.setBitmap(previewBitmap);
-        mCanvas.drawBitmap(decodedBitmap, mMatrix, mPaint);
+    private void callbackPreview(PreviewSlot pSlot) {
+        // Abort if buffers have changed.
+        if (!isCurrentSlot(pSlot)) {
+            Log.d(TAG, "callbackPreview: not a preview buffer, aborting");
+            return;
+        }
 
-        synchronized (this) {
-            if (mCallbackHandler != null) {
-                mCallbackHandler.sendMessage(mCallbackHandler.obtainMessage(WHAT_CALLBACK_PREVIEW, pData));
+        // Hold frames that finished early, then deliver everything now in order.
+        final PreviewReorderBuffer reorder = pSlot.mReorder;
+        final int ringSize = reorder.mPending.length;
+        reorder.mPending[(int) (pSlot.mSequence % ringSize)] = pSlot;
+        while (true) {
+            final int i = (int) (reorder.mNextDelivered % ringSize);
+            final PreviewSlot slot = reorder.mPending[i];
+            if (slot == null || slot.mSequence != reorder.mNextDelivered) {
+                break;
             }
+            reorder.mPending[i] = null;
+            reorder.mNextDelivered++;
+            deliverPreview(slot);
         }
     }
 
-    private void callbackPreview(byte[] pData) {
-        // Grab buffers under lock.  Abort if buffers have changed.
-        final Bitmap bitmap;
-        final long timestamp;
-        synchronized (this) {
-            final int bufferIndex = mPreviewBuffers.indexOf(pData);
-            if (bufferIndex < 0) {
-                Log.d(TAG, "callbackPreview: not a preview buffer, aborting");
-                return;
-            }
-            if (mSuppressPreview) {
-                if (mCamera != null) {
-                    mCamera.addCallbackBuffer(pData);
-                }
-                return;
-            }
-            bitmap = mPreviewBitmaps.get(bufferIndex);
-            timestamp = mPreviewTimestamps.get(bufferIndex);
+    private void deliverPreview(PreviewSlot pSlot) {
+        if (mSuppressPreview || !pSlot.mConverted) {
+            returnToCamera(pSlot, PreviewSlot.DELIVERED);
+            return;
         }
 
-        // Invoke the listener.
+        // Invoke the listeners.
+        final long timestamp = pSlot.mTimestamp;
         if (mListener != null) {
-            mListener.onPreview(bitmap, timestamp);
+            mListener.onPreview(pSlot.mBitmap, timestamp);
+        }
+        if (mPreviewDataListener != null) {
+            mPreviewDataListener.onPreviewData(pSlot.mData, pSlot.mWidth, pSlot.mHeight, timestamp);
+        }
+
+        if (mLatestFrameListener != null) {
+            offerLatestPreview(pSlot);
+            return;
         }
 
         // Release original buffer for reuse / flow control.
-        // Make sure buffers have not changed while unlocked!
-        synchronized (this) {
-            if (mCamera != null && mPreviewBuffers.contains(pData)) {
-                mCamera.addCallbackBuffer(pData);
-            }
+        // Ignored if buffers have changed meanwhile.
+        returnToCamera(pSlot, PreviewSlot.DELIVERED);
+    }
+
+    /**
+     * Put a slot in the latest frame mailbox, recycling any frame it replaces.
+     * Only signal the consumer when the mailbox was empty, otherwise the
+     * replaced frame's signal is still pending.
+     */
+    private void offerLatestPreview(PreviewSlot pSlot) {
+        final PreviewSlot superseded = mLatestFrameMailbox.getAndSet(pSlot);
+        if (superseded != null) {
+            mLatestFramesSuperseded.incrementAndGet();
+            returnToCamera(superseded, PreviewSlot.DELIVERED);
+            return;
+        }
+
+        final Handler handler = mLatestFrameHandler;
+        if (handler != null) {
+            handler.sendEmptyMessage(WHAT_CONSUME_LATEST);
+        } else if (mLatestFrameMailbox.compareAndSet(pSlot, null)) {
+            returnToCamera(pSlot, PreviewSlot.DELIVERED);
+        }
+    }
+
+    private void consumeLatestPreview() {
+        final PreviewSlot slot = mLatestFrameMailbox.getAndSet(null);
+        if (slot == null || !isCurrentSlot(slot)) {
+            return;
+        }
+
+        if (!mSuppressPreview) {
+            mLatestFramesDelivered.incrementAndGet();
+            mLatestFrameArrivalMsecs = slot.mArrivalMsecs;
+            mLatestFrameListener.onLatestPreview(slot.mBitmap, slot.mData, slot.mWidth, slot.mHeight, slot.mTimestamp);
         }
+
+        returnToCamera(slot, PreviewSlot.DELIVERED);
     }
 
     // ------------------------------------------------------------------------
 
     private void processPicture(byte[] pData) {
         Log.d(TAG, "processPicture");
+        final long startTime = SystemClock.uptimeMillis();
 
-        // Ask for a mutable bitmap with desired config.
+        // data is JPEG image, read the size first to plan the decode.
         final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inSampleSize = 1;
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(pData, 0, pData.length, options);
+        final int width = options.outWidth;
+        final int height = options.outHeight;
+
+        // Ask for a mutable bitmap with desired config.
+        final Bitmap.Config config = mBitmapOptions.inPreferredConfig != null
+                ? mBitmapOptions.inPreferredConfig
+                : Bitmap.Config.ARGB_8888;
+        options.inJustDecodeBounds = false;
         options.inMutable = true;
-        options.inPreferredConfig = mBitmapOptions.inPreferredConfig;
+        options.inPreferredConfig = config;
+        options.inSampleSize = PictureDecodePlanner.getSampleSize(width, height,
+                mPictureTargetWidth, mPictureTargetHeight,
+                mPictureMemoryBudget, getBytesPerPixel(config));
+        Log.d(TAG, "processPicture: " + width + "x" + height + " sample " + options.inSampleSize);
 
-        // data is JPEG image
         Bitmap bitmap = null;
-        while (bitmap == null && options.inSampleSize <= 32) {
+        if (width > 0 && height > 0) {
             try {
-                bitmap = BitmapFactory.decodeByteArray(pData, 0, pData.length, options);
-                bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), mMatrix, true);
+                bitmap = decodePicture(pData, width, height, options);
             } catch (OutOfMemoryError e) {
+                // Budget too generous for this device, retry once at the next
+                // smaller size.
                 Log.w(TAG, e.toString(), e);
-                options.inSampleSize *= 2;
+                final int retrySampleSize = PictureDecodePlanner.getNextSampleSize(options.inSampleSize);
+                if (retrySampleSize != options.inSampleSize) {
+                    options.inSampleSize = retrySampleSize;
+                    options.inBitmap = null;
+                    try {
+                        bitmap = decodePicture(pData, width, height, options);
+                    } catch (OutOfMemoryError e2) {
+                        Log.w(TAG, e2.toString(), e2);
+                    }
+                }
             }
         }
         if (bitmap != null) {
-            Log.d(TAG, "processPicture: " + bitmap.getWidth() + "x" + bitmap.getHeight());
+            Log.d(TAG, "processPicture: " + bitmap.getWidth() + "x" + bitmap.getHeight()
+                    + " in " + (SystemClock.uptimeMillis() - startTime) + " msecs");
         }
 
-        synchronized (this) {
-            if (mCallbackHandler != null) {
-                mCallbackHandler.sendMessage(mCallbackHandler.obtainMessage(WHAT_CALLBACK_PICTURE, bitmap));
+        final Handler handler = mCallbackHandler;
+        if (handler != null) {
+            handler.sendMessage(handler.obtainMessage(WHAT_CALLBACK_PICTURE, bitmap));
+        }
+    }
+
+    private Bitmap decodePicture(byte[] pData, int pWidth, int pHeight, BitmapFactory.Options pOptions) {
+        if (mRotation == 0 && !mFlipVertical) {
+            return BitmapFactory.decodeByteArray(pData, 0, pData.length, pOptions);
+        }
+        return decodePictureRotated(pData, pWidth, pHeight, pOptions);
+    }
+
+    /**
+     * Decode in horizontal strips, rotating each strip straight into the
+     * result, so there is never a second full size copy.
+     */
+    private Bitmap decodePictureRotated(byte[] pData, int pWidth, int pHeight, BitmapFactory.Options pOptions) {
+        BitmapRegionDecoder decoder;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(pData, 0, pData.length, false);
+        } catch (IOException e) {
+            Log.w(TAG, "decodePictureRotated: " + e.toString());
+            decoder = null;
+        }
+        if (decoder == null) {
+            // Not region decodable, fall back to decoding and rotating a copy.
+            final Bitmap decoded = BitmapFactory.decodeByteArray(pData, 0, pData.length, pOptions);
+            if (decoded == null) {
+                return null;
             }
+            final Bitmap rotated = Bitmap.createBitmap(decoded, 0, 0, decoded.getWidth(), decoded.getHeight(), mMatrix, true);
+            if (rotated != decoded) {
+                decoded.recycle();
+            }
+            return rotated;
+        }
+
+        try {
+            final int sampleSize = pOptions.inSampleSize;
+            final int width = pWidth / sampleSize;
+            final int height = pHeight / sampleSize;
+            final boolean swap = (mRotation % 180) == 90;
+            final Bitmap result = Bitmap.createBitmap(swap ? height : width, swap ? width : height, pOptions.inPreferredConfig);
+
+            final int stripRows = PictureDecodePlanner.getStripRows(width, height, PICTURE_STRIP_BYTES, 4);
+            final int[] stripPixels = new int[width * stripRows];
+            final int[] rotatedPixels = new int[width * stripRows];
+            final Rect region = new Rect();
+            Bitmap strip = null;
+            for (int y = 0; y < height; y += stripRows) {
+                final int rows = Math.min(stripRows, height - y);
+                region.set(0, y * sampleSize, width * sampleSize, (y + rows) * sampleSize);
+                // Reuse the strip bitmap, except for a short last strip.
+                pOptions.inBitmap = rows == stripRows ? strip : null;
+                strip = decoder.decodeRegion(region, pOptions);
+                if (strip == null) {
+                    continue;
+                }
+
+                final int stripWidth = Math.min(strip.getWidth(), width);
+                final int stripHeight = Math.min(strip.getHeight(), rows);
+                strip.getPixels(stripPixels, 0, stripWidth, 0, 0, stripWidth, stripHeight);
+                YuvConverter.rotateArgb(stripPixels, stripWidth, stripHeight, mRotation, mFlipVertical, rotatedPixels);
+
+                // The strip lands in the rectangle spanned by its rotated corners.
+                final int resultWidth = result.getWidth();
+                final int first = YuvConverter.getDestinationIndex(0, y, width, height, mRotation, mFlipVertical);
+                final int last = YuvConverter.getDestinationIndex(stripWidth - 1, y + stripHeight - 1, width, height, mRotation, mFlipVertical);
+                final int left = Math.min(first % resultWidth, last % resultWidth);
+                final int top = Math.min(first / resultWidth, last / resultWidth);
+                final int rotatedWidth = swap ? stripHeight : stripWidth;
+                final int rotatedHeight = swap ? stripWidth : stripHeight;
+                result.setPixels(rotatedPixels, 0, rotatedWidth, left, top, rotatedWidth, rotatedHeight);
+            }
+            pOptions.inBitmap = null;
+            if (strip != null) {
+                strip.recycle();
+            }
+            return result;
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config pConfig) {
+        switch (pConfig) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
         }
     }
 
@@ -920,6 +1730,7 @@ public final class CameraLib implements
                 return true;
             }
             mCamera.cancelAutoFocus();
+            mFocusing = false;
             final float touchDistance = getFingerSpacing(pEvent);
             int zoom = mCameraParameters.getZoom();
             final int maxZoom = mCameraMaxZoom;
@@ -948,8 +1759,10 @@ public final class CameraLib implements
             // Re-enable auto-focus.
             if (mCameraCanAutoFocus && mSafeToTakePicture) {
                 try {
+                    mFocusing = true;
                     mCamera.autoFocus(this);
                 } catch (RuntimeException e) {
+                    mFocusing = false;
                     // Watch out for autofocus from a bad state, ignore.
                     Log.w(TAG, "onTouch.autoFocus: " + e.toString(), e);
                 }
@@ -0,0 +1,130 @@
+package com.concreterose.lib;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * 64 bit difference hash (dHash) of an image's luma.
+ *
+ * The image is averaged down to a 9x8 grid and each bit records whether a
+ * cell is brighter than its right neighbour.  Near-duplicate images (small
+ * noise, exposure drift, slight motion) hash a few bits apart, different
+ * scenes about half the bits apart.  Cells are subsampled to at most
+ * SAMPLES_PER_CELL points a side, so the cost does not grow with the
+ * image.  Nothing is allocated.  Pure Java, no Android dependencies.
+ */
+public final class DHash {
+    private final static int COLUMNS = 9;
+    private final static int ROWS = 8;
+    private final static int SAMPLES_PER_CELL = 6;
+
+    private DHash() {
+    }
+
+    /**
+     * Hash an 8 bit luma plane, such as the Y plane at the start of an NV21 buffer.
+     *
+     * @param pLuma (byte[]) Luma, row stride is width.
+     * @param pWidth (int) Width, at least 9.
+     * @param pHeight (int) Height, at least 8.
+     * @return (long) Hash.
+     */
+    public static long ofLuma(byte[] pLuma, int pWidth, int pHeight) {
+        return compute(pLuma, null, null, null, pWidth, pHeight);
+    }
+
+    /**
+     * Hash ARGB pixels, using integer BT.601 luma.
+     *
+     * @param pPixels (int[]) ARGB pixels, row stride is width.
+     * @param pWidth (int) Width, at least 9.
+     * @param pHeight (int) Height, at least 8.
+     * @return (long) Hash.
+     */
+    public static long ofArgb(int[] pPixels, int pWidth, int pHeight) {
+        return compute(null, pPixels, null, null, pWidth, pHeight);
+    }
+
+    /**
+     * Hash a float model input, interleaved RGB from index 0.  Normalizing
+     * with one mean and a positive std for every channel keeps the order
+     * of the luma averages, so the hash matches the source pixels'.
+     *
+     * @param pInput (FloatBuffer) Input values, row stride is width * 3.  Only read.
+     * @param pWidth (int) Width, at least 9.
+     * @param pHeight (int) Height, at least 8.
+     * @return (long) Hash.
+     */
+    public static long ofRgb(FloatBuffer pInput, int pWidth, int pHeight) {
+        return compute(null, null, pInput, null, pWidth, pHeight);
+    }
+
+    /**
+     * Hash a uint8 model input, interleaved RGB from index 0.
+     *
+     * @param pInput (ByteBuffer) Input values, row stride is width * 3.  Only read.
+     * @param pWidth (int) Width, at least 9.
+     * @param pHeight (int) Height, at least 8.
+     * @return (long) Hash.
+     */
+    public static long ofRgb(ByteBuffer pInput, int pWidth, int pHeight) {
+        return compute(null, null, null, pInput, pWidth, pHeight);
+    }
+
+    /**
+     * @param pA (long) Hash.
+     * @param pB (long) Hash.
+     * @return (int) Hamming distance, 0 to 64.
+     */
+    public static int distance(long pA, long pB) {
+        return Long.bitCount(pA ^ pB);
+    }
+
+    private static long compute(byte[] pLuma, int[] pPixels, FloatBuffer pFloats, ByteBuffer pBytes,
+                                int pWidth, int pHeight) {
+        if (pWidth < COLUMNS || pHeight < ROWS) {
+            throw new IllegalArgumentException("size " + pWidth + "x" + pHeight);
+        }
+
+        long hash = 0L;
+        for (int row = 0; row < ROWS; row++) {
+            final int y0 = row * pHeight / ROWS;
+            final int y1 = (row + 1) * pHeight / ROWS;
+            final int yStep = Math.max(1, (y1 - y0) / SAMPLES_PER_CELL);
+            float previous = 0f;
+            for (int column = 0; column < COLUMNS; column++) {
+                final int x0 = column * pWidth / COLUMNS;
+                final int x1 = (column + 1) * pWidth / COLUMNS;
+                final int xStep = Math.max(1, (x1 - x0) / SAMPLES_PER_CELL);
+
+                float sum = 0f;
+                int count = 0;
+                for (int y = y0; y < y1; y += yStep) {
+                    final int rowIndex = y * pWidth;
+                    for (int x = x0; x < x1; x += xStep) {
+                        final int i = rowIndex + x;
+                        if (pLuma != null) {
+                            sum += pLuma[i] & 0xFF;
+                        } else if (pPixels != null) {
+                            final int argb = pPixels[i];
+                            sum += (((argb >> 16) & 0xFF) * 77 + ((argb >> 8) & 0xFF) * 150 + (argb & 0xFF) * 29) >> 8;
+                        } else if (pFloats != null) {
+                            sum += (pFloats.get(i * 3) * 77 + pFloats.get(i * 3 + 1) * 150 + pFloats.get(i * 3 + 2) * 29) / 256;
+                        } else {
+                            sum += ((pBytes.get(i * 3) & 0xFF) * 77 + (pBytes.get(i * 3 + 1) & 0xFF) * 150
+                                    + (pBytes.get(i * 3 + 2) & 0xFF) * 29) >> 8;
+                        }
+                        count++;
+                    }
+                }
+
+                final float average = sum / count;
+                if (column > 0) {
+                    hash = (hash << 1) | (previous > average ? 1L : 0L);
+                }
+                previous = average;
+            }
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,73 @@
+package com.concreterose.lib;
+
+/**
+ * Source of raw NV21 preview frames, such as the camera or a recorded file.
+ *
+ * Follows the same buffer contract as Camera.addCallbackBuffer: the owner
+ * hands empty buffers to the source with addBuffer, the source fills one
+ * per frame and passes it to the callback, and the buffer belongs to the
+ * owner until it is handed back with addBuffer.  With no buffer available
+ * a live source drops the frame.
+ *
+ * No Android dependencies, so a pipeline can be driven from a recorded
+ * source on a build machine.
+ */
+public interface FrameSource {
+
+    /**
+     * Receives filled buffers.
+     */
+    interface FrameCallback {
+
+        /**
+         * A buffer was filled with a frame.  Called on the source's thread.
+         *
+         * @param pData (byte[]) NV21 data, one of the buffers passed to addBuffer.
+         * @param pTimestampMsecs (long) Milliseconds since start.
+         */
+        void onFrame(byte[] pData, long pTimestampMsecs);
+
+        /**
+         * The source failed and will deliver no more frames.  Called on the
+         * source's thread.
+         *
+         * @param pException (Exception) What went wrong.
+         */
+        void onError(Exception pException);
+    }
+
+    /**
+     * @return (int) Frame width.
+     */
+    int getWidth();
+
+    /**
+     * @return (int) Frame height.
+     */
+    int getHeight();
+
+    /**
+     * @return (int) Minimum size of buffers passed to addBuffer.
+     */
+    int getBufferSize();
+
+    /**
+     * Give the source an empty buffer to fill.
+     *
+     * @param pBuffer (byte[]) Buffer, at least getBufferSize bytes.
+     */
+    void addBuffer(byte[] pBuffer);
+
+    /**
+     * Start delivering frames.
+     *
+     * @param pCallback (FrameCallback) Callback.
+     */
+    void start(FrameCallback pCallback);
+
+    /**
+     * Stop delivering frames and forget all buffers.  No callbacks happen
+     * after this returns.
+     */
+    void stop();
+}
@@ -0,0 +1,307 @@
+package com.concreterose.lib;
+
+/**
+ * Slow classification down while its results are not changing.
+ *
+ * Each result is compared with an exponential moving average of recent
+ * top-K confidences.  While the top label holds and the confidences stay
+ * close to the average, the interval between classifications doubles, up
+ * to a cap.  A new top label, a large confidence shift, or a scene change
+ * reported by the caller snaps back to the minimum interval.
+ *
+ * The caller asks shouldRun before each classification and reports the
+ * outcome with onResults.  Not thread safe.  Pure Java, no Android
+ * dependencies.
+ */
+public final class InferenceRateController {
+
+    @SuppressWarnings("WeakerAccess")
+    public final static long DEFAULT_MIN_INTERVAL_MSECS = 0;
+    @SuppressWarnings("WeakerAccess")
+    public final static long DEFAULT_FIRST_BACKOFF_MSECS = 100;
+    @SuppressWarnings("WeakerAccess")
+    public final static long DEFAULT_MAX_INTERVAL_MSECS = 2000;
+    @SuppressWarnings("WeakerAccess")
+    public final static float DEFAULT_SMOOTHING = 0.5f;
+    @SuppressWarnings("WeakerAccess")
+    public final static float DEFAULT_STABLE_DELTA = 0.15f;
+
+    // Decisions, see getLastDecision.
+    @SuppressWarnings("WeakerAccess")
+    public final static int DECISION_NONE = 0;
+    @SuppressWarnings("WeakerAccess")
+    public final static int DECISION_BACK_OFF = 1;
+    @SuppressWarnings("WeakerAccess")
+    public final static int DECISION_SNAP_BACK_LABEL = 2;
+    @SuppressWarnings("WeakerAccess")
+    public final static int DECISION_SNAP_BACK_SCENE = 3;
+
+    // Classes tracked in the moving average.
+    private final static int AVERAGE_CAPACITY = 16;
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Create an InferenceRateController.
+     */
+    public final static class Builder {
+        private long mMinIntervalMsecs = DEFAULT_MIN_INTERVAL_MSECS;
+        private long mFirstBackoffMsecs = DEFAULT_FIRST_BACKOFF_MSECS;
+        private long mMaxIntervalMsecs = DEFAULT_MAX_INTERVAL_MSECS;
+        private float mSmoothing = DEFAULT_SMOOTHING;
+        private float mStableDelta = DEFAULT_STABLE_DELTA;
+
+        /**
+         * @param pMinIntervalMsecs (long) Interval at full rate, 0 to run on every frame.
+         * @return (Builder) Self, for chaining.
+         */
+        @SuppressWarnings("unused")
+        public Builder setMinIntervalMsecs(long pMinIntervalMsecs) {
+            mMinIntervalMsecs = pMinIntervalMsecs;
+            return this;
+        }
+
+        /**
+         * @param pFirstBackoffMsecs (long) Interval after the first stable result, doubled after each more.
+         * @return (Builder) Self, for chaining.
+         */
+        @SuppressWarnings("unused")
+        public Builder setFirstBackoffMsecs(long pFirstBackoffMsecs) {
+            mFirstBackoffMsecs = pFirstBackoffMsecs;
+            return this;
+        }
+
+        /**
+         * @param pMaxIntervalMsecs (long) Longest interval, the backoff cap.
+         * @return (Builder) Self, for chaining.
+         */
+        @SuppressWarnings("unused")
+        public Builder setMaxIntervalMsecs(long pMaxIntervalMsecs) {
+            mMaxIntervalMsecs = pMaxIntervalMsecs;
+            return this;
+        }
+
+        /**
+         * @param pSmoothing (float) Weight of the newest result in the moving average, 0 to 1.
+         * @return (Builder) Self, for chaining.
+         */
+        @SuppressWarnings("unused")
+        public Builder setSmoothing(float pSmoothing) {
+            mSmoothing = pSmoothing;
+            return this;
+        }
+
+        /**
+         * @param pStableDelta (float) Largest summed confidence change from the average still stable.
+         * @return (Builder) Self, for chaining.
+         */
+        @SuppressWarnings("unused")
+        public Builder setStableDelta(float pStableDelta) {
+            mStableDelta = pStableDelta;
+            return this;
+        }
+
+        /**
+         * Build the InferenceRateController with the current build options.
+         *
+         * @return (InferenceRateController) InferenceRateController.
+         */
+        public InferenceRateController build() {
+            return new InferenceRateController(this);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private long mMinIntervalMsecs;
+    private final long mFirstBackoffMsecs;
+    private final long mMaxIntervalMsecs;
+    private final float mSmoothing;
+    private final float mStableDelta;
+
+    // Moving average of confidences by class, unused slots hold class -1.
+    private final int[] mAverageClasses = new int[AVERAGE_CAPACITY];
+    private final float[] mAverageValues = new float[AVERAGE_CAPACITY];
+    private boolean mHaveAverage = false;
+    private int mTopClass = -1;
+
+    private long mIntervalMsecs;
+    private long mLastRunMsecs = Long.MIN_VALUE / 2;
+    private float mLastDelta = 0.0f;
+    private int mLastDecision = DECISION_NONE;
+    private long mRunCount = 0L;
+    private long mSkipCount = 0L;
+
+    private InferenceRateController(Builder pBuilder) {
+        mMinIntervalMsecs = pBuilder.mMinIntervalMsecs;
+        mFirstBackoffMsecs = Math.max(pBuilder.mFirstBackoffMsecs, pBuilder.mMinIntervalMsecs);
+        mMaxIntervalMsecs = Math.max(pBuilder.mMaxIntervalMsecs, mFirstBackoffMsecs);
+        mSmoothing = pBuilder.mSmoothing;
+        mStableDelta = pBuilder.mStableDelta;
+        mIntervalMsecs = mMinIntervalMsecs;
+        clearAverage();
+    }
+
+    /**
+     * Is a classification due?  A true answer counts as a run started now.
+     *
+     * @param pNowMsecs (long) Current time.
+     * @return (boolean) True to classify this frame.
+     */
+    public boolean shouldRun(long pNowMsecs) {
+        if (pNowMsecs - mLastRunMsecs < mIntervalMsecs) {
+            mSkipCount++;
+            return false;
+        }
+        mLastRunMsecs = pNowMsecs;
+        mRunCount++;
+        return true;
+    }
+
+    /**
+     * Report a classification, best first, and adjust the interval.
+     *
+     * @param pClassIndices (int[]) Class of each result.
+     * @param pConfidences (float[]) Confidence of each result.
+     * @param pCount (int) Number of results, may be 0.
+     */
+    public void onResults(int[] pClassIndices, float[] pConfidences, int pCount) {
+        final int topClass = pCount > 0 ? pClassIndices[0] : -1;
+
+        float delta = 0.0f;
+        for (int i = 0; i < pCount; i++) {
+            delta += Math.abs(pConfidences[i] - averageOf(pClassIndices[i]));
+        }
+        mLastDelta = delta;
+
+        if (mHaveAverage && topClass == mTopClass && delta <= mStableDelta) {
+            mIntervalMsecs = mIntervalMsecs < mFirstBackoffMsecs
+                    ? mFirstBackoffMsecs
+                    : Math.max(Math.min(2 * mIntervalMsecs, mMaxIntervalMsecs), mMinIntervalMsecs);
+            mLastDecision = DECISION_BACK_OFF;
+        } else {
+            if (mHaveAverage) {
+                // Start the average over, the old scene's classes only add noise.
+                clearAverage();
+            }
+            mIntervalMsecs = mMinIntervalMsecs;
+            mLastDecision = DECISION_SNAP_BACK_LABEL;
+        }
+        mTopClass = topClass;
+        updateAverage(pClassIndices, pConfidences, pCount);
+    }
+
+    /**
+     * Report a large scene change, returning to full rate right away.
+     */
+    public void onSceneChange() {
+        if (mIntervalMsecs != mMinIntervalMsecs) {
+            mIntervalMsecs = mMinIntervalMsecs;
+            mLastDecision = DECISION_SNAP_BACK_SCENE;
+        }
+    }
+
+    /**
+     * Change the interval at full rate, such as from a QualityController.
+     *
+     * @param pMinIntervalMsecs (long) Interval at full rate, 0 to run on every frame.
+     */
+    public void setMinIntervalMsecs(long pMinIntervalMsecs) {
+        mMinIntervalMsecs = pMinIntervalMsecs;
+        mIntervalMsecs = Math.max(mIntervalMsecs, pMinIntervalMsecs);
+    }
+
+    /**
+     * @return (long) Current interval between classifications.
+     */
+    public long getIntervalMsecs() {
+        return mIntervalMsecs;
+    }
+
+    /**
+     * @return (float) Most classifications per second at the current interval, infinite at 0.
+     */
+    @SuppressWarnings("unused")
+    public float getRate() {
+        return 1000.0f / mIntervalMsecs;
+    }
+
+    /**
+     * @return (int) DECISION_* from the last onResults or onSceneChange.
+     */
+    public int getLastDecision() {
+        return mLastDecision;
+    }
+
+    /**
+     * @return (float) Summed confidence change from the average in the last onResults.
+     */
+    @SuppressWarnings("unused")
+    public float getLastDelta() {
+        return mLastDelta;
+    }
+
+    /**
+     * @return (long) shouldRun calls answered true.
+     */
+    @SuppressWarnings("unused")
+    public long getRunCount() {
+        return mRunCount;
+    }
+
+    /**
+     * @return (long) shouldRun calls answered false.
+     */
+    @SuppressWarnings("unused")
+    public long getSkipCount() {
+        return mSkipCount;
+    }
+
+    private float averageOf(int pClassIndex) {
+        for (int i = 0; i < AVERAGE_CAPACITY; i++) {
+            if (mAverageClasses[i] == pClassIndex) {
+                return mAverageValues[i];
+            }
+        }
+        return 0.0f;
+    }
+
+    private void clearAverage() {
+        for (int i = 0; i < AVERAGE_CAPACITY; i++) {
+            mAverageClasses[i] = -1;
+            mAverageValues[i] = 0.0f;
+        }
+        mHaveAverage = false;
+    }
+
+    private void updateAverage(int[] pClassIndices, float[] pConfidences, int pCount) {
+        // Decay everything, classes missing from this result count as 0.
+        final float keep = mHaveAverage ? 1.0f - mSmoothing : 0.0f;
+        final float add = mHaveAverage ? mSmoothing : 1.0f;
+        for (int i = 0; i < AVERAGE_CAPACITY; i++) {
+            mAverageValues[i] *= keep;
+        }
+
+        for (int r = 0; r < pCount; r++) {
+            int slot = -1;
+            int smallest = 0;
+            for (int i = 0; i < AVERAGE_CAPACITY; i++) {
+                if (mAverageClasses[i] == pClassIndices[r]) {
+                    slot = i;
+                    break;
+                }
+                if (mAverageValues[i] < mAverageValues[smallest]) {
+                    smallest = i;
+                }
+            }
+            if (slot < 0) {
+                // Replace the weakest class.
+                slot = smallest;
+                mAverageClasses[slot] = pClassIndices[r];
+                mAverageValues[slot] = 0.0f;
+            }
+            mAverageValues[slot] += add * pConfidences[r];
+        }
+        mHaveAverage = true;
+    }
+}
@@ -0,0 +1,96 @@
+package com.concreterose.lib;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Compact table of UTF-8 labels, one per line.
+ *
+ * The bytes stay in the given buffer, typically a memory mapped file, and
+ * only line offsets are built up front.  Each label is decoded to a String
+ * the first time it is asked for and then cached, so a large label file
+ * costs little heap when only a few labels are ever shown.
+ *
+ * Lines end in \n, \r or \r\n, same as BufferedReader.readLine.  Pure Java,
+ * no Android dependencies.
+ */
+public final class LabelTable {
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer mData;
+    private final int[] mStarts;
+    private final int[] mEnds;
+
+    // Decoded on demand.  Racing decodes produce equal strings, so no lock.
+    private final String[] mDecoded;
+
+    /**
+     * Index the lines of a UTF-8 buffer.
+     *
+     * @param pData (ByteBuffer) Label text from position to limit, kept, not copied.
+     */
+    public LabelTable(ByteBuffer pData) {
+        mData = pData.slice();
+        final int length = mData.limit();
+
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            final byte b = mData.get(i);
+            if (b == '\n' || (b == '\r' && (i + 1 == length || mData.get(i + 1) != '\n'))) {
+                count++;
+            }
+        }
+        if (length > 0) {
+            final byte last = mData.get(length - 1);
+            if (last != '\n' && last != '\r') {
+                count++;  // no final line terminator
+            }
+        }
+
+        mStarts = new int[count];
+        mEnds = new int[count];
+        int line = 0;
+        int start = 0;
+        for (int i = 0; i < length && line < count; i++) {
+            final byte b = mData.get(i);
+            if (b == '\n' || b == '\r') {
+                mStarts[line] = start;
+                mEnds[line] = i;
+                line++;
+                if (b == '\r' && i + 1 < length && mData.get(i + 1) == '\n') {
+                    i++;
+                }
+                start = i + 1;
+            }
+        }
+        if (line < count) {
+            mStarts[line] = start;
+            mEnds[line] = length;
+        }
+
+        mDecoded = new String[count];
+    }
+
+    /**
+     * @return (int) Number of labels.
+     */
+    public int size() {
+        return mStarts.length;
+    }
+
+    /**
+     * @param pIndex (int) Label index, the line number from 0.
+     * @return (String) Label, decoded on first use.
+     */
+    public String get(int pIndex) {
+        String label = mDecoded[pIndex];
+        if (label == null) {
+            final ByteBuffer bytes = mData.duplicate();
+            bytes.limit(mEnds[pIndex]);
+            bytes.position(mStarts[pIndex]);
+            label = UTF_8.decode(bytes).toString();
+            mDecoded[pIndex] = label;
+        }
+        return label;
+    }
+}
@@ -0,0 +1,219 @@
+package com.concreterose.lib;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Small LRU cache keyed by perceptual hash (see DHash), for reusing an
+ * expensive result such as a classification on near-duplicate images.
+ *
+ * A lookup hits the closest entry within the Hamming radius.  Entries
+ * expire a fixed time after they were stored, so a steady scene is still
+ * recomputed now and then.  Lookups scan every entry, which is cheap for
+ * the few dozen entries this is meant for.  Times are passed in, in any
+ * consistent milliseconds.
+ *
+ * Values dropped from the cache (expired, evicted, replaced or cleared) are
+ * kept for takeRecycled, so mutable values such as result holders can be
+ * refilled instead of allocated on every miss.  Not thread safe.  Pure
+ * Java, no Android dependencies.
+ */
+public final class PerceptualCache<V> {
+
+    @SuppressWarnings("WeakerAccess")
+    public final static int DEFAULT_MAX_ENTRIES = 16;
+    @SuppressWarnings("WeakerAccess")
+    public final static int DEFAULT_MAX_DISTANCE = 4;
+    @SuppressWarnings("WeakerAccess")
+    public final static long DEFAULT_TTL_MSECS = 2000;
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Create a PerceptualCache.
+     */
+    public final static class Builder {
+        private int mMaxEntries = DEFAULT_MAX_ENTRIES;
+        private int mMaxDistance = DEFAULT_MAX_DISTANCE;
+        private long mTtlMsecs = DEFAULT_TTL_MSECS;
+
+        /**
+         * @param pMaxEntries (int) Most entries kept, the least recently used is dropped first.
+         * @return (Builder) Self, for chaining.
+         */
+        public Builder setMaxEntries(int pMaxEntries) {
+            if (pMaxEntries < 1) {
+                throw new IllegalArgumentException("entries " + pMaxEntries);
+            }
+            mMaxEntries = pMaxEntries;
+            return this;
+        }
+
+        /**
+         * @param pMaxDistance (int) Largest Hamming distance that still hits, 0 for exact matches.
+         * @return (Builder) Self, for chaining.
+         */
+        public Builder setMaxDistance(int pMaxDistance) {
+            mMaxDistance = pMaxDistance;
+            return this;
+        }
+
+        /**
+         * @param pTtlMsecs (long) How long an entry is used after it was stored.
+         * @return (Builder) Self, for chaining.
+         */
+        public Builder setTtlMsecs(long pTtlMsecs) {
+            mTtlMsecs = pTtlMsecs;
+            return this;
+        }
+
+        /**
+         * Build the PerceptualCache with the current build options.
+         *
+         * @return (PerceptualCache) PerceptualCache.
+         */
+        public <V> PerceptualCache<V> build() {
+            return new PerceptualCache<>(this);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private final static class Entry<V> {
+        private final V mValue;
+        private final long mStoredMsecs;
+
+        private Entry(V pValue, long pStoredMsecs) {
+            mValue = pValue;
+            mStoredMsecs = pStoredMsecs;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private final int mMaxEntries;
+    private final int mMaxDistance;
+    private final long mTtlMsecs;
+
+    // Access ordered, least recently used first.
+    private final LinkedHashMap<Long, Entry<V>> mEntries;
+
+    // Dropped values, at most mMaxEntries.
+    private final ArrayDeque<V> mRecycled;
+
+    private long mHits = 0L;
+    private long mMisses = 0L;
+
+    private PerceptualCache(Builder pBuilder) {
+        mMaxEntries = pBuilder.mMaxEntries;
+        mMaxDistance = pBuilder.mMaxDistance;
+        mTtlMsecs = pBuilder.mTtlMsecs;
+        mRecycled = new ArrayDeque<>(mMaxEntries);
+        mEntries = new LinkedHashMap<Long, Entry<V>>(mMaxEntries * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry<V>> pEldest) {
+                if (size() <= mMaxEntries) {
+                    return false;
+                }
+                recycle(pEldest.getValue().mValue);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Find the closest unexpired value within the radius, counting a hit or miss.
+     *
+     * @param pHash (long) Perceptual hash of the new image.
+     * @param pNowMsecs (long) Current time.
+     * @return (V) Cached value, or null on a miss.
+     */
+    public V get(long pHash, long pNowMsecs) {
+        Long bestKey = null;
+        int bestDistance = Integer.MAX_VALUE;
+        final Iterator<Map.Entry<Long, Entry<V>>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Long, Entry<V>> entry = iterator.next();
+            if (pNowMsecs - entry.getValue().mStoredMsecs >= mTtlMsecs) {
+                recycle(entry.getValue().mValue);
+                iterator.remove();
+                continue;
+            }
+            final int distance = DHash.distance(pHash, entry.getKey());
+            if (distance <= mMaxDistance && distance < bestDistance) {
+                bestKey = entry.getKey();
+                bestDistance = distance;
+            }
+        }
+
+        if (bestKey == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return mEntries.get(bestKey).mValue;  // also marks it recently used
+    }
+
+    /**
+     * Store a value, replacing any entry with the same hash.
+     *
+     * @param pHash (long) Perceptual hash of the image.
+     * @param pValue (V) Value, not copied.
+     * @param pNowMsecs (long) Current time.
+     */
+    public void put(long pHash, V pValue, long pNowMsecs) {
+        final Entry<V> replaced = mEntries.remove(pHash);
+        if (replaced != null && replaced.mValue != pValue) {
+            recycle(replaced.mValue);
+        }
+        mEntries.put(pHash, new Entry<>(pValue, pNowMsecs));
+    }
+
+    /**
+     * A value dropped from the cache, for the caller to refill and put back.
+     *
+     * @return (V) Value no longer in the cache, or null if there is none.
+     */
+    public V takeRecycled() {
+        return mRecycled.poll();
+    }
+
+    /**
+     * Drop every entry, the counters are kept.
+     */
+    public void clear() {
+        for (Entry<V> entry : mEntries.values()) {
+            recycle(entry.mValue);
+        }
+        mEntries.clear();
+    }
+
+    /**
+     * @return (int) Entries currently stored, including expired ones not yet dropped.
+     */
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return (long) Lookups that found a value.
+     */
+    public long getHits() {
+        return mHits;
+    }
+
+    /**
+     * @return (long) Lookups that found nothing.
+     */
+    public long getMisses() {
+        return mMisses;
+    }
+
+    private void recycle(V pValue) {
+        if (mRecycled.size() < mMaxEntries) {
+            mRecycled.add(pValue);
+        }
+    }
+}
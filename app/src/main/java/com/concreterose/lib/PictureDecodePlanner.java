@@ -0,0 +1,97 @@
+package com.concreterose.lib;
+
+/**
+ * Plan how to decode a camera picture before touching any pixels.
+ *
+ * The sample size is chosen up front from the picture bounds (read with
+ * inJustDecodeBounds), the consumer's target resolution and a memory budget,
+ * instead of decoding at full size and retrying smaller on OutOfMemoryError
+ * (a budget that is still too generous for the device gets one retry).
+ * Rotated pictures are decoded in horizontal strips, so only the result and
+ * one strip are in memory at a time.
+ *
+ * Pure Java, no Android dependencies.
+ */
+public final class PictureDecodePlanner {
+
+    // Decoders only honor powers of two.
+    private final static int MAX_SAMPLE_SIZE = 32;
+
+    private PictureDecodePlanner() {
+    }
+
+    /**
+     * Largest power of two sample size that still covers the target (in
+     * either orientation) and fits the decoded bitmap in the budget.  The
+     * budget wins if both cannot be met.
+     *
+     * @param pWidth (int) Full picture width.
+     * @param pHeight (int) Full picture height.
+     * @param pTargetWidth (int) Smallest useful width, 0 for full resolution.
+     * @param pTargetHeight (int) Smallest useful height, 0 for full resolution.
+     * @param pBudgetBytes (long) Maximum decoded bitmap size.
+     * @param pBytesPerPixel (int) Bytes per pixel of the decoded config.
+     * @return (int) Sample size, 1 to 32.
+     */
+    public static int getSampleSize(int pWidth, int pHeight, int pTargetWidth, int pTargetHeight, long pBudgetBytes, int pBytesPerPixel) {
+        int sampleSize = 1;
+
+        // Shrink while the next step down still covers the target.
+        if (pTargetWidth > 0 && pTargetHeight > 0) {
+            final int targetShort = Math.min(pTargetWidth, pTargetHeight);
+            final int targetLong = Math.max(pTargetWidth, pTargetHeight);
+            while (sampleSize < MAX_SAMPLE_SIZE) {
+                final int w = pWidth / (sampleSize * 2);
+                final int h = pHeight / (sampleSize * 2);
+                if (Math.min(w, h) < targetShort || Math.max(w, h) < targetLong) {
+                    break;
+                }
+                sampleSize *= 2;
+            }
+        }
+
+        // Then keep shrinking until it fits.
+        while (sampleSize < MAX_SAMPLE_SIZE && getDecodedBytes(pWidth, pHeight, sampleSize, pBytesPerPixel) > pBudgetBytes) {
+            sampleSize *= 2;
+        }
+
+        return sampleSize;
+    }
+
+    /**
+     * Next smaller decode, to retry with after an OutOfMemoryError.
+     *
+     * @param pSampleSize (int) Sample size that failed.
+     * @return (int) Next sample size, or the same one if already the largest.
+     */
+    public static int getNextSampleSize(int pSampleSize) {
+        return Math.min(pSampleSize * 2, MAX_SAMPLE_SIZE);
+    }
+
+    /**
+     * Decoded bitmap size at a sample size.
+     *
+     * @param pWidth (int) Full picture width.
+     * @param pHeight (int) Full picture height.
+     * @param pSampleSize (int) Sample size.
+     * @param pBytesPerPixel (int) Bytes per pixel of the decoded config.
+     * @return (long) Bytes.
+     */
+    public static long getDecodedBytes(int pWidth, int pHeight, int pSampleSize, int pBytesPerPixel) {
+        return (long) (pWidth / pSampleSize) * (pHeight / pSampleSize) * pBytesPerPixel;
+    }
+
+    /**
+     * Rows per strip when decoding in strips.
+     *
+     * @param pWidth (int) Decoded width.
+     * @param pHeight (int) Decoded height.
+     * @param pStripBytes (int) Target strip size.
+     * @param pBytesPerPixel (int) Bytes per pixel of the strip.
+     * @return (int) Rows, 1 to height.
+     */
+    public static int getStripRows(int pWidth, int pHeight, int pStripBytes, int pBytesPerPixel) {
+        final int rowBytes = Math.max(1, pWidth * pBytesPerPixel);
+        return Math.max(1, Math.min(pHeight, pStripBytes / rowBytes));
+    }
+}
@@ -0,0 +1,125 @@
+package com.concreterose.lib;
+
+/**
+ * Pick the cheapest camera preview size that still satisfies its consumers.
+ *
+ * Consumers state the smallest image they need, for instance a classifier's
+ * input size or a view's size.  Targets are orientation independent (the
+ * preview is rotated in software), so a target is a minimum short side and a
+ * minimum long side.  The crop aspect is the target's own aspect: a square
+ * model input needs a square crop at least that big.
+ *
+ * Preview conversion is linear in pixel count, so each candidate's cost is
+ * estimated as pixels times a per-pixel conversion cost, and the cheapest
+ * candidate meeting every target wins.  If none does, the largest candidate
+ * is the closest.
+ */
+public final class PreviewSizeChooser {
+
+    // Rough per-pixel costs on a mid-range phone, used for estimates and logging.
+    @SuppressWarnings("WeakerAccess")
+    public final static float DIRECT_NSECS_PER_PIXEL = 8f;
+    @SuppressWarnings("WeakerAccess")
+    public final static float JPEG_NSECS_PER_PIXEL = 60f;
+
+    private final float mNsecsPerPixel;
+    private int mMinShortSide = 0;
+    private int mMinLongSide = 0;
+
+    /**
+     * @param pNsecsPerPixel (float) Estimated conversion cost per preview pixel.
+     */
+    public PreviewSizeChooser(float pNsecsPerPixel) {
+        mNsecsPerPixel = pNsecsPerPixel;
+    }
+
+    /**
+     * Add a consumer's requirement.  The chosen size meets all targets.
+     *
+     * @param pWidth (int) Minimum width, either orientation.
+     * @param pHeight (int) Minimum height, either orientation.
+     * @return (PreviewSizeChooser) Self, for chaining.
+     */
+    public PreviewSizeChooser addTarget(int pWidth, int pHeight) {
+        if (pWidth <= 0 || pHeight <= 0) {
+            throw new IllegalArgumentException("target " + pWidth + "x" + pHeight);
+        }
+        mMinShortSide = Math.max(mMinShortSide, Math.min(pWidth, pHeight));
+        mMinLongSide = Math.max(mMinLongSide, Math.max(pWidth, pHeight));
+        return this;
+    }
+
+    /**
+     * Forget every target.
+     *
+     * @return (PreviewSizeChooser) Self, for chaining.
+     */
+    public PreviewSizeChooser clearTargets() {
+        mMinShortSide = 0;
+        mMinLongSide = 0;
+        return this;
+    }
+
+    /**
+     * @return (boolean) True if any target was added.
+     */
+    public boolean hasTarget() {
+        return mMinShortSide > 0;
+    }
+
+    /**
+     * @param pWidth (int) Candidate width.
+     * @param pHeight (int) Candidate height.
+     * @return (boolean) True if the candidate satisfies every target.
+     */
+    public boolean meetsTarget(int pWidth, int pHeight) {
+        return Math.min(pWidth, pHeight) >= mMinShortSide && Math.max(pWidth, pHeight) >= mMinLongSide;
+    }
+
+    /**
+     * @param pWidth (int) Candidate width.
+     * @param pHeight (int) Candidate height.
+     * @return (float) Estimated conversion time per frame.
+     */
+    public float getConversionMsecs(int pWidth, int pHeight) {
+        return pWidth * pHeight * mNsecsPerPixel / 1e6f;
+    }
+
+    /**
+     * Choose among candidate sizes.
+     *
+     * @param pWidths (int[]) Candidate widths.
+     * @param pHeights (int[]) Candidate heights, same length as widths.
+     * @return (int) Index of the best candidate, -1 if there are none.
+     */
+    public int choose(int[] pWidths, int[] pHeights) {
+        int best = -1;
+        boolean bestMeets = false;
+        for (int i = 0; i < pWidths.length; i++) {
+            final boolean meets = meetsTarget(pWidths[i], pHeights[i]);
+            if (best == -1) {
+                best = i;
+                bestMeets = meets;
+                continue;
+            }
+            final float cost = getConversionMsecs(pWidths[i], pHeights[i]);
+            final float bestCost = getConversionMsecs(pWidths[best], pHeights[best]);
+            if (meets && !bestMeets) {
+                best = i;
+                bestMeets = true;
+            } else if (meets && (cost < bestCost || (cost == bestCost && getWaste(i, pWidths, pHeights) < getWaste(best, pWidths, pHeights)))) {
+                best = i;
+            } else if (!meets && !bestMeets && cost > bestCost) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Among equal areas prefer the shape closest to the target, less is cropped away.
+     */
+    private int getWaste(int pIndex, int[] pWidths, int[] pHeights) {
+        return Math.max(pWidths[pIndex], pHeights[pIndex]) - Math.min(pWidths[pIndex], pHeights[pIndex]);
+    }
+}
@@ -0,0 +1,187 @@
+package com.concreterose.lib;
+
+/**
+ * Step between quality tiers to keep frame latency within a budget.
+ *
+ * Tiers are numbered from 0, the best quality, to getNumTiers() - 1, the
+ * cheapest; what a tier changes (preview size, input size, rate) is up to
+ * the caller.  Each measured latency goes into an exponential moving
+ * average.  When the average is over budget the controller steps down a
+ * tier, when it is well under budget it steps back up.
+ *
+ * Two kinds of hysteresis keep it from oscillating: the step up threshold
+ * is a fraction of the budget, so a tier that only just fits is kept, and
+ * a tier must see a minimum number of samples before the next change,
+ * more to step up than to step down so overload is shed quickly.
+ *
+ * Not thread safe.  Pure Java, no Android dependencies.
+ */
+public final class QualityController {
+
+    @SuppressWarnings("WeakerAccess")
+    public final static long DEFAULT_BUDGET_MSECS = 150;
+    @SuppressWarnings("WeakerAccess")
+    public final static float DEFAULT_UPSHIFT_FRACTION = 0.6f;
+    @SuppressWarnings("WeakerAccess")
+    public final static float DEFAULT_SMOOTHING = 0.2f;
+    @SuppressWarnings("WeakerAccess")
+    public final static int DEFAULT_DOWNSHIFT_SAMPLES = 5;
+    @SuppressWarnings("WeakerAccess")
+    public final static int DEFAULT_UPSHIFT_SAMPLES = 30;
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Create a QualityController.
+     */
+    public final static class Builder {
+        private final int mNumTiers;
+        private long mBudgetMsecs = DEFAULT_BUDGET_MSECS;
+        private float mUpshiftFraction = DEFAULT_UPSHIFT_FRACTION;
+        private float mSmoothing = DEFAULT_SMOOTHING;
+        private int mDownshiftSamples = DEFAULT_DOWNSHIFT_SAMPLES;
+        private int mUpshiftSamples = DEFAULT_UPSHIFT_SAMPLES;
+
+        /**
+         * @param pNumTiers (int) Number of tiers, at least 1.
+         */
+        public Builder(int pNumTiers) {
+            if (pNumTiers < 1) {
+                throw new IllegalArgumentException("tiers " + pNumTiers);
+            }
+            mNumTiers = pNumTiers;
+        }
+
+        /**
+         * @param pBudgetMsecs (long) Latency to stay within.
+         * @return (Builder) Self, for chaining.
+         */
+        public Builder setBudgetMsecs(long pBudgetMsecs) {
+            mBudgetMsecs = pBudgetMsecs;
+            return this;
+        }
+
+        /**
+         * @param pUpshiftFraction (float) Step up only below this fraction of the budget.
+         * @return (Builder) Self, for chaining.
+         */
+        @SuppressWarnings("unused")
+        public Builder setUpshiftFraction(float pUpshiftFraction) {
+            mUpshiftFraction = pUpshiftFraction;
+            return this;
+        }
+
+        /**
+         * @param pSmoothing (float) Weight of the newest sample in the moving average, 0 to 1.
+         * @return (Builder) Self, for chaining.
+         */
+        @SuppressWarnings("unused")
+        public Builder setSmoothing(float pSmoothing) {
+            mSmoothing = pSmoothing;
+            return this;
+        }
+
+        /**
+         * @param pDownshiftSamples (int) Samples at a tier before stepping down.
+         * @param pUpshiftSamples (int) Samples at a tier before stepping up.
+         * @return (Builder) Self, for chaining.
+         */
+        @SuppressWarnings("unused")
+        public Builder setDwellSamples(int pDownshiftSamples, int pUpshiftSamples) {
+            mDownshiftSamples = pDownshiftSamples;
+            mUpshiftSamples = pUpshiftSamples;
+            return this;
+        }
+
+        /**
+         * Build the QualityController with the current build options.
+         *
+         * @return (QualityController) QualityController, starting at tier 0.
+         */
+        public QualityController build() {
+            return new QualityController(this);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private final int mNumTiers;
+    private final long mBudgetMsecs;
+    private final float mUpshiftFraction;
+    private final float mSmoothing;
+    private final int mDownshiftSamples;
+    private final int mUpshiftSamples;
+
+    private int mTier = 0;
+    private int mSamplesAtTier = 0;
+    private float mAverageMsecs = 0.0f;
+    private long mTierChanges = 0L;
+
+    private QualityController(Builder pBuilder) {
+        mNumTiers = pBuilder.mNumTiers;
+        mBudgetMsecs = pBuilder.mBudgetMsecs;
+        mUpshiftFraction = pBuilder.mUpshiftFraction;
+        mSmoothing = pBuilder.mSmoothing;
+        mDownshiftSamples = pBuilder.mDownshiftSamples;
+        mUpshiftSamples = pBuilder.mUpshiftSamples;
+    }
+
+    /**
+     * Add a latency sample and maybe change tier.
+     *
+     * @param pLatencyMsecs (long) Latency of one frame.
+     * @return (boolean) True if the tier changed, see getTier.
+     */
+    public boolean update(long pLatencyMsecs) {
+        // The first sample at a tier starts the average afresh, the last
+        // tier's latencies say little about this one.
+        mAverageMsecs = mSamplesAtTier == 0
+                ? pLatencyMsecs
+                : mAverageMsecs + mSmoothing * (pLatencyMsecs - mAverageMsecs);
+        mSamplesAtTier++;
+
+        int tier = mTier;
+        if (mAverageMsecs > mBudgetMsecs && mSamplesAtTier >= mDownshiftSamples) {
+            tier = Math.min(mTier + 1, mNumTiers - 1);
+        } else if (mAverageMsecs < mUpshiftFraction * mBudgetMsecs && mSamplesAtTier >= mUpshiftSamples) {
+            tier = Math.max(mTier - 1, 0);
+        }
+        if (tier == mTier) {
+            return false;
+        }
+        mTier = tier;
+        mSamplesAtTier = 0;
+        mTierChanges++;
+        return true;
+    }
+
+    /**
+     * @return (int) Current tier, 0 is the best quality.
+     */
+    public int getTier() {
+        return mTier;
+    }
+
+    /**
+     * @return (int) Number of tiers.
+     */
+    @SuppressWarnings("unused")
+    public int getNumTiers() {
+        return mNumTiers;
+    }
+
+    /**
+     * @return (float) Moving average latency at the current tier.
+     */
+    public float getAverageMsecs() {
+        return mAverageMsecs;
+    }
+
+    /**
+     * @return (long) Tier changes so far.
+     */
+    @SuppressWarnings("unused")
+    public long getTierChanges() {
+        return mTierChanges;
+    }
+}
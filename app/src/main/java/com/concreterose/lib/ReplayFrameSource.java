@@ -0,0 +1,330 @@
+package com.concreterose.lib;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replay recorded NV21 frames, for benchmarking and regression testing the
+ * preview pipeline without a camera.
+ *
+ * File format (big endian, see writeHeader and writeFrame): magic "NV21",
+ * int width, int height, then raw NV21 frames back to back.
+ *
+ * At a fixed frame rate frames behave like a camera: if no buffer is free
+ * when a frame is due it is dropped.  As fast as possible (rate 0) waits for
+ * a free buffer instead, so throughput is limited only by the consumer.
+ *
+ * A read failure on the replay thread ends the replay and is passed to
+ * FrameCallback.onError.
+ */
+public final class ReplayFrameSource implements FrameSource, Runnable {
+    private final static String TAG = ReplayFrameSource.class.getSimpleName();
+
+    private final static int MAGIC = 0x4E563231;  // "NV21"
+    private final static int HEADER_SIZE = 12;
+
+    private final static long BUFFER_POLL_MSECS = 50;
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Create a ReplayFrameSource.
+     */
+    public final static class Builder {
+        private final File mFile;
+        private float mFramesPerSecond = 0f;
+        private boolean mLoop = true;
+
+        /**
+         * @param pFile (File) Recorded frames, see writeHeader.
+         */
+        public Builder(File pFile) {
+            mFile = pFile;
+        }
+
+        /**
+         * Replay rate.
+         *
+         * @param pFramesPerSecond (float) Frames per second, 0 for as fast as the consumer returns buffers.
+         * @return (Builder) Self, for chaining.
+         */
+        public Builder setFramesPerSecond(float pFramesPerSecond) {
+            if (pFramesPerSecond < 0f) {
+                throw new IllegalArgumentException("fps " + pFramesPerSecond);
+            }
+            mFramesPerSecond = pFramesPerSecond;
+            return this;
+        }
+
+        /**
+         * Start over at the end of the file instead of stopping.
+         *
+         * @param pLoop (boolean) True to loop.
+         * @return (Builder) Self, for chaining.
+         */
+        public Builder setLoop(boolean pLoop) {
+            mLoop = pLoop;
+            return this;
+        }
+
+        /**
+         * Build the source, reading the file header.
+         *
+         * @return (ReplayFrameSource) Source.
+         * @throws IOException If the file cannot be read, is not a frame recording, or holds no frames.
+         */
+        public ReplayFrameSource build() throws IOException {
+            return new ReplayFrameSource(this);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Write a recording header.
+     *
+     * @param pOut (DataOutputStream) Destination.
+     * @param pWidth (int) Frame width.
+     * @param pHeight (int) Frame height.
+     * @throws IOException On write failure.
+     */
+    public static void writeHeader(DataOutputStream pOut, int pWidth, int pHeight) throws IOException {
+        pOut.writeInt(MAGIC);
+        pOut.writeInt(pWidth);
+        pOut.writeInt(pHeight);
+    }
+
+    /**
+     * Append one frame to a recording, for instance from
+     * CameraLibPreviewDataListener.onPreviewData.
+     *
+     * @param pOut (DataOutputStream) Destination, after writeHeader.
+     * @param pData (byte[]) NV21 data, camera buffers may be larger than the frame.
+     * @param pWidth (int) Frame width, same as the header.
+     * @param pHeight (int) Frame height, same as the header.
+     * @throws IOException On write failure.
+     */
+    public static void writeFrame(DataOutputStream pOut, byte[] pData, int pWidth, int pHeight) throws IOException {
+        pOut.write(pData, 0, YuvConverter.getNv21BufferSize(pWidth, pHeight));
+    }
+
+    // ------------------------------------------------------------------------
+
+    private final File mFile;
+    private final float mFramesPerSecond;
+    private final boolean mLoop;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameSize;
+
+    private final LinkedBlockingQueue<byte[]> mFreeBuffers = new LinkedBlockingQueue<>();
+
+    private volatile FrameCallback mCallback = null;
+    private volatile boolean mRunning = false;
+    private Thread mThread = null;
+
+    private volatile long mFramesDelivered = 0L;
+    private volatile long mFramesDropped = 0L;
+
+    private ReplayFrameSource(Builder pBuilder) throws IOException {
+        mFile = pBuilder.mFile;
+        mFramesPerSecond = pBuilder.mFramesPerSecond;
+        mLoop = pBuilder.mLoop;
+
+        final DataInputStream in = new DataInputStream(new FileInputStream(mFile));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(mFile + ": not a frame recording");
+            }
+            mWidth = in.readInt();
+            mHeight = in.readInt();
+        } finally {
+            in.close();
+        }
+        if (mWidth <= 0 || mHeight <= 0) {
+            throw new IOException(mFile + ": bad size " + mWidth + "x" + mHeight);
+        }
+        mFrameSize = YuvConverter.getNv21BufferSize(mWidth, mHeight);
+        if (mFile.length() - HEADER_SIZE < mFrameSize) {
+            throw new IOException(mFile + ": no frames");
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public int getBufferSize() {
+        return mFrameSize;
+    }
+
+    @Override
+    public void addBuffer(byte[] pBuffer) {
+        if (pBuffer.length < mFrameSize) {
+            throw new IllegalArgumentException("buffer " + pBuffer.length + " < " + mFrameSize);
+        }
+        mFreeBuffers.offer(pBuffer);
+    }
+
+    @Override
+    public synchronized void start(FrameCallback pCallback) {
+        if (mThread != null) {
+            throw new IllegalStateException("already started");
+        }
+        mCallback = pCallback;
+        mRunning = true;
+        mThread = new Thread(this, TAG);
+        mThread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        mRunning = false;
+        final Thread thread = mThread;
+        mThread = null;
+        if (thread != null && thread != Thread.currentThread()) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mCallback = null;
+        mFreeBuffers.clear();
+    }
+
+    /**
+     * @return (long) Frames passed to the callback since creation.
+     */
+    public long getFramesDelivered() {
+        return mFramesDelivered;
+    }
+
+    /**
+     * @return (long) Frames skipped at a fixed rate because no buffer was free.
+     */
+    public long getFramesDropped() {
+        return mFramesDropped;
+    }
+
+    // ------------------------------------------------------------------------
+
+    @Override
+    public void run() {
+        final long frameIntervalNanos = mFramesPerSecond > 0f ? (long) (1e9 / mFramesPerSecond) : 0L;
+        final long startNanos = System.nanoTime();
+        long nextFrameNanos = startNanos;
+
+        DataInputStream in = null;
+        boolean readSinceOpen = false;
+        try {
+            in = openFrames();
+            while (mRunning) {
+                // Pace fixed rate replay.
+                if (frameIntervalNanos > 0) {
+                    final long waitNanos = nextFrameNanos - System.nanoTime();
+                    if (waitNanos > 0) {
+                        TimeUnit.NANOSECONDS.sleep(waitNanos);
+                    }
+                    nextFrameNanos += frameIntervalNanos;
+                }
+
+                final byte[] buffer = frameIntervalNanos > 0
+                        ? mFreeBuffers.poll()
+                        : mFreeBuffers.poll(BUFFER_POLL_MSECS, TimeUnit.MILLISECONDS);
+                if (buffer == null && frameIntervalNanos == 0) {
+                    continue;  // still waiting for the consumer
+                }
+
+                // Read (or skip) the next frame, at end of file loop or finish.
+                boolean haveFrame;
+                try {
+                    if (buffer != null) {
+                        in.readFully(buffer, 0, mFrameSize);
+                    } else {
+                        skipFully(in, mFrameSize);
+                    }
+                    haveFrame = true;
+                } catch (EOFException e) {
+                    haveFrame = false;
+                }
+                if (!haveFrame) {
+                    if (buffer != null) {
+                        mFreeBuffers.offer(buffer);
+                    }
+                    in.close();
+                    if (!readSinceOpen) {
+                        // Truncated since build, looping would spin without delivering anything.
+                        throw new IOException(mFile + ": no frames");
+                    }
+                    if (!mLoop) {
+                        break;
+                    }
+                    in = openFrames();
+                    readSinceOpen = false;
+                    continue;
+                }
+                readSinceOpen = true;
+
+                if (buffer == null) {
+                    mFramesDropped++;
+                    continue;
+                }
+
+                final FrameCallback callback = mCallback;
+                if (callback == null || !mRunning) {
+                    break;
+                }
+                mFramesDelivered++;
+                callback.onFrame(buffer, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+            }
+        } catch (InterruptedException e) {
+            // stop
+        } catch (IOException e) {
+            final FrameCallback callback = mCallback;
+            if (callback != null && mRunning) {
+                callback.onError(e);
+            }
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private DataInputStream openFrames() throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile), mFrameSize));
+        skipFully(in, HEADER_SIZE);
+        return in;
+    }
+
+    private static void skipFully(DataInputStream pIn, int pBytes) throws IOException {
+        int remaining = pBytes;
+        while (remaining > 0) {
+            final int skipped = pIn.skipBytes(remaining);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            remaining -= skipped;
+        }
+    }
+}
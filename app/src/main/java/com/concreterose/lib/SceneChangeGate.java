@@ -0,0 +1,212 @@
+package com.concreterose.lib;
+
+/**
+ * Decide whether a camera frame changed enough to be worth classifying,
+ * from the luma plane alone.
+ *
+ * Luma is sampled on a fixed grid (GRID_COLUMNS x GRID_ROWS points, about
+ * 800 reads however large the preview) and compared with the samples of
+ * the last frame committed, normally the last one classified.  The score
+ * is the mean absolute difference, 0 to 255.  Comparing against the last
+ * committed frame rather than the previous one means slow pans and
+ * drifting light still add up to a change.  A frame is also let through
+ * once the last committed one is older than the staleness limit, so
+ * results never freeze.
+ *
+ * Not thread safe.  Pure Java, no Android dependencies.
+ */
+public final class SceneChangeGate {
+    private final static int GRID_COLUMNS = 32;
+    private final static int GRID_ROWS = 24;
+
+    @SuppressWarnings("WeakerAccess")
+    public final static float DEFAULT_THRESHOLD = 6.0f;
+    @SuppressWarnings("WeakerAccess")
+    public final static long DEFAULT_MAX_STALE_MSECS = 1000;
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Create a SceneChangeGate.
+     */
+    public final static class Builder {
+        private float mThreshold = DEFAULT_THRESHOLD;
+        private long mMaxStaleMsecs = DEFAULT_MAX_STALE_MSECS;
+
+        /**
+         * @param pThreshold (float) Smallest score, mean absolute luma difference, that counts as a change.
+         * @return (Builder) Self, for chaining.
+         */
+        @SuppressWarnings("unused")
+        public Builder setThreshold(float pThreshold) {
+            mThreshold = pThreshold;
+            return this;
+        }
+
+        /**
+         * @param pMaxStaleMsecs (long) Let a frame through after this long without one, 0 to never force.
+         * @return (Builder) Self, for chaining.
+         */
+        @SuppressWarnings("unused")
+        public Builder setMaxStaleMsecs(long pMaxStaleMsecs) {
+            mMaxStaleMsecs = pMaxStaleMsecs;
+            return this;
+        }
+
+        /**
+         * Build the SceneChangeGate with the current build options.
+         *
+         * @return (SceneChangeGate) SceneChangeGate.
+         */
+        public SceneChangeGate build() {
+            return new SceneChangeGate(this);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private final float mThreshold;
+    private final long mMaxStaleMsecs;
+
+    private final byte[] mSamples = new byte[GRID_COLUMNS * GRID_ROWS];
+    private final byte[] mReference = new byte[GRID_COLUMNS * GRID_ROWS];
+    private boolean mHaveReference = false;
+    private int mWidth = 0;
+    private int mHeight = 0;
+    private long mAcceptedMsecs = 0L;
+    private boolean mHaveSamples = false;
+    private long mScoredMsecs = 0L;
+
+    private float mScore = 0.0f;
+    private boolean mStale = false;
+    private long mAcceptedCount = 0L;
+    private long mSkippedCount = 0L;
+
+    private SceneChangeGate(Builder pBuilder) {
+        mThreshold = pBuilder.mThreshold;
+        mMaxStaleMsecs = pBuilder.mMaxStaleMsecs;
+    }
+
+    /**
+     * Score a frame and decide whether to pass it on.  An accepted frame
+     * becomes the new reference, the same as check followed by commit.
+     *
+     * @param pLuma (byte[]) Luma plane, such as an NV21 buffer.  Only read.
+     * @param pWidth (int) Width, also the row stride.
+     * @param pHeight (int) Height.
+     * @param pNowMsecs (long) Frame time.
+     * @return (boolean) True to classify this frame.
+     */
+    @SuppressWarnings("unused")
+    public boolean accept(byte[] pLuma, int pWidth, int pHeight, long pNowMsecs) {
+        if (!check(pLuma, pWidth, pHeight, pNowMsecs)) {
+            return false;
+        }
+        commit();
+        return true;
+    }
+
+    /**
+     * Score a frame and decide whether it changed enough, without touching
+     * the reference.  Call commit once the frame is really classified, so
+     * a frame dropped later (rate limiting, say) never becomes the
+     * reference and its change is still seen on the next frame.
+     *
+     * @param pLuma (byte[]) Luma plane, such as an NV21 buffer.  Only read.
+     * @param pWidth (int) Width, also the row stride.
+     * @param pHeight (int) Height.
+     * @param pNowMsecs (long) Frame time.
+     * @return (boolean) True if the frame is worth classifying.
+     */
+    public boolean check(byte[] pLuma, int pWidth, int pHeight, long pNowMsecs) {
+        if (pWidth != mWidth || pHeight != mHeight) {
+            mWidth = pWidth;
+            mHeight = pHeight;
+            mHaveReference = false;
+        }
+
+        int sum = 0;
+        int i = 0;
+        for (int row = 0; row < GRID_ROWS; row++) {
+            // Sample cell centres.
+            final int rowIndex = ((2 * row + 1) * pHeight / (2 * GRID_ROWS)) * pWidth;
+            for (int column = 0; column < GRID_COLUMNS; column++) {
+                final byte sample = pLuma[rowIndex + (2 * column + 1) * pWidth / (2 * GRID_COLUMNS)];
+                sum += Math.abs((sample & 0xFF) - (mReference[i] & 0xFF));
+                mSamples[i++] = sample;
+            }
+        }
+        mScore = mHaveReference ? (float) sum / mSamples.length : 255.0f;
+        mScoredMsecs = pNowMsecs;
+        mHaveSamples = true;
+
+        final boolean stale = mMaxStaleMsecs > 0 && pNowMsecs - mAcceptedMsecs >= mMaxStaleMsecs;
+        final boolean changed = !mHaveReference || mScore >= mThreshold;
+        mStale = stale && !changed;
+        if (changed || stale) {
+            return true;
+        }
+        mSkippedCount++;
+        return false;
+    }
+
+    /**
+     * Make the frame last passed to check the new reference.  Does nothing
+     * if no frame was checked since the last commit or reset.
+     */
+    public void commit() {
+        if (!mHaveSamples) {
+            return;
+        }
+        System.arraycopy(mSamples, 0, mReference, 0, mSamples.length);
+        mHaveReference = true;
+        mHaveSamples = false;
+        mAcceptedMsecs = mScoredMsecs;
+        mAcceptedCount++;
+    }
+
+    /**
+     * Forget the reference, the next frame is let through.
+     */
+    @SuppressWarnings("unused")
+    public void reset() {
+        mHaveReference = false;
+        mHaveSamples = false;
+    }
+
+    /**
+     * Score of the last frame passed to check or accept, for tuning the threshold.
+     *
+     * @return (float) Mean absolute luma difference from the reference, 255 with no reference.
+     */
+    public float getLastScore() {
+        return mScore;
+    }
+
+    /**
+     * Whether the last frame passed to check or accept was only let through
+     * because the reference was stale.  Such a frame looks like the last
+     * classified one, so callers should not answer it from a result cache.
+     *
+     * @return (boolean) True if let through for staleness alone.
+     */
+    public boolean isLastStale() {
+        return mStale;
+    }
+
+    /**
+     * @return (long) Frames committed as the reference.
+     */
+    @SuppressWarnings("unused")
+    public long getAcceptedCount() {
+        return mAcceptedCount;
+    }
+
+    /**
+     * @return (long) Frames held back as unchanged.
+     */
+    @SuppressWarnings("unused")
+    public long getSkippedCount() {
+        return mSkippedCount;
+    }
+}
@@ -0,0 +1,189 @@
+package com.concreterose.lib;
+
+/**
+ * Reject camera frames that are too blurry to classify, from the luma
+ * plane alone.
+ *
+ * The luma is box filtered down to about TARGET_WIDTH columns, each small
+ * pixel the mean of a step x step block, then the variance of its
+ * 4-neighbour Laplacian is the sharpness score.  Averaging whole blocks
+ * rather than picking pixels keeps sensor noise from aliasing into the
+ * score, so the same threshold works across preview sizes.  Motion
+ * blur and defocus remove the edges the Laplacian responds to, so the
+ * score drops sharply on bad frames.  Frames captured while the camera is
+ * focusing are rejected without scoring.
+ *
+ * The score depends on scene texture as well as blur, so the threshold is
+ * kept low: it catches smeared frames, not merely soft ones.
+ *
+ * Not thread safe.  Pure Java, no Android dependencies.
+ */
+public final class SharpnessGate {
+    private final static int TARGET_WIDTH = 96;
+
+    // Sensor noise of standard deviation s scores about 20 s^2 / step^2
+    // after block averaging, a few units for ordinary preview noise, so
+    // this sits just above the noise floor.
+    @SuppressWarnings("WeakerAccess")
+    public final static float DEFAULT_MIN_SHARPNESS = 20.0f;
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Create a SharpnessGate.
+     */
+    public final static class Builder {
+        private float mMinSharpness = DEFAULT_MIN_SHARPNESS;
+
+        /**
+         * @param pMinSharpness (float) Lowest Laplacian variance let through.
+         * @return (Builder) Self, for chaining.
+         */
+        @SuppressWarnings("unused")
+        public Builder setMinSharpness(float pMinSharpness) {
+            mMinSharpness = pMinSharpness;
+            return this;
+        }
+
+        /**
+         * Build the SharpnessGate with the current build options.
+         *
+         * @return (SharpnessGate) SharpnessGate.
+         */
+        public SharpnessGate build() {
+            return new SharpnessGate(this);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private final float mMinSharpness;
+
+    // Downsampled luma, reallocated when the frame size changes.
+    private int[] mSmall = new int[0];
+    private int mWidth = 0;
+    private int mHeight = 0;
+
+    private float mSharpness = 0.0f;
+    private long mAcceptedCount = 0L;
+    private long mBlurryCount = 0L;
+    private long mFocusingCount = 0L;
+
+    private SharpnessGate(Builder pBuilder) {
+        mMinSharpness = pBuilder.mMinSharpness;
+    }
+
+    /**
+     * Decide whether a frame is sharp enough to use.
+     *
+     * @param pLuma (byte[]) Luma plane, such as an NV21 buffer.  Only read.
+     * @param pWidth (int) Width, also the row stride.
+     * @param pHeight (int) Height.
+     * @param pFocusing (boolean) True while autofocus is moving the lens, see CameraLib.isFocusing.
+     * @return (boolean) True to use this frame.
+     */
+    public boolean accept(byte[] pLuma, int pWidth, int pHeight, boolean pFocusing) {
+        if (pFocusing) {
+            mFocusingCount++;
+            return false;
+        }
+        mSharpness = measure(pLuma, pWidth, pHeight);
+        if (mSharpness < mMinSharpness) {
+            mBlurryCount++;
+            return false;
+        }
+        mAcceptedCount++;
+        return true;
+    }
+
+    /**
+     * Score a frame without counting it.
+     *
+     * @param pLuma (byte[]) Luma plane.
+     * @param pWidth (int) Width, also the row stride.
+     * @param pHeight (int) Height.
+     * @return (float) Variance of the Laplacian of the block averaged luma, in luma units squared.
+     */
+    public float measure(byte[] pLuma, int pWidth, int pHeight) {
+        // Box filter step x step blocks, summing every pixel of each.
+        final int step = Math.max(1, pWidth / TARGET_WIDTH);
+        final int width = pWidth / step;
+        final int height = pHeight / step;
+        if (width < 3 || height < 3) {
+            return 0.0f;
+        }
+        if (width != mWidth || height != mHeight) {
+            mWidth = width;
+            mHeight = height;
+            mSmall = new int[width * height];
+        }
+
+        for (int y = 0; y < height; y++) {
+            final int base = y * width;
+            for (int x = 0; x < width; x++) {
+                mSmall[base + x] = 0;
+            }
+            for (int r = 0; r < step; r++) {
+                int p = (y * step + r) * pWidth;
+                for (int x = 0; x < width; x++) {
+                    int sum = 0;
+                    for (int k = 0; k < step; k++) {
+                        sum += pLuma[p++] & 0xFF;
+                    }
+                    mSmall[base + x] += sum;
+                }
+            }
+        }
+
+        // Samples are block sums, area times the mean luma, so the Laplacian
+        // is too and its variance is divided by the area squared.
+        long sum = 0L;
+        long sumSquares = 0L;
+        for (int y = 1; y < height - 1; y++) {
+            int j = y * width + 1;
+            for (int x = 1; x < width - 1; x++, j++) {
+                final int laplacian = mSmall[j - 1] + mSmall[j + 1] + mSmall[j - width] + mSmall[j + width]
+                        - 4 * mSmall[j];
+                sum += laplacian;
+                sumSquares += (long) laplacian * laplacian;
+            }
+        }
+        final double count = (double) (width - 2) * (height - 2);
+        final double mean = sum / count;
+        final double area = (double) step * step;
+        return (float) ((sumSquares / count - mean * mean) / (area * area));
+    }
+
+    /**
+     * Score of the last frame accept measured, for tuning the threshold.
+     *
+     * @return (float) Laplacian variance.
+     */
+    public float getLastSharpness() {
+        return mSharpness;
+    }
+
+    /**
+     * @return (long) Frames let through.
+     */
+    @SuppressWarnings("unused")
+    public long getAcceptedCount() {
+        return mAcceptedCount;
+    }
+
+    /**
+     * @return (long) Frames rejected as blurry.
+     */
+    @SuppressWarnings("unused")
+    public long getBlurryCount() {
+        return mBlurryCount;
+    }
+
+    /**
+     * @return (long) Frames rejected because autofocus was running.
+     */
+    @SuppressWarnings("unused")
+    public long getFocusingCount() {
+        return mFocusingCount;
+    }
+}
@@ -0,0 +1,179 @@
+package com.concreterose.lib;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Pick the best K scores out of a classifier's output row.
+ *
+ * Primitive partial selection: a small array kept sorted by insertion, no
+ * boxing and no allocation per call.  Quantized (uint8 or int32) outputs are
+ * selected on the raw values, since dequantizing keeps the order, and only
+ * the selected few are dequantized as scale * (raw - zeroPoint).
+ *
+ * The capacity is fixed, make a new selector to change it.  Not thread
+ * safe.  Pure Java, no Android dependencies.
+ */
+public final class TopKSelector {
+    private final int[] mIndices;
+    private final float[] mScores;
+    private final int[] mRawScores;
+    private int mCount = 0;
+
+    /**
+     * @param pCapacity (int) Most results selected, at least 1.
+     */
+    public TopKSelector(int pCapacity) {
+        if (pCapacity < 1) {
+            throw new IllegalArgumentException("capacity " + pCapacity);
+        }
+        mIndices = new int[pCapacity];
+        mScores = new float[pCapacity];
+        mRawScores = new int[pCapacity];
+    }
+
+    /**
+     * A confidence threshold in quantized output units, so raw scores are
+     * compared with it directly.  Not rounded: a raw score passes only if
+     * its dequantized confidence is above the threshold.
+     *
+     * @param pThreshold (float) Confidence threshold.
+     * @param pScale (float) Confidence per quantized step, positive.
+     * @param pZeroPoint (int) Quantized value of confidence 0.
+     * @return (float) Raw threshold.
+     */
+    public static float getRawThreshold(float pThreshold, float pScale, int pZeroPoint) {
+        return pThreshold / pScale + pZeroPoint;
+    }
+
+    /**
+     * @return (int) Most results selected.
+     */
+    public int getCapacity() {
+        return mScores.length;
+    }
+
+    /**
+     * @return (int) Results from the last select, best first.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @param pRank (int) Result, 0 is the best.
+     * @return (int) Class index, the position in the output row.
+     */
+    public int getIndex(int pRank) {
+        return mIndices[pRank];
+    }
+
+    /**
+     * @param pRank (int) Result, 0 is the best.
+     * @return (float) Score, dequantized for quantized outputs.
+     */
+    public float getScore(int pRank) {
+        return mScores[pRank];
+    }
+
+    /**
+     * Select from float scores.
+     *
+     * @param pScores (FloatBuffer) Output, read with absolute gets.
+     * @param pOffset (int) Start of the row.
+     * @param pLength (int) Number of classes in the row.
+     * @param pThreshold (float) Only scores above this are selected.
+     * @param pK (int) Most results, capped at the capacity.
+     * @return (int) Number selected.
+     */
+    public int select(FloatBuffer pScores, int pOffset, int pLength, float pThreshold, int pK) {
+        final int k = Math.min(pK, mScores.length);
+        int count = 0;
+        for (int i = 0; i < pLength && k > 0; i++) {
+            final float score = pScores.get(pOffset + i);
+            if (score <= pThreshold || (count == k && score <= mScores[k - 1])) {
+                continue;
+            }
+            // Insert in order, dropping the smallest when full.
+            int j = count < k ? count++ : k - 1;
+            while (j > 0 && mScores[j - 1] < score) {
+                mScores[j] = mScores[j - 1];
+                mIndices[j] = mIndices[j - 1];
+                j--;
+            }
+            mScores[j] = score;
+            mIndices[j] = i;
+        }
+        mCount = count;
+        return count;
+    }
+
+    /**
+     * Select from uint8 scores.
+     *
+     * @param pScores (ByteBuffer) Output, read with absolute gets.
+     * @param pOffset (int) Start of the row.
+     * @param pLength (int) Number of classes in the row.
+     * @param pRawThreshold (float) Only raw scores above this are selected, see getRawThreshold.
+     * @param pK (int) Most results, capped at the capacity.
+     * @param pScale (float) Confidence per quantized step.
+     * @param pZeroPoint (int) Quantized value of confidence 0.
+     * @return (int) Number selected.
+     */
+    public int selectQuantized(ByteBuffer pScores, int pOffset, int pLength, float pRawThreshold, int pK,
+                               float pScale, int pZeroPoint) {
+        final int k = Math.min(pK, mScores.length);
+        int count = 0;
+        for (int i = 0; i < pLength && k > 0; i++) {
+            count = insertRaw(i, pScores.get(pOffset + i) & 0xFF, pRawThreshold, k, count);
+        }
+        return dequantize(count, pScale, pZeroPoint);
+    }
+
+    /**
+     * Select from int32 scores.
+     *
+     * @param pScores (IntBuffer) Output, read with absolute gets.
+     * @param pOffset (int) Start of the row.
+     * @param pLength (int) Number of classes in the row.
+     * @param pRawThreshold (float) Only raw scores above this are selected, see getRawThreshold.
+     * @param pK (int) Most results, capped at the capacity.
+     * @param pScale (float) Confidence per quantized step.
+     * @param pZeroPoint (int) Quantized value of confidence 0.
+     * @return (int) Number selected.
+     */
+    public int selectQuantized(IntBuffer pScores, int pOffset, int pLength, float pRawThreshold, int pK,
+                               float pScale, int pZeroPoint) {
+        final int k = Math.min(pK, mScores.length);
+        int count = 0;
+        for (int i = 0; i < pLength && k > 0; i++) {
+            count = insertRaw(i, pScores.get(pOffset + i), pRawThreshold, k, count);
+        }
+        return dequantize(count, pScale, pZeroPoint);
+    }
+
+    private int insertRaw(int pIndex, int pRaw, float pRawThreshold, int pK, int pCount) {
+        if (pRaw <= pRawThreshold || (pCount == pK && pRaw <= mRawScores[pK - 1])) {
+            return pCount;
+        }
+        final int count = pCount < pK ? pCount + 1 : pK;
+        int j = count - 1;
+        while (j > 0 && mRawScores[j - 1] < pRaw) {
+            mRawScores[j] = mRawScores[j - 1];
+            mIndices[j] = mIndices[j - 1];
+            j--;
+        }
+        mRawScores[j] = pRaw;
+        mIndices[j] = pIndex;
+        return count;
+    }
+
+    private int dequantize(int pCount, float pScale, int pZeroPoint) {
+        for (int i = 0; i < pCount; i++) {
+            mScores[i] = pScale * (mRawScores[i] - pZeroPoint);
+        }
+        mCount = pCount;
+        return pCount;
+    }
+}
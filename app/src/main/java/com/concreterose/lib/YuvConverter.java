@@ -0,0 +1,275 @@
+package com.concreterose.lib;
+
+/**
+ * Convert camera preview YUV buffers directly to ARGB_8888 pixels.
+ *
+ * Avoids the YuvImage.compressToJpeg / BitmapFactory.decodeByteArray round
+ * trip.  Uses precomputed integer lookup tables (BT.601, video range) so the
+ * inner loop is table reads, adds and clamps.  Pure Java, no Android
+ * dependencies, so it can be unit tested on the JVM.
+ *
+ * Rotation and mirroring can be folded into the conversion: each source
+ * pixel is written straight to its rotated destination index, so no second
+ * copy through a Canvas and Matrix is needed.  The orientation is a
+ * clockwise rotation (0, 90, 180 or 270 degrees) optionally followed by a
+ * vertical flip, which covers all eight orientations.
+ */
+public final class YuvConverter {
+
+    // Fixed point with 10 fractional bits, results clamped to 18 bits before shifting down.
+    private final static int MAX_CHANNEL = 262143;
+
+    private final static int[] Y_TABLE = new int[256];
+    private final static int[] V_TO_R_TABLE = new int[256];
+    private final static int[] V_TO_G_TABLE = new int[256];
+    private final static int[] U_TO_G_TABLE = new int[256];
+    private final static int[] U_TO_B_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            Y_TABLE[i] = Math.max(0, 1192 * (i - 16));
+            V_TO_R_TABLE[i] = 1634 * (i - 128);
+            V_TO_G_TABLE[i] = 833 * (i - 128);
+            U_TO_G_TABLE[i] = 400 * (i - 128);
+            U_TO_B_TABLE[i] = 2066 * (i - 128);
+        }
+    }
+
+    private YuvConverter() {
+    }
+
+    /**
+     * Size in bytes of an NV21 buffer.
+     *
+     * @param pWidth (int) Image width.
+     * @param pHeight (int) Image height.
+     * @return (int) Buffer size.
+     */
+    public static int getNv21BufferSize(int pWidth, int pHeight) {
+        return pWidth * pHeight + ((pWidth + 1) / 2) * ((pHeight + 1) / 2) * 2;
+    }
+
+    /**
+     * Size in bytes of a YV12 buffer, including the 16 byte row alignment.
+     *
+     * See http://developer.android.com/reference/android/hardware/Camera.Parameters.html#setPreviewFormat(int)
+     *
+     * @param pWidth (int) Image width.
+     * @param pHeight (int) Image height.
+     * @return (int) Buffer size.
+     */
+    public static int getYv12BufferSize(int pWidth, int pHeight) {
+        final int yStride = getYv12YStride(pWidth);
+        final int uvStride = getYv12UvStride(pWidth);
+        return yStride * pHeight + uvStride * (pHeight / 2) * 2;
+    }
+
+    private static int getYv12YStride(int pWidth) {
+        return (int) Math.ceil(pWidth / 16.0) * 16;
+    }
+
+    private static int getYv12UvStride(int pWidth) {
+        return (int) Math.ceil((getYv12YStride(pWidth) / 2) / 16.0) * 16;
+    }
+
+    /**
+     * Convert an NV21 image (Y plane, then interleaved V/U at half resolution).
+     *
+     * @param pData (byte[]) NV21 data.
+     * @param pWidth (int) Image width.
+     * @param pHeight (int) Image height.
+     * @param pOut (int[]) Destination ARGB pixels, at least width * height, row stride is width.
+     */
+    public static void nv21ToArgb(byte[] pData, int pWidth, int pHeight, int[] pOut) {
+        checkSizes(pData.length, getNv21BufferSize(pWidth, pHeight), pOut.length, pWidth * pHeight);
+
+        final int uvStride = ((pWidth + 1) / 2) * 2;
+        final int frameSize = pWidth * pHeight;
+        int outIndex = 0;
+        for (int y = 0; y < pHeight; y++) {
+            final int yRowIndex = y * pWidth;
+            final int uvRowIndex = frameSize + (y >> 1) * uvStride;
+            for (int x = 0; x < pWidth; x++) {
+                final int uvIndex = uvRowIndex + (x & ~1);
+                pOut[outIndex++] = toArgb(
+                        pData[yRowIndex + x] & 0xFF,
+                        pData[uvIndex + 1] & 0xFF,
+                        pData[uvIndex] & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * Convert an NV21 image, rotating and mirroring at the same time.
+     *
+     * @param pData (byte[]) NV21 data.
+     * @param pWidth (int) Source image width.
+     * @param pHeight (int) Source image height.
+     * @param pRotation (int) Clockwise rotation in degrees: 0, 90, 180 or 270.
+     * @param pFlipVertical (boolean) Mirror top to bottom after rotating.
+     * @param pOut (int[]) Destination ARGB pixels, at least width * height.  Row
+     *             stride is the rotated width (height for 90 and 270).
+     */
+    public static void nv21ToArgb(byte[] pData, int pWidth, int pHeight, int pRotation, boolean pFlipVertical, int[] pOut) {
+        checkSizes(pData.length, getNv21BufferSize(pWidth, pHeight), pOut.length, pWidth * pHeight);
+
+        final int origin = getDestinationIndex(0, 0, pWidth, pHeight, pRotation, pFlipVertical);
+        final int stepX = getDestinationIndex(1, 0, pWidth, pHeight, pRotation, pFlipVertical) - origin;
+        final int stepY = getDestinationIndex(0, 1, pWidth, pHeight, pRotation, pFlipVertical) - origin;
+
+        final int uvStride = ((pWidth + 1) / 2) * 2;
+        final int frameSize = pWidth * pHeight;
+        for (int y = 0; y < pHeight; y++) {
+            final int yRowIndex = y * pWidth;
+            final int uvRowIndex = frameSize + (y >> 1) * uvStride;
+            int outIndex = origin + y * stepY;
+            for (int x = 0; x < pWidth; x++) {
+                final int uvIndex = uvRowIndex + (x & ~1);
+                pOut[outIndex] = toArgb(
+                        pData[yRowIndex + x] & 0xFF,
+                        pData[uvIndex + 1] & 0xFF,
+                        pData[uvIndex] & 0xFF);
+                outIndex += stepX;
+            }
+        }
+    }
+
+    /**
+     * Rotate and mirror ARGB pixels, with the same orientation as the NV21
+     * conversion.  Used for pictures, which are decoded from JPEG.
+     *
+     * @param pPixels (int[]) Source pixels, row stride is width.
+     * @param pWidth (int) Source image width.
+     * @param pHeight (int) Source image height.
+     * @param pRotation (int) Clockwise rotation in degrees: 0, 90, 180 or 270.
+     * @param pFlipVertical (boolean) Mirror top to bottom after rotating.
+     * @param pOut (int[]) Destination pixels, at least width * height, must not be the source.
+     */
+    public static void rotateArgb(int[] pPixels, int pWidth, int pHeight, int pRotation, boolean pFlipVertical, int[] pOut) {
+        checkSizes(pPixels.length, pWidth * pHeight, pOut.length, pWidth * pHeight);
+
+        final int origin = getDestinationIndex(0, 0, pWidth, pHeight, pRotation, pFlipVertical);
+        final int stepX = getDestinationIndex(1, 0, pWidth, pHeight, pRotation, pFlipVertical) - origin;
+        final int stepY = getDestinationIndex(0, 1, pWidth, pHeight, pRotation, pFlipVertical) - origin;
+
+        int inIndex = 0;
+        for (int y = 0; y < pHeight; y++) {
+            int outIndex = origin + y * stepY;
+            for (int x = 0; x < pWidth; x++) {
+                pOut[outIndex] = pPixels[inIndex++];
+                outIndex += stepX;
+            }
+        }
+    }
+
+    /**
+     * Where a source pixel lands after rotating and mirroring.  Linear in x
+     * and y, so the conversion loops only need the index of (0, 0) and the
+     * steps for x and y.
+     *
+     * @param pX (int) Source column.
+     * @param pY (int) Source row.
+     * @param pWidth (int) Source image width.
+     * @param pHeight (int) Source image height.
+     * @param pRotation (int) Clockwise rotation in degrees: 0, 90, 180 or 270.
+     * @param pFlipVertical (boolean) Mirror top to bottom after rotating.
+     * @return (int) Index into the destination pixels.
+     */
+    public static int getDestinationIndex(int pX, int pY, int pWidth, int pHeight, int pRotation, boolean pFlipVertical) {
+        final int column;
+        int row;
+        final int dstWidth;
+        final int dstHeight;
+        switch (pRotation) {
+            case 0:
+                column = pX;
+                row = pY;
+                dstWidth = pWidth;
+                dstHeight = pHeight;
+                break;
+            case 90:
+                column = pHeight - 1 - pY;
+                row = pX;
+                dstWidth = pHeight;
+                dstHeight = pWidth;
+                break;
+            case 180:
+                column = pWidth - 1 - pX;
+                row = pHeight - 1 - pY;
+                dstWidth = pWidth;
+                dstHeight = pHeight;
+                break;
+            case 270:
+                column = pY;
+                row = pWidth - 1 - pX;
+                dstWidth = pHeight;
+                dstHeight = pWidth;
+                break;
+            default:
+                throw new IllegalArgumentException("rotation " + pRotation);
+        }
+        if (pFlipVertical) {
+            row = dstHeight - 1 - row;
+        }
+        return row * dstWidth + column;
+    }
+
+    /**
+     * Convert a YV12 image (Y plane, then V plane, then U plane, 16 byte aligned rows).
+     *
+     * @param pData (byte[]) YV12 data.
+     * @param pWidth (int) Image width.
+     * @param pHeight (int) Image height.
+     * @param pOut (int[]) Destination ARGB pixels, at least width * height, row stride is width.
+     */
+    public static void yv12ToArgb(byte[] pData, int pWidth, int pHeight, int[] pOut) {
+        checkSizes(pData.length, getYv12BufferSize(pWidth, pHeight), pOut.length, pWidth * pHeight);
+
+        final int yStride = getYv12YStride(pWidth);
+        final int uvStride = getYv12UvStride(pWidth);
+        final int vPlaneIndex = yStride * pHeight;
+        final int uPlaneIndex = vPlaneIndex + uvStride * (pHeight / 2);
+        int outIndex = 0;
+        for (int y = 0; y < pHeight; y++) {
+            final int yRowIndex = y * yStride;
+            final int uvRowOffset = (y >> 1) * uvStride;
+            for (int x = 0; x < pWidth; x++) {
+                final int uvOffset = uvRowOffset + (x >> 1);
+                pOut[outIndex++] = toArgb(
+                        pData[yRowIndex + x] & 0xFF,
+                        pData[uPlaneIndex + uvOffset] & 0xFF,
+                        pData[vPlaneIndex + uvOffset] & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * Convert one pixel.
+     *
+     * @param pY (int) Luma, 0..255.
+     * @param pU (int) Cb, 0..255.
+     * @param pV (int) Cr, 0..255.
+     * @return (int) Opaque ARGB color.
+     */
+    public static int toArgb(int pY, int pU, int pV) {
+        final int y = Y_TABLE[pY];
+        int r = y + V_TO_R_TABLE[pV];
+        int g = y - V_TO_G_TABLE[pV] - U_TO_G_TABLE[pU];
+        int b = y + U_TO_B_TABLE[pU];
+
+        r = r < 0 ? 0 : (r > MAX_CHANNEL ? MAX_CHANNEL : r);
+        g = g < 0 ? 0 : (g > MAX_CHANNEL ? MAX_CHANNEL : g);
+        b = b < 0 ? 0 : (b > MAX_CHANNEL ? MAX_CHANNEL : b);
+
+        return 0xFF000000 | ((r << 6) & 0xFF0000) | ((g >> 2) & 0xFF00) | ((b >> 10) & 0xFF);
+    }
+
+    private static void checkSizes(int pDataLength, int pDataRequired, int pOutLength, int pOutRequired) {
+        if (pDataLength < pDataRequired) {
+            throw new IllegalArgumentException("data " + pDataLength + " < " + pDataRequired);
+        }
+        if (pOutLength < pOutRequired) {
+            throw new IllegalArgumentException("out " + pOutLength + " < " + pOutRequired);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.concreterose.lib;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Sample an NV21 preview buffer straight into a normalized float image, such
+ * as a model input tensor.
+ *
+ * Rotation, cropping and scaling are applied in one pass through an affine
+ * transform from destination to source pixels, so no intermediate bitmaps
+ * are needed.  The transform uses the Android Matrix value layout, so the
+ * inverse of a frame-to-crop Matrix can be passed in via Matrix.getValues.
+ *
+ * Output is interleaved RGB (NHWC), normalized as (value - mean) / std, or
+ * raw channel bytes for quantized (uint8) models.
+ */
+public final class YuvSampler {
+
+    @SuppressWarnings("WeakerAccess")
+    public final static int SAMPLE_NEAREST = 1;
+    @SuppressWarnings("WeakerAccess")
+    public final static int SAMPLE_BILINEAR = 2;
+
+    private final int mDstWidth;
+    private final int mDstHeight;
+    private final float mMean;
+    private final float mInvStd;
+    private final int mMode;
+
+    private int mSrcWidth = 0;
+    private int mSrcHeight = 0;
+    private int mUvStride = 0;
+
+    // Destination to source: srcX = m0 * x + m1 * y + m2, srcY = m3 * x + m4 * y + m5.
+    private final float[] mTransform = new float[6];
+
+    /**
+     * Create a sampler for a fixed destination size and normalization.
+     *
+     * @param pDstWidth (int) Destination width.
+     * @param pDstHeight (int) Destination height.
+     * @param pMean (float) Subtracted from each channel.
+     * @param pStd (float) Each channel is divided by this after subtracting the mean.
+     * @param pMode (int) SAMPLE_NEAREST or SAMPLE_BILINEAR.
+     */
+    public YuvSampler(int pDstWidth, int pDstHeight, float pMean, float pStd, int pMode) {
+        if (pMode != SAMPLE_NEAREST && pMode != SAMPLE_BILINEAR) {
+            throw new IllegalArgumentException("mode " + pMode);
+        }
+        mDstWidth = pDstWidth;
+        mDstHeight = pDstHeight;
+        mMean = pMean;
+        mInvStd = 1f / pStd;
+        mMode = pMode;
+    }
+
+    /**
+     * Set the source size and destination to source transform.
+     *
+     * @param pSrcWidth (int) Source (NV21) width.
+     * @param pSrcHeight (int) Source (NV21) height.
+     * @param pDstToSrcValues (float[]) At least 6 values in Android Matrix order (MSCALE_X, MSKEW_X, MTRANS_X, MSKEW_Y, MSCALE_Y, MTRANS_Y).
+     * @return (YuvSampler) Self, for chaining.
+     */
+    public YuvSampler setTransform(int pSrcWidth, int pSrcHeight, float[] pDstToSrcValues) {
+        mSrcWidth = pSrcWidth;
+        mSrcHeight = pSrcHeight;
+        mUvStride = ((pSrcWidth + 1) / 2) * 2;
+        System.arraycopy(pDstToSrcValues, 0, mTransform, 0, 6);
+        return this;
+    }
+
+    /**
+     * @return (boolean) True once setTransform was called, until then nothing is sampled.
+     */
+    public boolean hasTransform() {
+        return mSrcWidth > 0 && mSrcHeight > 0;
+    }
+
+    /**
+     * Sample an NV21 image into normalized interleaved RGB floats.
+     *
+     * @param pData (byte[]) NV21 data, size must match setTransform.
+     * @param pOut (float[]) Destination, at least dstWidth * dstHeight * 3.
+     * @return (boolean) False if no transform is set yet, the destination is untouched.
+     */
+    public boolean sampleNv21(byte[] pData, float[] pOut) {
+        return sampleNv21(pData, FloatBuffer.wrap(pOut));
+    }
+
+    /**
+     * Sample an NV21 image into normalized interleaved RGB floats, for
+     * instance straight into a direct buffer that is fed to a model.
+     * Written with absolute puts from index 0, the position is unchanged.
+     *
+     * @param pData (byte[]) NV21 data, size must match setTransform.
+     * @param pOut (FloatBuffer) Destination, capacity at least dstWidth * dstHeight * 3.
+     * @return (boolean) False if no transform is set yet, the destination is untouched.
+     */
+    public boolean sampleNv21(byte[] pData, FloatBuffer pOut) {
+        return sample(pData, pOut, null);
+    }
+
+    /**
+     * Sample an NV21 image into interleaved RGB bytes, unnormalized, for a
+     * quantized model input.  Written with absolute puts from index 0, the
+     * position is unchanged.
+     *
+     * @param pData (byte[]) NV21 data, size must match setTransform.
+     * @param pOut (ByteBuffer) Destination, capacity at least dstWidth * dstHeight * 3.
+     * @return (boolean) False if no transform is set yet, the destination is untouched.
+     */
+    public boolean sampleNv21(byte[] pData, ByteBuffer pOut) {
+        return sample(pData, null, pOut);
+    }
+
+    private boolean sample(byte[] pData, FloatBuffer pFloatOut, ByteBuffer pByteOut) {
+        // Frames can arrive before the camera size is known, skip them.
+        if (!hasTransform()) {
+            return false;
+        }
+        if (pData.length < YuvConverter.getNv21BufferSize(mSrcWidth, mSrcHeight)) {
+            throw new IllegalArgumentException("data " + pData.length);
+        }
+        final int outCapacity = pFloatOut != null ? pFloatOut.capacity() : pByteOut.capacity();
+        if (outCapacity < mDstWidth * mDstHeight * 3) {
+            throw new IllegalArgumentException("out " + outCapacity);
+        }
+
+        final float m0 = mTransform[0];
+        final float m1 = mTransform[1];
+        final float m2 = mTransform[2];
+        final float m3 = mTransform[3];
+        final float m4 = mTransform[4];
+        final float m5 = mTransform[5];
+
+        int outIndex = 0;
+        for (int y = 0; y < mDstHeight; y++) {
+            // Sample at destination pixel centers.
+            final float cy = y + 0.5f;
+            float sx = m0 * 0.5f + m1 * cy + m2;
+            float sy = m3 * 0.5f + m4 * cy + m5;
+            for (int x = 0; x < mDstWidth; x++) {
+                final int argb = mMode == SAMPLE_BILINEAR
+                        ? sampleBilinear(pData, sx, sy)
+                        : sampleNearest(pData, sx, sy);
+                if (pFloatOut != null) {
+                    pFloatOut.put(outIndex++, (((argb >> 16) & 0xFF) - mMean) * mInvStd);
+                    pFloatOut.put(outIndex++, (((argb >> 8) & 0xFF) - mMean) * mInvStd);
+                    pFloatOut.put(outIndex++, ((argb & 0xFF) - mMean) * mInvStd);
+                } else {
+                    pByteOut.put(outIndex++, (byte) (argb >> 16));
+                    pByteOut.put(outIndex++, (byte) (argb >> 8));
+                    pByteOut.put(outIndex++, (byte) argb);
+                }
+                sx += m0;
+                sy += m3;
+            }
+        }
+        return true;
+    }
+
+    private int sampleNearest(byte[] pData, float pSrcX, float pSrcY) {
+        final int x = clamp((int) Math.floor(pSrcX), mSrcWidth);
+        final int y = clamp((int) Math.floor(pSrcY), mSrcHeight);
+        final int uvIndex = mSrcWidth * mSrcHeight + (y >> 1) * mUvStride + (x & ~1);
+        return YuvConverter.toArgb(pData[y * mSrcWidth + x] & 0xFF, pData[uvIndex + 1] & 0xFF, pData[uvIndex] & 0xFF);
+    }
+
+    /**
+     * Bilinear luma, nearest chroma.  Chroma is already half resolution so
+     * interpolating it buys little.
+     */
+    private int sampleBilinear(byte[] pData, float pSrcX, float pSrcY) {
+        final float fx = pSrcX - 0.5f;
+        final float fy = pSrcY - 0.5f;
+        final int x0 = (int) Math.floor(fx);
+        final int y0 = (int) Math.floor(fy);
+        final float ax = fx - x0;
+        final float ay = fy - y0;
+
+        final int xa = clamp(x0, mSrcWidth);
+        final int xb = clamp(x0 + 1, mSrcWidth);
+        final int ya = clamp(y0, mSrcHeight) * mSrcWidth;
+        final int yb = clamp(y0 + 1, mSrcHeight) * mSrcWidth;
+
+        final float top = (pData[ya + xa] & 0xFF) * (1f - ax) + (pData[ya + xb] & 0xFF) * ax;
+        final float bottom = (pData[yb + xa] & 0xFF) * (1f - ax) + (pData[yb + xb] & 0xFF) * ax;
+        final int luma = (int) (top * (1f - ay) + bottom * ay + 0.5f);
+
+        final int x = clamp((int) Math.floor(pSrcX), mSrcWidth);
+        final int y = clamp((int) Math.floor(pSrcY), mSrcHeight);
+        final int uvIndex = mSrcWidth * mSrcHeight + (y >> 1) * mUvStride + (x & ~1);
+        return YuvConverter.toArgb(luma, pData[uvIndex + 1] & 0xFF, pData[uvIndex] & 0xFF);
+    }
+
+    private static int clamp(int pValue, int pSize) {
+        return pValue < 0 ? 0 : (pValue >= pSize ? pSize - 1 : pValue);
+    }
+}
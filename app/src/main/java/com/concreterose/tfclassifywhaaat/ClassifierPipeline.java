@@ -0,0 +1,264 @@
+package com.concreterose.tfclassifywhaaat;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import org.tensorflow.demo.Classifier;
+import org.tensorflow.demo.PipelinedClassifier;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Three stage classification pipeline over one classifier session.
+ *
+ * The submitting thread preprocesses each image into a free input slot,
+ * a run thread feeds, runs and fetches, and a collect thread selects the
+ * best results and calls the listener.  With two or more slots the next
+ * image is normalized while the previous one is inside the model, and
+ * result selection overlaps the next run, so throughput approaches the
+ * model's own run time.  A single image passes straight through, only
+ * thread handoffs are added to its latency.
+ *
+ * submit blocks while every slot is busy, which is the backpressure for
+ * the producer.  Results arrive in submission order.
+ */
+public final class ClassifierPipeline {
+    private final static String TAG = ClassifierPipeline.class.getSimpleName();
+
+    @SuppressWarnings("WeakerAccess")
+    public final static int DEFAULT_NUM_SLOTS = 2;
+    @SuppressWarnings("WeakerAccess")
+    public final static int DEFAULT_MAX_RESULTS = 3;
+
+    // Passed down the stage queues to stop the threads.
+    private final static int STOP = -1;
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Hear results in submission order, on the collect thread.
+     */
+    public interface Listener {
+
+        /**
+         * @param pSequence (long) Value returned by submit.
+         * @param pResults (Classifier.Results) Results, only valid until this returns.
+         */
+        void onResults(long pSequence, Classifier.Results pResults);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Create a ClassifierPipeline.
+     */
+    public final static class Builder {
+        private final PipelinedClassifier mClassifier;
+        private Listener mListener = null;
+        private int mNumSlots = DEFAULT_NUM_SLOTS;
+        private int mMaxResults = DEFAULT_MAX_RESULTS;
+
+        /**
+         * @param pClassifier (PipelinedClassifier) Classifier used only by this pipeline, closed by it.
+         */
+        public Builder(PipelinedClassifier pClassifier) {
+            mClassifier = pClassifier;
+        }
+
+        /**
+         * @param pListener (Listener) Receives results in submission order.
+         * @return (Builder) Self, for chaining.
+         */
+        public Builder setListener(Listener pListener) {
+            mListener = pListener;
+            return this;
+        }
+
+        /**
+         * @param pNumSlots (int) Input buffers, 2 for double buffering, 3 to also overlap collection.
+         * @return (Builder) Self, for chaining.
+         */
+        @SuppressWarnings("unused")
+        public Builder setNumSlots(int pNumSlots) {
+            if (pNumSlots < 1) {
+                throw new IllegalArgumentException("slots " + pNumSlots);
+            }
+            mNumSlots = pNumSlots;
+            return this;
+        }
+
+        /**
+         * @param pMaxResults (int) Results kept per image.
+         * @return (Builder) Self, for chaining.
+         */
+        public Builder setMaxResults(int pMaxResults) {
+            mMaxResults = pMaxResults;
+            return this;
+        }
+
+        /**
+         * Build the pipeline and start its threads.
+         *
+         * @return (ClassifierPipeline) ClassifierPipeline.
+         */
+        public ClassifierPipeline build() {
+            if (mListener == null) {
+                throw new IllegalStateException("no listener");
+            }
+            return new ClassifierPipeline(this);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private final PipelinedClassifier mClassifier;
+    private final Listener mListener;
+    private final Classifier.Results mResults;
+    private final long[] mSequences;
+    private final boolean[] mRunFailed;
+
+    // Slot indices move free -> run -> collect -> free.
+    private final BlockingQueue<Integer> mFreeSlots;
+    private final BlockingQueue<Integer> mRunSlots;
+    private final BlockingQueue<Integer> mCollectSlots;
+
+    private final Thread mRunThread;
+    private final Thread mCollectThread;
+    private long mNextSequence = 0L;
+    private volatile boolean mClosed = false;
+
+    private ClassifierPipeline(Builder pBuilder) {
+        mClassifier = pBuilder.mClassifier;
+        mListener = pBuilder.mListener;
+        mResults = new Classifier.Results(pBuilder.mMaxResults);
+        mSequences = new long[pBuilder.mNumSlots];
+        mRunFailed = new boolean[pBuilder.mNumSlots];
+
+        mClassifier.setNumSlots(pBuilder.mNumSlots);
+        mClassifier.setMaxResults(pBuilder.mMaxResults);
+
+        // Room for every slot plus the stop marker.
+        final int capacity = pBuilder.mNumSlots + 1;
+        mFreeSlots = new ArrayBlockingQueue<>(capacity);
+        mRunSlots = new ArrayBlockingQueue<>(capacity);
+        mCollectSlots = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < pBuilder.mNumSlots; i++) {
+            mFreeSlots.add(i);
+        }
+
+        mRunThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runStage();
+            }
+        }, TAG + ".run");
+        mCollectThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                collectStage();
+            }
+        }, TAG + ".collect");
+        mRunThread.start();
+        mCollectThread.start();
+    }
+
+    /**
+     * Preprocess an image on the calling thread and queue it for the model.
+     * Blocks while every slot is busy.  Call from one thread at a time.
+     *
+     * @param pBitmap (Bitmap) Image, sized for the classifier.  Free to reuse when this returns.
+     * @return (long) Sequence number passed to the listener, or -1 if closed or interrupted.
+     */
+    public long submit(Bitmap pBitmap) {
+        if (mClosed) {
+            return -1L;
+        }
+        final int slot;
+        try {
+            slot = mFreeSlots.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1L;
+        }
+        if (slot == STOP) {
+            mFreeSlots.add(STOP);  // for any other waiting submit
+            return -1L;
+        }
+
+        try {
+            mClassifier.prepareSlot(slot, pBitmap);
+        } catch (RuntimeException e) {
+            mFreeSlots.add(slot);
+            throw e;
+        }
+        final long sequence = mNextSequence++;
+        mSequences[slot] = sequence;
+        mRunSlots.add(slot);
+        return sequence;
+    }
+
+    /**
+     * Finish the queued images, then stop the threads and close the
+     * classifier.  Does not wait.
+     */
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mRunSlots.add(STOP);
+    }
+
+    private void runStage() {
+        try {
+            while (true) {
+                final int slot = mRunSlots.take();
+                if (slot != STOP) {
+                    try {
+                        mClassifier.runSlot(slot);
+                        mRunFailed[slot] = false;
+                    } catch (RuntimeException e) {
+                        Log.w(TAG, "runSlot: " + e.toString(), e);
+                        mRunFailed[slot] = true;
+                    }
+                }
+                mCollectSlots.add(slot);
+                if (slot == STOP) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "run stage interrupted");
+        }
+    }
+
+    private void collectStage() {
+        try {
+            while (true) {
+                final int slot = mCollectSlots.take();
+                if (slot == STOP) {
+                    break;
+                }
+                try {
+                    if (mRunFailed[slot]) {
+                        mResults.clear();
+                    } else {
+                        mClassifier.collectSlot(slot, mResults);
+                    }
+                    mListener.onResults(mSequences[slot], mResults);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "collectSlot: " + e.toString(), e);
+                }
+                mFreeSlots.add(slot);
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "collect stage interrupted");
+        } finally {
+            // Every slot is back or abandoned, wake any blocked submit.
+            mFreeSlots.clear();
+            mFreeSlots.add(STOP);
+            mClassifier.close();
+        }
+    }
+}
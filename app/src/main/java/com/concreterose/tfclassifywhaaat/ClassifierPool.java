@@ -0,0 +1,335 @@
+package com.concreterose.tfclassifywhaaat;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import org.tensorflow.demo.Classifier;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Several independent classifier sessions, one thread each, for throughput
+ * beyond what one session's intra-op threading gives.
+ *
+ * Submitted images go on one shared queue that every idle session pulls
+ * from, so work always lands on a free session and a slow inference never
+ * holds up the others.  Results are put back in submission order before
+ * the listener sees them, the same way CameraLib reorders converted
+ * preview frames.
+ *
+ * Each session is a full classifier with its own graph, buffers and
+ * native thread pool, so memory grows with the session count and the
+ * sessions' intra-op threads compete for the same cores.  Two or three
+ * sessions is usually the sweet spot.
+ *
+ * A session whose factory fails is logged and dropped, the rest carry on.
+ * If every session fails, images still queued are delivered with empty
+ * results and submit refuses new ones.
+ */
+public final class ClassifierPool {
+    private final static String TAG = ClassifierPool.class.getSimpleName();
+
+    @SuppressWarnings("WeakerAccess")
+    public final static int DEFAULT_MAX_RESULTS = 3;
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Create one session's classifier.  Called once per session, on that
+     * session's thread.
+     */
+    public interface Factory {
+
+        /**
+         * @param pIndex (int) Session index, from 0.
+         * @return (Classifier) New classifier, owned and closed by the pool.
+         * @throws RuntimeException If the session cannot start, see getLiveSessions.
+         */
+        Classifier create(int pIndex);
+    }
+
+    /**
+     * Hear results in submission order.  Calls are serialized but come from
+     * the session threads.
+     */
+    public interface Listener {
+
+        /**
+         * @param pBitmap (Bitmap) Image passed to submit, free to reuse once this returns.
+         * @param pSequence (long) Value returned by submit.
+         * @param pResults (Classifier.Results) Results, only valid until this returns.
+         */
+        void onResults(Bitmap pBitmap, long pSequence, Classifier.Results pResults);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Create a ClassifierPool.
+     */
+    public final static class Builder {
+        private final Factory mFactory;
+        private Listener mListener = null;
+        private int mNumSessions = Math.min(2, Runtime.getRuntime().availableProcessors());
+        private int mMaxPending = 0;
+        private int mMaxResults = DEFAULT_MAX_RESULTS;
+
+        /**
+         * @param pFactory (Factory) Creates each session's classifier.
+         */
+        public Builder(Factory pFactory) {
+            mFactory = pFactory;
+        }
+
+        /**
+         * @param pListener (Listener) Receives results in submission order.
+         * @return (Builder) Self, for chaining.
+         */
+        public Builder setListener(Listener pListener) {
+            mListener = pListener;
+            return this;
+        }
+
+        /**
+         * @param pNumSessions (int) Number of sessions and threads, at least 1.
+         * @return (Builder) Self, for chaining.
+         */
+        public Builder setNumSessions(int pNumSessions) {
+            if (pNumSessions < 1) {
+                throw new IllegalArgumentException("sessions " + pNumSessions);
+            }
+            mNumSessions = pNumSessions;
+            return this;
+        }
+
+        /**
+         * @param pMaxPending (int) Most images queued or running, default twice the sessions.
+         * @return (Builder) Self, for chaining.
+         */
+        @SuppressWarnings("unused")
+        public Builder setMaxPending(int pMaxPending) {
+            mMaxPending = pMaxPending;
+            return this;
+        }
+
+        /**
+         * @param pMaxResults (int) Results kept per image.
+         * @return (Builder) Self, for chaining.
+         */
+        @SuppressWarnings("unused")
+        public Builder setMaxResults(int pMaxResults) {
+            mMaxResults = pMaxResults;
+            return this;
+        }
+
+        /**
+         * Build the pool and start its sessions.
+         *
+         * @return (ClassifierPool) ClassifierPool.
+         */
+        public ClassifierPool build() {
+            if (mListener == null) {
+                throw new IllegalStateException("no listener");
+            }
+            return new ClassifierPool(this);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * One submitted image.  A fixed set is recycled through mFreeJobs, at
+     * most one use of each is in flight.
+     */
+    private final static class Job {
+        private final Classifier.Results mResults;
+        private Bitmap mBitmap;
+        private long mSequence;
+
+        private Job(int pMaxResults) {
+            mResults = new Classifier.Results(pMaxResults);
+        }
+    }
+
+    /**
+     * One session: a thread with its own classifier, taking jobs from the
+     * shared queue.
+     */
+    private final class Session extends Thread {
+        private final int mIndex;
+
+        private Session(int pIndex) {
+            super(TAG + ".session" + pIndex);
+            mIndex = pIndex;
+        }
+
+        @Override
+        public void run() {
+            final Classifier classifier;
+            try {
+                classifier = mFactory.create(mIndex);
+                classifier.setMaxResults(mMaxResults);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "session " + mIndex + " failed to start", e);
+                onSessionFailed();
+                return;
+            }
+
+            try {
+                while (true) {
+                    final Job job = mQueue.take();
+                    if (job == mStopJob) {
+                        break;
+                    }
+                    try {
+                        classifier.recognizeImage(job.mBitmap, job.mResults);
+                    } catch (RuntimeException e) {
+                        Log.w(TAG, "session " + mIndex + ": " + e.toString(), e);
+                        job.mResults.clear();
+                    }
+                    complete(job);
+                }
+            } catch (InterruptedException e) {
+                Log.d(TAG, "session " + mIndex + " interrupted");
+            } finally {
+                classifier.close();
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private final Factory mFactory;
+    private final Listener mListener;
+    private final int mMaxResults;
+
+    private final BlockingQueue<Job> mQueue = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Job> mFreeJobs;
+    private final Job mStopJob = new Job(1);
+    private final Session[] mSessions;
+
+    // Reorder ring, indexed by sequence modulo the job count.  Guarded by itself.
+    private final Job[] mCompleted;
+    private long mNextSubmitted = 0L;
+    private long mNextDelivered = 0L;
+    private boolean mClosed = false;
+    private int mLiveSessions;
+
+    private ClassifierPool(Builder pBuilder) {
+        mFactory = pBuilder.mFactory;
+        mListener = pBuilder.mListener;
+        mMaxResults = pBuilder.mMaxResults;
+
+        final int numJobs = pBuilder.mMaxPending > 0 ? pBuilder.mMaxPending : 2 * pBuilder.mNumSessions;
+        mFreeJobs = new ArrayBlockingQueue<>(numJobs);
+        for (int i = 0; i < numJobs; i++) {
+            mFreeJobs.add(new Job(mMaxResults));
+        }
+        mCompleted = new Job[numJobs];
+
+        mSessions = new Session[pBuilder.mNumSessions];
+        mLiveSessions = mSessions.length;
+        for (int i = 0; i < mSessions.length; i++) {
+            mSessions[i] = new Session(i);
+            mSessions[i].start();
+        }
+    }
+
+    /**
+     * Queue an image for classification.  Never blocks: when maxPending
+     * images are already in flight the image is dropped.
+     *
+     * @param pBitmap (Bitmap) Image, sized for the classifier.  Not touched after the listener returns.
+     * @return (long) Sequence number passed to the listener, or -1 if dropped, closed or every session failed.
+     */
+    public long submit(Bitmap pBitmap) {
+        final Job job = mFreeJobs.poll();
+        if (job == null) {
+            return -1L;
+        }
+        synchronized (mCompleted) {
+            if (mClosed || mLiveSessions == 0) {
+                mFreeJobs.add(job);
+                return -1L;
+            }
+            job.mSequence = mNextSubmitted++;
+            job.mBitmap = pBitmap;
+            // Queued under the lock, so a failing last session sees every job.
+            mQueue.add(job);
+        }
+        return job.mSequence;
+    }
+
+    /**
+     * @return (int) Sessions that started or are still starting, 0 once every session failed.
+     */
+    @SuppressWarnings("unused")
+    public int getLiveSessions() {
+        synchronized (mCompleted) {
+            return mLiveSessions;
+        }
+    }
+
+    /**
+     * Stop the sessions after the queued images, then close their classifiers.
+     * Does not wait.
+     */
+    public void close() {
+        synchronized (mCompleted) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+        }
+        for (int i = 0; i < mSessions.length; i++) {
+            mQueue.add(mStopJob);
+        }
+    }
+
+    /**
+     * A session could not start.  If it was the last one, nothing will take
+     * the queued jobs, so deliver them with empty results.
+     */
+    private void onSessionFailed() {
+        synchronized (mCompleted) {
+            mLiveSessions--;
+            if (mLiveSessions > 0) {
+                return;
+            }
+        }
+        Job job;
+        while ((job = mQueue.poll()) != null) {
+            if (job != mStopJob) {
+                job.mResults.clear();
+                complete(job);
+            }
+        }
+    }
+
+    /**
+     * Hold jobs that finished early, then deliver everything now in order.
+     */
+    private void complete(Job pJob) {
+        synchronized (mCompleted) {
+            final int ringSize = mCompleted.length;
+            mCompleted[(int) (pJob.mSequence % ringSize)] = pJob;
+            while (true) {
+                final int i = (int) (mNextDelivered % ringSize);
+                final Job job = mCompleted[i];
+                if (job == null || job.mSequence != mNextDelivered) {
+                    break;
+                }
+                mCompleted[i] = null;
+                mNextDelivered++;
+                try {
+                    mListener.onResults(job.mBitmap, job.mSequence, job.mResults);
+                } finally {
+                    job.mBitmap = null;
+                    mFreeJobs.add(job);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.concreterose.tfclassifywhaaat;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.tensorflow.demo.Classifier;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide, reference counted classifiers keyed by model and label
+ * file, so a recreated Activity reuses the loaded session instead of
+ * reloading the graph.
+ *
+ * A classifier is closed only after it has been unreferenced for the idle
+ * timeout, long enough to cover a configuration change.  Shared instances
+ * are not thread safe, synchronize on the classifier around each use.
+ */
+public final class ClassifierRegistry {
+    private final static String TAG = ClassifierRegistry.class.getSimpleName();
+
+    @SuppressWarnings("WeakerAccess")
+    public final static long DEFAULT_IDLE_TIMEOUT_MSECS = 10000;
+
+    private final static ClassifierRegistry sInstance = new ClassifierRegistry();
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Create a classifier on a registry miss.  Runs on the acquiring thread.
+     */
+    public interface Factory {
+
+        /**
+         * @return (Classifier) New, fully set up classifier.
+         */
+        Classifier create();
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * One key's classifier.  Loaded under its own lock, so different models
+     * load in parallel and one model loads once.
+     */
+    private final class Entry implements Runnable {
+        private final String mKey;
+        private Classifier mClassifier = null;
+        private int mRefCount = 0;  // guarded by the registry
+
+        private Entry(String pKey) {
+            mKey = pKey;
+        }
+
+        /**
+         * Idle timeout, close if still unreferenced.
+         */
+        @Override
+        public void run() {
+            synchronized (ClassifierRegistry.this) {
+                if (mRefCount > 0 || mEntries.get(mKey) != this) {
+                    return;
+                }
+                mEntries.remove(mKey);
+                mByClassifier.remove(mClassifier);
+            }
+            Log.d(TAG, "closing idle " + mKey);
+            synchronized (mClassifier) {
+                mClassifier.close();
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private final Map<Classifier, Entry> mByClassifier = new HashMap<>();
+    private long mIdleTimeoutMsecs = DEFAULT_IDLE_TIMEOUT_MSECS;
+
+    private ClassifierRegistry() {
+    }
+
+    /**
+     * @return (ClassifierRegistry) The process-wide registry.
+     */
+    public static ClassifierRegistry getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @param pMsecs (long) How long an unreferenced classifier stays loaded.
+     * @return (ClassifierRegistry) Self, for chaining.
+     */
+    @SuppressWarnings("unused")
+    public synchronized ClassifierRegistry setIdleTimeoutMsecs(long pMsecs) {
+        mIdleTimeoutMsecs = pMsecs;
+        return this;
+    }
+
+    /**
+     * Get the classifier for a model and label file, creating it if needed.
+     * May block for a full model load, do not call on the UI thread.  Each
+     * acquire must be balanced by a release.
+     *
+     * @param pModelFile (String) Model file, part of the key.
+     * @param pLabelFile (String) Label file, part of the key.
+     * @param pFactory (Factory) Creates the classifier on a miss.
+     * @return (Classifier) Shared classifier.
+     */
+    public Classifier acquire(String pModelFile, String pLabelFile, Factory pFactory) {
+        final String key = pModelFile + "|" + pLabelFile;
+        final Entry entry;
+        synchronized (this) {
+            Entry existing = mEntries.get(key);
+            if (existing == null) {
+                existing = new Entry(key);
+                mEntries.put(key, existing);
+            }
+            entry = existing;
+            entry.mRefCount++;
+            mHandler.removeCallbacks(entry);
+        }
+
+        synchronized (entry) {
+            if (entry.mClassifier == null) {
+                Log.d(TAG, "loading " + key);
+                try {
+                    entry.mClassifier = pFactory.create();
+                } catch (RuntimeException | Error e) {
+                    // Errors too, such as UnsatisfiedLinkError or OOM, or the
+                    // entry leaks a reference and is never closed.
+                    synchronized (this) {
+                        if (--entry.mRefCount == 0) {
+                            mEntries.remove(key);
+                        }
+                    }
+                    throw e;
+                }
+                synchronized (this) {
+                    mByClassifier.put(entry.mClassifier, entry);
+                }
+            } else {
+                Log.d(TAG, "reusing " + key);
+            }
+            return entry.mClassifier;
+        }
+    }
+
+    /**
+     * Drop a reference from acquire.  The last release starts the idle timeout.
+     *
+     * @param pClassifier (Classifier) Classifier from acquire.
+     */
+    public synchronized void release(Classifier pClassifier) {
+        final Entry entry = mByClassifier.get(pClassifier);
+        if (entry == null) {
+            throw new IllegalArgumentException("not acquired");
+        }
+        if (--entry.mRefCount == 0) {
+            mHandler.postDelayed(entry, mIdleTimeoutMsecs);
+        }
+    }
+}
@@ -3,7 +3,8 @@ package com.concreterose.tfclassifywhaaat;
 import android.Manifest;
 import android.app.Activity;
 import android.graphics.Bitmap;
-import android.os.AsyncTask;
+import android.graphics.Point;
+import android.graphics.RectF;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -11,21 +12,78 @@ import android.util.Log;
 import android.widget.TextView;
 
 import com.concreterose.lib.CameraLib;
+import com.concreterose.lib.InferenceRateController;
 import com.concreterose.lib.PermissionLib;
+import com.concreterose.lib.QualityController;
+import com.concreterose.lib.SceneChangeGate;
+import com.concreterose.lib.SharpnessGate;
 
 import org.tensorflow.demo.Classifier;
 
-import java.util.List;
-
-public class ClassifyActivity extends Activity implements CameraLib.CameraLibListener, PermissionLib.PermissionListener {
+public class ClassifyActivity extends Activity implements
+        CameraLib.CameraLibListener,
+        CameraLib.CameraLibLatestFrameListener,
+        PermissionLib.PermissionListener,
+        TFImageClassifierHelper.ReadyListener {
     private final static String TAG = ClassifyActivity.class.getSimpleName();
 
     private final static int PERMISSION_REQUEST_CODE_CAMERA = 1;
 
+    private final static int MAX_RESULTS = 3;
+
+    // Scene change score that returns the rate controller to full rate.
+    private final static float SNAP_BACK_SCENE_CHANGE = 30.0f;
+
+    // The preview is shown full screen, so it should be at least this
+    // fraction of the screen on each side as well as the classifier's size.
+    private final static float DISPLAY_TARGET_FRACTION = 0.5f;
+
+    // Quality tiers, best first, stepped through to keep the time from a
+    // frame arriving to its results being shown within LATENCY_BUDGET_MSECS.
+    // The bundled graph only takes its own input size, so tiers scale the
+    // preview targets (0.64 lets 176x144 previews through for the
+    // classifier), which shortens conversion, and the rate.  A lower rate
+    // leaves the consumer idle between frames, so the next frame is picked
+    // up as it arrives instead of waiting out a classification in the
+    // mailbox, and leaves cores free for conversion.
+    private final static long LATENCY_BUDGET_MSECS = 150;
+    private final static float[] TIER_PREVIEW_SCALES = {1.0f, 1.0f, 0.64f, 0.64f};
+    private final static long[] TIER_MIN_INTERVAL_MSECS = {0, 100, 100, 250};
+
     private CameraLib mCameraLib;
     private PermissionLib mPermissionLib;
     private TFImageClassifierHelper mClassifier;
 
+    // Only classify sharp frames that differ from the last classified one.
+    // Touched only on the CameraLib consumer thread.
+    private final SharpnessGate mSharpnessGate = new SharpnessGate.Builder().build();
+    private final SceneChangeGate mSceneChangeGate = new SceneChangeGate.Builder().build();
+    private final InferenceRateController mRateController = new InferenceRateController.Builder().build();
+    private final Classifier.Results mResults = new Classifier.Results(MAX_RESULTS);
+    private final int[] mResultClasses = new int[MAX_RESULTS];
+    private final float[] mResultConfidences = new float[MAX_RESULTS];
+    private final QualityController mQualityController = new QualityController.Builder(TIER_PREVIEW_SCALES.length)
+            .setBudgetMsecs(LATENCY_BUDGET_MSECS)
+            .build();
+
+    // Preview data size the classifier is set up for, frames of another
+    // size arrive briefly while the preview size changes.  Only an early
+    // out before the gates, preparePreviewData checks the size it applied.
+    private volatile int mPreviewDataWidth = 0;
+    private volatile int mPreviewDataHeight = 0;
+    private final Point mDisplayTarget = new Point();
+    private float mPreviewTargetScale = 1.0f;
+
+    // Results handed to the UI thread without allocating: the consumer
+    // copies into the pending holder, ShowResults copies it into the shown
+    // one.  Guarded by mPendingResults, except mShownResults (UI thread).
+    private final Classifier.Results mPendingResults = new Classifier.Results(MAX_RESULTS);
+    private final Classifier.Results mShownResults = new Classifier.Results(MAX_RESULTS);
+    private boolean mShowResultsPosted = false;
+    private final ShowResults mShowResults = new ShowResults();
+    private final StringBuilder mResultsText = new StringBuilder();
+    private final RectF mNoLocation = new RectF();
+
     private MyCheaperImageView mMyCheaperImageView;
     private MyLabelRectsView mMyLabelRectsView;
     private TextView mTextView;
@@ -34,51 +92,47 @@ public class ClassifyActivity extends Activity implements CameraLib.CameraLibLis
 
     // ------------------------------------------------------------------------
 
-    private class AsyncClassify extends AsyncTask<Bitmap, Void, List<Classifier.Recognition>> {
+    /**
+     * Show classification results, on the UI thread.
+     */
+    private class ShowResults implements Runnable {
 
         @Override
-        protected List<Classifier.Recognition> doInBackground(Bitmap... pBitmaps) {
-            final Bitmap bitmap = pBitmaps[0];
-            final List<Classifier.Recognition> results = mClassifier.processImage(bitmap);
-            return results;
-        }
-
-        @Override
-        protected void onPostExecute(List<Classifier.Recognition> pResults) {
-            super.onPostExecute(pResults);
-
-            // Mark as finished so it will be restarted with next image.
-            mAsyncClassify = null;
-
-            if (pResults.isEmpty()) {
+        public void run() {
+            synchronized (mPendingResults) {
+                mShownResults.copyFrom(mPendingResults);
+                mShowResultsPosted = false;
+            }
+            if (mShownResults.size() == 0) {
                 return;
             }
 
             mMyLabelRectsView.clear();
-            final StringBuilder sb = new StringBuilder();
-
-            for (int i = 0; i < pResults.size(); i++) {
-                final Classifier.Recognition result = pResults.get(i);
-
-                Log.d(TAG, "result " + i
-                        + " id=" + result.getId()
-                        + " title=" + result.getTitle()
-                        + " rect=" + result.getLocation()
-                        + " conf=" + result.getConfidence()
-                );
+            final StringBuilder sb = mResultsText;
+            sb.setLength(0);
+
+            final boolean debug = Log.isLoggable(TAG, Log.DEBUG);
+            for (int i = 0; i < mShownResults.size(); i++) {
+                final String title = mShownResults.getTitle(i);
+
+                if (debug) {
+                    Log.d(TAG, "result " + i
+                            + " id=" + mShownResults.getId(i)
+                            + " title=" + title
+                            + " conf=" + mShownResults.getConfidence(i)
+                    );
+                }
 
-                mMyLabelRectsView.add(result.getTitle(), result.getLocation());
+                mMyLabelRectsView.add(title, mNoLocation);
                 if (sb.length() > 0) {
                     sb.append("\n");
                 }
-                sb.append(result.getTitle());
+                sb.append(title);
             }
             mTextView.setText(sb.toString());
         }
     }
 
-    private AsyncClassify mAsyncClassify = null;
-
     // ------------------------------------------------------------------------
 
     @Override
@@ -86,8 +140,21 @@ public class ClassifyActivity extends Activity implements CameraLib.CameraLibLis
         super.onCreate(savedInstanceState);
         setContentView(R.layout.classify_activity);
 
+        // Load the model in the background, frames are dropped until it is ready.
+        mClassifier = new TFImageClassifierHelper(this);
+        mClassifier.startInit(this);
+
+        // Only convert as many preview pixels as the classifier and the
+        // display use.
+        getWindowManager().getDefaultDisplay().getSize(mDisplayTarget);
+        mDisplayTarget.set(Math.max(1, Math.round(mDisplayTarget.x * DISPLAY_TARGET_FRACTION)),
+                Math.max(1, Math.round(mDisplayTarget.y * DISPLAY_TARGET_FRACTION)));
+        final int modelTarget = mClassifier.getInputSize();
         mCameraLib = new CameraLib.Builder(this)
                 .setListener(this)
+                .setLatestFrameListener(this)
+                .addPreviewTarget(modelTarget, modelTarget)
+                .addPreviewTarget(mDisplayTarget.x, mDisplayTarget.y)
                 .build();
 
         mPermissionLib = new PermissionLib.Builder(this)
@@ -98,8 +165,6 @@ public class ClassifyActivity extends Activity implements CameraLib.CameraLibLis
         mMyLabelRectsView = (MyLabelRectsView) findViewById(R.id.labels);
         mTextView = (TextView) findViewById(R.id.text);
 
-        mClassifier = new TFImageClassifierHelper(this);
-
         updateCameraStuff();
 
         // Request permission to use camera.
@@ -122,6 +187,15 @@ public class ClassifyActivity extends Activity implements CameraLib.CameraLibLis
         mCameraLib.stop();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // The registry keeps the model loaded for a while, a recreated
+        // Activity picks it up again.
+        mClassifier.close();
+    }
+
     @Override
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults);
@@ -170,11 +244,60 @@ public class ClassifyActivity extends Activity implements CameraLib.CameraLibLis
     @Override
     public void onPreview(Bitmap pBitmap, long pTimestampMsecs) {
         mMyCheaperImageView.setBitmap(pBitmap);
+    }
+
+    @Override
+    public void onLatestPreview(Bitmap pBitmap, byte[] pData, int pWidth, int pHeight, long pTimestampMsecs) {
+        // Runs on the CameraLib consumer thread, always with the newest frame.
+        // The frame stays valid until this returns, so classify synchronously.
+        if (!mClassifier.isReady()) {
+            return;
+        }
+        if (pWidth != mPreviewDataWidth || pHeight != mPreviewDataHeight) {
+            return;
+        }
+        // Cheapest gates first: the scene check reads about 800 samples, the
+        // sharpness gate filters every luma pixel.  The scene is only scored
+        // here and committed once the frame is really classified, so a
+        // blurry frame never becomes the reference.
+        if (!mSceneChangeGate.check(pData, pWidth, pHeight, pTimestampMsecs)) {
+            return;  // keep showing the last results
+        }
+        if (mSceneChangeGate.getLastScore() >= SNAP_BACK_SCENE_CHANGE) {
+            mRateController.onSceneChange();
+        }
+        if (!mRateController.shouldRun(pTimestampMsecs)) {
+            return;
+        }
+        if (!mSharpnessGate.accept(pData, pWidth, pHeight, mCameraLib.isFocusing())) {
+            return;
+        }
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "onLatestPreview: sharpness " + mSharpnessGate.getLastSharpness()
+                    + " scene change " + mSceneChangeGate.getLastScore());
+        }
+
+        if (!mClassifier.preparePreviewData(pData, pWidth, pHeight)) {
+            return;
+        }
+        mSceneChangeGate.commit();
+        // A frame let through only for staleness would just hit the cache.
+        final boolean ranModel = mClassifier.processPreparedInput(mResults, mSceneChangeGate.isLastStale());
+        for (int i = 0; i < mResults.size(); i++) {
+            mResultClasses[i] = mResults.getClassIndex(i);
+            mResultConfidences[i] = mResults.getConfidence(i);
+        }
+        mRateController.onResults(mResultClasses, mResultConfidences, mResults.size());
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "onLatestPreview: decision " + mRateController.getLastDecision()
+                    + " interval " + mRateController.getIntervalMsecs() + " msecs");
+        }
 
-        // If not busy, start a new async classify.
-        if (mAsyncClassify == null) {
-            mAsyncClassify = new AsyncClassify();
-            mAsyncClassify.execute(pBitmap);
+        showResults();
+        // Cache hits take no time, they would pull the average under budget
+        // while real inference is still over it.
+        if (ranModel) {
+            updateQuality();
         }
     }
 
@@ -185,6 +308,71 @@ public class ClassifyActivity extends Activity implements CameraLib.CameraLibLis
 
     // ------------------------------------------------------------------------
 
+    @Override
+    public void onClassifierReady(TFImageClassifierHelper pHelper) {
+        Log.d(TAG, "onClassifierReady");
+    }
+
+    @Override
+    public void onClassifierFailed(TFImageClassifierHelper pHelper, Throwable pError) {
+        Log.e(TAG, "onClassifierFailed", pError);
+        mTextView.setText(R.string.classifier_failed);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Hand the latest results to the UI thread.  A newer frame overwrites
+     * results the UI has not picked up yet, so at most one post is pending.
+     */
+    private void showResults() {
+        synchronized (mPendingResults) {
+            mPendingResults.copyFrom(mResults);
+            if (mShowResultsPosted) {
+                return;
+            }
+            mShowResultsPosted = true;
+        }
+        runOnUiThread(mShowResults);
+    }
+
+    /**
+     * Feed the latency of the last frame that ran the model, from arrival
+     * to results handed to the UI, to the quality controller and apply any
+     * tier change.  On the CameraLib consumer thread, from onLatestPreview.
+     */
+    private void updateQuality() {
+        final long latencyMsecs = mCameraLib.getLatestFrameAgeMsecs();
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "updateQuality: latency " + latencyMsecs + " msecs (convert "
+                    + mCameraLib.getLastConversionMsecs() + " prepare " + mClassifier.getLastPrepareMsecs()
+                    + " classify " + mClassifier.getLastClassifyMsecs() + "), tier " + mQualityController.getTier()
+                    + " average " + mQualityController.getAverageMsecs() + " msecs");
+        }
+        if (!mQualityController.update(latencyMsecs)) {
+            return;
+        }
+
+        final int tier = mQualityController.getTier();
+        Log.i(TAG, "updateQuality: tier " + tier);
+        mRateController.setMinIntervalMsecs(TIER_MIN_INTERVAL_MSECS[tier]);
+        final float scale = TIER_PREVIEW_SCALES[tier];
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (scale != mPreviewTargetScale && !isFinishing()) {
+                    mPreviewTargetScale = scale;
+                    final int modelTarget = Math.round(mClassifier.getInputSize() * scale);
+                    mCameraLib.setPreviewTargets(
+                            new int[] {modelTarget, modelTarget},
+                            new int[] {Math.max(1, Math.round(mDisplayTarget.x * scale)),
+                                    Math.max(1, Math.round(mDisplayTarget.y * scale))});
+                    updateCameraStuff();
+                }
+            }
+        });
+    }
+
     private void updateCameraStuff() {
         // Switch to the back facing camera.
         if (mCameraLib.getIsFrontFacingCamera() && mCameraLib.canChangeCamera()) {
@@ -196,6 +384,9 @@ public class ClassifyActivity extends Activity implements CameraLib.CameraLibLis
         final int rotation = 0;  // cameraLib already handles rotation before delivering preview frames
         final int screenOrientation = 0;
         mClassifier.setImageSize(w, h, rotation, screenOrientation);
+        mClassifier.setPreviewDataSize(w, h, mCameraLib.getPreviewMatrix());
+        mPreviewDataWidth = w;
+        mPreviewDataHeight = h;
     }
 
 }
@@ -1,20 +1,44 @@
 package com.concreterose.tfclassifywhaaat;
 
 import android.content.Context;
+import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.util.Log;
 
+import com.concreterose.lib.DHash;
+import com.concreterose.lib.PerceptualCache;
+import com.concreterose.lib.YuvSampler;
+
 import org.tensorflow.demo.Classifier;
 import org.tensorflow.demo.TensorFlowImageClassifier;
 import org.tensorflow.demo.env.ImageUtils;
 
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * Load and use an image classifier.  Based on https://github.com/tensorflow/tensorflow/blob/r1.5/tensorflow/examples/android/src/org/tensorflow/demo/ClassifierActivity.java
+ *
+ * Construction is cheap, the model is loaded and warmed up in the
+ * background by startInit.  Until then classification calls return no
+ * results, so callers simply drop frames.  The classifier comes from the
+ * ClassifierRegistry, so a recreated Activity reuses the loaded one; close
+ * hands it back.
+ *
+ * Results are cached by a perceptual hash of the image, so a camera held
+ * on a steady scene reuses the last classification instead of running the
+ * model on a near-identical crop.
  */
 
 public class TFImageClassifierHelper {
@@ -47,17 +71,305 @@ public class TFImageClassifierHelper {
 
     private static final boolean MAINTAIN_ASPECT = true;
 
-    private final Classifier mClassifier;
+    // Sort the 1008 Inception classes in the graph and fetch only the best few.
+    private static final int MAX_RESULTS = 3;
+    private static final boolean USE_GRAPH_TOP_K = true;
+
+    private static final int PREVIEW_DATA_SAMPLE_MODE = YuvSampler.SAMPLE_BILINEAR;
+
+    // Inferences run on a synthetic input before the classifier is ready, so
+    // the first real frame does not pay for graph setup.
+    private static final int WARMUP_RUNS = 2;
+
+    // Reuse results for images whose dHash is within RESULT_CACHE_MAX_DISTANCE
+    // bits of a recent one.  Entries expire RESULT_CACHE_TTL_MSECS after they
+    // were classified, so a steady scene is still refreshed now and then.
+    // Preview frames forced through by the scene gate for staleness skip the
+    // lookup, see processPreparedInput.
+    private static final boolean USE_RESULT_CACHE = true;
+    private static final int RESULT_CACHE_MAX_ENTRIES = 16;
+    private static final int RESULT_CACHE_MAX_DISTANCE = 4;
+    private static final long RESULT_CACHE_TTL_MSECS = 2000;
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Hear when background initialization finishes.  Called on the main thread.
+     */
+    public interface ReadyListener {
+
+        /**
+         * The model is loaded and warmed up, classification calls now return results.
+         *
+         * @param pHelper (TFImageClassifierHelper) Helper that is ready.
+         */
+        void onClassifierReady(TFImageClassifierHelper pHelper);
+
+        /**
+         * The model failed to load, the helper never becomes ready.
+         *
+         * @param pHelper (TFImageClassifierHelper) Helper that failed.
+         * @param pError (Throwable) Cause, such as an UnsatisfiedLinkError from the native library.
+         */
+        void onClassifierFailed(TFImageClassifierHelper pHelper, Throwable pError);
+    }
+
+    // ------------------------------------------------------------------------
+
+    private final AssetManager mAssetManager;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private Future<Classifier> mInitFuture = null;
+
+    // Written by the init thread before mReady, read after it.  The
+    // classifier is shared, uses synchronize on it.
+    private volatile boolean mReady = false;
+    private Classifier mClassifier;
+    private boolean mClosed = false;
+
     private Matrix mFrameToCropTransform;
     private Matrix mCropToFrameTransform;
 
     private final Bitmap mCroppedBitmap;
     private final Canvas mCanvas;
 
+    // submitImage crops into its own bitmap, so it can run alongside
+    // processImage.  Made by the first createPipeline.
+    private Bitmap mPipelineCroppedBitmap;
+    private Canvas mPipelineCanvas;
+
+    // Fused path: sample raw preview data straight into the model input, a
+    // direct buffer fed to TensorFlow as is.  Quantized models take bytes,
+    // only the matching buffer is allocated, once the model is loaded.
+    private final YuvSampler mYuvSampler;
+    private FloatBuffer mPreparedInput;
+    private ByteBuffer mPreparedBytes;
+    // False until a frame was sampled, the prepared input is garbage until then.
+    private boolean mPrepared = false;
+    private final Classifier.Results mResults = new Classifier.Results(MAX_RESULTS);
+    private final List<Classifier.Recognition> mResultList = new ArrayList<>(MAX_RESULTS);
+    private final float[] mMatrixValues = new float[9];
+
+    // Result caches, both keyed on the crop the model sees.  The fused path
+    // hashes the sampled model input, processImage the cropped bitmap, so
+    // the two are kept apart.
+    private final PerceptualCache<Classifier.Results> mPreviewCache;
+    private final PerceptualCache<Classifier.Results> mImageCache;
+    private final int[] mCropPixels = new int[INPUT_SIZE * INPUT_SIZE];
+    private int mPreviewWidth = 0;
+    private int mPreviewHeight = 0;
+    private long mPreparedHash;
+
+    // setPreviewDataSize runs on the UI thread, preview frames arrive on
+    // the camera consumer thread.  A new size is parked here and applied by
+    // the next preparePreviewData, so the sampler, the preview size and the
+    // preview cache are only ever touched by the consumer thread.
+    private final Object mPendingPreviewLock = new Object();
+    private final float[] mPendingMatrixValues = new float[9];
+    private int mPendingPreviewWidth = 0;
+    private int mPendingPreviewHeight = 0;
+    private boolean mPendingPreview = false;
+
+    // Stage times of the last frame, for latency budgets.
+    private long mLastPrepareMsecs = 0L;
+    private long mLastClassifyMsecs = 0L;
+
     public TFImageClassifierHelper(Context pContext) {
-        mClassifier =
+        mAssetManager = pContext.getApplicationContext().getResources().getAssets();
+
+        mCroppedBitmap = Bitmap.createBitmap(INPUT_SIZE, INPUT_SIZE, Bitmap.Config.ARGB_8888);
+        mCanvas = new Canvas(mCroppedBitmap);
+
+        mYuvSampler = new YuvSampler(INPUT_SIZE, INPUT_SIZE, IMAGE_MEAN, IMAGE_STD, PREVIEW_DATA_SAMPLE_MODE);
+
+        final PerceptualCache.Builder cacheBuilder = new PerceptualCache.Builder()
+                .setMaxEntries(RESULT_CACHE_MAX_ENTRIES)
+                .setMaxDistance(RESULT_CACHE_MAX_DISTANCE)
+                .setTtlMsecs(RESULT_CACHE_TTL_MSECS);
+        mPreviewCache = cacheBuilder.build();
+        mImageCache = cacheBuilder.build();
+    }
+
+    /**
+     * Load the model and run the warm-up inferences on a background thread.
+     * Only the first call starts anything, later calls return the same future.
+     *
+     * @param pListener (ReadyListener) Told on the main thread when done, may be null.
+     * @return (Future) Completes with the classifier once ready.
+     */
+    public synchronized Future<Classifier> startInit(final ReadyListener pListener) {
+        if (mInitFuture != null) {
+            return mInitFuture;
+        }
+
+        final FutureTask<Classifier> task = new FutureTask<Classifier>(new Callable<Classifier>() {
+            @Override
+            public Classifier call() throws Exception {
+                final boolean ready;
+                try {
+                    ready = init();
+                } catch (final Throwable e) {
+                    // Errors too, a missing native library or an OOM loading the graph
+                    // would otherwise leave the UI waiting forever.
+                    Log.e(TAG, "init failed", e);
+                    if (pListener != null) {
+                        mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                pListener.onClassifierFailed(TFImageClassifierHelper.this, e);
+                            }
+                        });
+                    }
+                    throw e;
+                }
+                if (ready && pListener != null) {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            pListener.onClassifierReady(TFImageClassifierHelper.this);
+                        }
+                    });
+                }
+                return mClassifier;
+            }
+        });
+        mInitFuture = task;
+        new Thread(task, TAG + ".init").start();
+        return task;
+    }
+
+    /**
+     * @return (boolean) True once the model is loaded and warmed up.
+     */
+    public boolean isReady() {
+        return mReady;
+    }
+
+    /**
+     * Release the classifier to the registry, which closes it once idle.
+     * Safe to call while init is still running.
+     */
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mReady = false;
+        if (mClassifier != null) {
+            ClassifierRegistry.getInstance().release(mClassifier);
+        }
+    }
+
+    /**
+     * @return (boolean) True if ready, false if closed meanwhile.
+     */
+    private boolean init() {
+        final long startTime = SystemClock.uptimeMillis();
+        final Classifier classifier = ClassifierRegistry.getInstance().acquire(MODEL_FILE, LABEL_FILE,
+                new ClassifierRegistry.Factory() {
+                    @Override
+                    public Classifier create() {
+                        return createClassifier();
+                    }
+                });
+
+        if (classifier.isQuantized()) {
+            mPreparedBytes = ByteBuffer.allocateDirect(INPUT_SIZE * INPUT_SIZE * 3);
+        } else {
+            mPreparedInput = TensorFlowImageClassifier.allocateFloats(INPUT_SIZE * INPUT_SIZE * 3);
+        }
+
+        synchronized (this) {
+            if (mClosed) {
+                ClassifierRegistry.getInstance().release(classifier);
+                return false;
+            }
+            mClassifier = classifier;
+            mReady = true;
+        }
+        Log.i(TAG, "init: ready in " + (SystemClock.uptimeMillis() - startTime) + " msecs");
+        return true;
+    }
+
+    /**
+     * Build a pool of independent sessions for this model, for throughput
+     * rather than latency, such as classifying a batch of pictures.  Each
+     * session loads and warms up its own copy of the model.
+     *
+     * @param pNumSessions (int) Number of sessions.
+     * @param pListener (ClassifierPool.Listener) Receives results in submission order.
+     * @return (ClassifierPool) New pool, the caller closes it.
+     */
+    @SuppressWarnings("unused")
+    public ClassifierPool createPool(int pNumSessions, ClassifierPool.Listener pListener) {
+        return new ClassifierPool.Builder(new ClassifierPool.Factory() {
+            @Override
+            public Classifier create(int pIndex) {
+                return createClassifier();
+            }
+        })
+                .setNumSessions(pNumSessions)
+                .setMaxResults(MAX_RESULTS)
+                .setListener(pListener)
+                .build();
+    }
+
+    /**
+     * Build a pipeline over a dedicated session for this model, so cropping
+     * and normalizing the next image overlaps the current inference.  Loads
+     * the model, do not call on the UI thread.  Feed it with submitImage.
+     *
+     * @param pListener (ClassifierPipeline.Listener) Receives results in submission order.
+     * @return (ClassifierPipeline) New pipeline, the caller closes it.
+     */
+    @SuppressWarnings("unused")
+    public ClassifierPipeline createPipeline(ClassifierPipeline.Listener pListener) {
+        synchronized (this) {
+            if (mPipelineCroppedBitmap == null) {
+                mPipelineCroppedBitmap = Bitmap.createBitmap(INPUT_SIZE, INPUT_SIZE, Bitmap.Config.ARGB_8888);
+                mPipelineCanvas = new Canvas(mPipelineCroppedBitmap);
+            }
+        }
+        return new ClassifierPipeline.Builder(createClassifier())
+                .setMaxResults(MAX_RESULTS)
+                .setListener(pListener)
+                .build();
+    }
+
+    /**
+     * Pipelined processImage: crop on the calling thread, then hand off.
+     * Blocks while the pipeline is full.  Uses its own crop bitmap, so it
+     * may run alongside processImage, but submitImage calls must not
+     * overlap each other, even for different pipelines.
+     *
+     * @param pPipeline (ClassifierPipeline) Pipeline from createPipeline.
+     * @param pBitmap (Bitmap) Image sized as in setImageSize, free to reuse when this returns.
+     * @return (long) Sequence number passed to the listener, or -1 if closed.
+     */
+    @SuppressWarnings("unused")
+    public long submitImage(ClassifierPipeline pPipeline, Bitmap pBitmap) {
+        final Canvas canvas;
+        final Bitmap croppedBitmap;
+        synchronized (this) {
+            canvas = mPipelineCanvas;
+            croppedBitmap = mPipelineCroppedBitmap;
+        }
+        if (canvas == null) {
+            throw new IllegalStateException("no pipeline, see createPipeline");
+        }
+        canvas.drawBitmap(pBitmap, mFrameToCropTransform, null);
+        // The pipeline copies the pixels before submit returns.
+        return pPipeline.submit(croppedBitmap);
+    }
+
+    /**
+     * Load, set up and warm up a new classifier, on a registry miss or for
+     * a pool session or pipeline.
+     */
+    private TensorFlowImageClassifier createClassifier() {
+        final long startTime = SystemClock.uptimeMillis();
+        final TensorFlowImageClassifier classifier =
                 TensorFlowImageClassifier.create(
-                        pContext.getResources().getAssets(),
+                        mAssetManager,
                         MODEL_FILE,
                         LABEL_FILE,
                         INPUT_SIZE,
@@ -65,9 +377,79 @@ public class TFImageClassifierHelper {
                         IMAGE_STD,
                         INPUT_NAME,
                         OUTPUT_NAME);
+        classifier.setMaxResults(MAX_RESULTS);
+        if (USE_GRAPH_TOP_K) {
+            classifier.enableGraphTopK(MAX_RESULTS);
+        }
+        final long loadTime = SystemClock.uptimeMillis() - startTime;
 
-        mCroppedBitmap = Bitmap.createBitmap(INPUT_SIZE, INPUT_SIZE, Bitmap.Config.ARGB_8888);
-        mCanvas = new Canvas(mCroppedBitmap);
+        // Warm up on a synthetic gradient rather than a constant, so every
+        // code path sees realistic values.
+        final Classifier.Results warmupResults = new Classifier.Results(MAX_RESULTS);
+        if (classifier.isQuantized()) {
+            final ByteBuffer input = ByteBuffer.allocateDirect(INPUT_SIZE * INPUT_SIZE * 3);
+            for (int i = 0; i < input.capacity(); i++) {
+                input.put(i, (byte) ((i / 3) % 256));
+            }
+            for (int i = 0; i < WARMUP_RUNS; i++) {
+                classifier.recognizeInput(input, warmupResults);
+            }
+        } else {
+            final FloatBuffer input = TensorFlowImageClassifier.allocateFloats(INPUT_SIZE * INPUT_SIZE * 3);
+            for (int i = 0; i < input.capacity(); i++) {
+                input.put(i, ((i / 3) % 256 - IMAGE_MEAN) / IMAGE_STD);
+            }
+            for (int i = 0; i < WARMUP_RUNS; i++) {
+                classifier.recognizeInput(input, warmupResults);
+            }
+        }
+
+        Log.i(TAG, "createClassifier: loaded in " + loadTime + " msecs, warmed up in "
+                + (SystemClock.uptimeMillis() - startTime - loadTime) + " msecs");
+        return classifier;
+    }
+
+    /**
+     * @return (long) Classifications answered from the result cache.
+     */
+    @SuppressWarnings("unused")
+    public long getResultCacheHits() {
+        return mPreviewCache.getHits() + mImageCache.getHits();
+    }
+
+    /**
+     * @return (long) Classifications that ran the model.
+     */
+    @SuppressWarnings("unused")
+    public long getResultCacheMisses() {
+        return mPreviewCache.getMisses() + mImageCache.getMisses();
+    }
+
+    /**
+     * Time the last preparePreviewData, or the crop in processImage, took.
+     *
+     * @return (long) Milliseconds.
+     */
+    public long getLastPrepareMsecs() {
+        return mLastPrepareMsecs;
+    }
+
+    /**
+     * Time the last classification took, short on a result cache hit.
+     *
+     * @return (long) Milliseconds.
+     */
+    public long getLastClassifyMsecs() {
+        return mLastClassifyMsecs;
+    }
+
+    /**
+     * Model input size, the smallest useful camera preview.
+     *
+     * @return (int) Input width and height.
+     */
+    public int getInputSize() {
+        return INPUT_SIZE;
     }
 
     public TFImageClassifierHelper setImageSize(int pWidth, int pHeight, int pRotation, int pScreenOrientation) {
@@ -86,12 +468,244 @@ public class TFImageClassifierHelper {
         return this;
     }
 
+    /**
+     * Set the raw preview data size and the transform CameraLib applies to
+     * it, see CameraLib.getPreviewMatrix.  The crop is computed the same way
+     * as setImageSize on the transformed preview.
+     *
+     * @param pWidth (int) Raw preview width.
+     * @param pHeight (int) Raw preview height.
+     * @param pPreviewMatrix (Matrix) Raw preview to displayed preview transform.
+     * @return (TFImageClassifierHelper) Self, for chaining.
+     */
+    public TFImageClassifierHelper setPreviewDataSize(int pWidth, int pHeight, Matrix pPreviewMatrix) {
+        Log.d(TAG, "setPreviewDataSize " + pWidth + "x" + pHeight);
+
+        if (pWidth <= 0 || pHeight <= 0) {
+            return this;  // camera not open yet
+        }
+
+        // Size after CameraLib rotation, mapVectors ignores the translation.
+        final float[] corner = new float[] {pWidth, pHeight};
+        pPreviewMatrix.mapVectors(corner);
+        final int rotatedWidth = Math.round(Math.abs(corner[0]));
+        final int rotatedHeight = Math.round(Math.abs(corner[1]));
+
+        final Matrix dataToCrop = new Matrix(pPreviewMatrix);
+        dataToCrop.postConcat(ImageUtils.getTransformationMatrix(
+                rotatedWidth, rotatedHeight,
+                INPUT_SIZE, INPUT_SIZE,
+                0, MAINTAIN_ASPECT));
+
+        final Matrix cropToData = new Matrix();
+        dataToCrop.invert(cropToData);
+        synchronized (mPendingPreviewLock) {
+            cropToData.getValues(mPendingMatrixValues);
+            mPendingPreviewWidth = pWidth;
+            mPendingPreviewHeight = pHeight;
+            mPendingPreview = true;
+        }
+
+        return this;
+    }
+
+    /**
+     * Take up a size from setPreviewDataSize, on the thread preparing
+     * frames.  Cached results are for the old crop, so they go too.
+     */
+    private void applyPendingPreviewSize() {
+        synchronized (mPendingPreviewLock) {
+            if (!mPendingPreview) {
+                return;
+            }
+            System.arraycopy(mPendingMatrixValues, 0, mMatrixValues, 0, mMatrixValues.length);
+            mPreviewWidth = mPendingPreviewWidth;
+            mPreviewHeight = mPendingPreviewHeight;
+            mPendingPreview = false;
+        }
+        mYuvSampler.setTransform(mPreviewWidth, mPreviewHeight, mMatrixValues);
+        mPreviewCache.clear();
+    }
+
+    /**
+     * Sample raw NV21 preview data into the model input.  Only the small
+     * model input is kept, so the preview buffer can be released right away.
+     *
+     * Call from one thread, the one delivering preview frames.  Frames
+     * still in the old size after setPreviewDataSize are skipped.
+     *
+     * @param pData (byte[]) NV21 preview data.
+     * @param pWidth (int) Raw preview width of this frame.
+     * @param pHeight (int) Raw preview height of this frame.
+     * @return (boolean) False if not ready, setPreviewDataSize was not called yet or the size does not match.
+     */
+    public boolean preparePreviewData(byte[] pData, int pWidth, int pHeight) {
+        if (!mReady) {
+            return false;
+        }
+        applyPendingPreviewSize();
+        if (pWidth != mPreviewWidth || pHeight != mPreviewHeight) {
+            Log.d(TAG, "preparePreviewData: " + pWidth + "x" + pHeight + " frame for "
+                    + mPreviewWidth + "x" + mPreviewHeight + ", skipped");
+            mPrepared = false;
+            return false;
+        }
+        final long startTime = SystemClock.uptimeMillis();
+        if (mPreparedBytes != null) {
+            mPrepared = mYuvSampler.sampleNv21(pData, mPreparedBytes);
+        } else {
+            mPrepared = mYuvSampler.sampleNv21(pData, mPreparedInput);
+        }
+        if (!mPrepared) {
+            Log.d(TAG, "preparePreviewData: preview size not set, skipped");
+            return false;
+        }
+        if (USE_RESULT_CACHE) {
+            // Hash what the model sees, not the whole preview around the crop.
+            mPreparedHash = mPreparedBytes != null
+                    ? DHash.ofRgb(mPreparedBytes, INPUT_SIZE, INPUT_SIZE)
+                    : DHash.ofRgb(mPreparedInput, INPUT_SIZE, INPUT_SIZE);
+        }
+        final long deltaTime = SystemClock.uptimeMillis() - startTime;
+        mLastPrepareMsecs = deltaTime;
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "preparePreviewData: " + deltaTime + " msecs");
+        }
+        return true;
+    }
+
+    /**
+     * Classify the input from the last preparePreviewData.
+     *
+     * @return (List) Results, empty if nothing was prepared.  Reused, only valid until the next call.
+     */
+    public List<Classifier.Recognition> processPreparedInput() {
+        if (!mReady) {
+            return Collections.emptyList();
+        }
+        final long startTime = SystemClock.uptimeMillis();
+        recognizePreparedInput(mResults, false);
+        final List<Classifier.Recognition> results = mResults.toList(mResultList);
+        final long deltaTime = SystemClock.uptimeMillis() - startTime;
+        mLastClassifyMsecs = deltaTime;
+        Log.d(TAG, "processPreparedInput: " + results.size() + " results in " + deltaTime + " msecs");
+        return results;
+    }
+
+    /**
+     * Classify the input from the last preparePreviewData into a reusable
+     * holder, without allocating.
+     *
+     * @param pResults (Classifier.Results) Filled with the best results.
+     * @return (boolean) True if the model ran, false on a result cache hit or if nothing was prepared.
+     */
+    public boolean processPreparedInput(Classifier.Results pResults) {
+        return processPreparedInput(pResults, false);
+    }
+
+    /**
+     * Classify the input from the last preparePreviewData into a reusable
+     * holder, without allocating.
+     *
+     * @param pResults (Classifier.Results) Filled with the best results.
+     * @param pRefresh (boolean) Run the model even if the result cache has a match, such as for a stale scene.
+     * @return (boolean) True if the model ran, false on a result cache hit or if nothing was prepared.
+     */
+    public boolean processPreparedInput(Classifier.Results pResults, boolean pRefresh) {
+        if (!mReady) {
+            pResults.clear();
+            return false;
+        }
+        final long startTime = SystemClock.uptimeMillis();
+        final boolean ran = recognizePreparedInput(pResults, pRefresh);
+        final long deltaTime = SystemClock.uptimeMillis() - startTime;
+        mLastClassifyMsecs = deltaTime;
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "processPreparedInput: " + pResults.size() + " results in " + deltaTime + " msecs");
+        }
+        return ran;
+    }
+
+    /**
+     * @return (boolean) True if the model ran.
+     */
+    private boolean recognizePreparedInput(Classifier.Results pResults, boolean pRefresh) {
+        if (!mPrepared) {
+            pResults.clear();
+            return false;
+        }
+        final long now = SystemClock.uptimeMillis();
+        if (USE_RESULT_CACHE && !pRefresh) {
+            final Classifier.Results cached = mPreviewCache.get(mPreparedHash, now);
+            if (cached != null) {
+                pResults.copyFrom(cached);
+                return false;
+            }
+        }
+
+        synchronized (mClassifier) {
+            if (mPreparedBytes != null) {
+                mClassifier.recognizeInput(mPreparedBytes, pResults);
+            } else {
+                mClassifier.recognizeInput(mPreparedInput, pResults);
+            }
+        }
+
+        if (USE_RESULT_CACHE) {
+            final Classifier.Results entry = obtainResults(mPreviewCache);
+            entry.copyFrom(pResults);
+            mPreviewCache.put(mPreparedHash, entry, now);
+        }
+        return true;
+    }
+
+    /**
+     * Crop and classify an image on the calling thread, one at a time.  To
+     * overlap cropping with inference use createPipeline and submitImage.
+     *
+     * @param pBitmap (Bitmap) Image sized as in setImageSize.
+     * @return (List) Results, empty until the classifier is ready.
+     */
     public List<Classifier.Recognition> processImage(Bitmap pBitmap) {
+        if (!mReady) {
+            return Collections.emptyList();
+        }
         final long startTime = SystemClock.uptimeMillis();
         mCanvas.drawBitmap(pBitmap, mFrameToCropTransform, null);
-        final List<Classifier.Recognition> results = mClassifier.recognizeImage(mCroppedBitmap);
-        final long deltaTime = SystemClock.uptimeMillis() - startTime;
+        final long cropTime = SystemClock.uptimeMillis();
+        mLastPrepareMsecs = cropTime - startTime;
+        final List<Classifier.Recognition> results;
+        if (USE_RESULT_CACHE) {
+            mCroppedBitmap.getPixels(mCropPixels, 0, INPUT_SIZE, 0, 0, INPUT_SIZE, INPUT_SIZE);
+            final long hash = DHash.ofArgb(mCropPixels, INPUT_SIZE, INPUT_SIZE);
+            final long now = SystemClock.uptimeMillis();
+            Classifier.Results entry = mImageCache.get(hash, now);
+            if (entry == null) {
+                entry = obtainResults(mImageCache);
+                synchronized (mClassifier) {
+                    mClassifier.recognizeImage(mCroppedBitmap, entry);
+                }
+                mImageCache.put(hash, entry, now);
+            }
+            results = entry.toList();
+        } else {
+            synchronized (mClassifier) {
+                results = mClassifier.recognizeImage(mCroppedBitmap);
+            }
+        }
+        final long endTime = SystemClock.uptimeMillis();
+        mLastClassifyMsecs = endTime - cropTime;
+        final long deltaTime = endTime - startTime;
         Log.d(TAG, "processImage: " + results.size() + " results in " + deltaTime + " msecs");
         return results;
     }
+
+    /**
+     * A holder for a new cache entry, refilling one the cache dropped, so
+     * steady state misses allocate no results.
+     */
+    private static Classifier.Results obtainResults(PerceptualCache<Classifier.Results> pCache) {
+        final Classifier.Results results = pCache.takeRecycled();
+        return results != null ? results : new Classifier.Results(MAX_RESULTS);
+    }
 }
@@ -17,6 +17,9 @@ package org.tensorflow.demo;
 
 import android.graphics.Bitmap;
 import android.graphics.RectF;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -97,8 +100,178 @@ public interface Classifier {
         }
     }
 
+    /**
+     * Reusable, caller-owned holder for the best results of one classification.  Filled in place
+     * by the recognize methods that take one, so steady state classification allocates nothing.
+     * Results are sorted by decreasing confidence.
+     */
+    public class Results {
+        private final int[] classIndices;
+        private final String[] ids;
+        private final String[] titles;
+        private final float[] confidences;
+        private int size;
+
+        /**
+         * @param capacity The most results this holder keeps, caps the classifier's max results.
+         */
+        public Results(final int capacity) {
+            classIndices = new int[capacity];
+            ids = new String[capacity];
+            titles = new String[capacity];
+            confidences = new float[capacity];
+        }
+
+        public int capacity() {
+            return confidences.length;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int getClassIndex(final int i) {
+            return classIndices[i];
+        }
+
+        public String getId(final int i) {
+            return ids[i];
+        }
+
+        public String getTitle(final int i) {
+            return titles[i];
+        }
+
+        public float getConfidence(final int i) {
+            return confidences[i];
+        }
+
+        /** For Classifier implementations: forget all results. */
+        public void clear() {
+            size = 0;
+        }
+
+        /** For Classifier implementations: append a result, ignored when full. */
+        public void add(final int classIndex, final String id, final String title, final float confidence) {
+            if (size < confidences.length) {
+                classIndices[size] = classIndex;
+                ids[size] = id;
+                titles[size] = title;
+                confidences[size] = confidence;
+                size++;
+            }
+        }
+
+        /** Replace these results with another holder's, up to this capacity. */
+        public void copyFrom(final Results other) {
+            clear();
+            for (int i = 0; i < other.size; ++i) {
+                add(other.classIndices[i], other.ids[i], other.titles[i], other.confidences[i]);
+            }
+        }
+
+        /** Copy out as Recognitions, allocates. */
+        public List<Recognition> toList() {
+            return toList(new ArrayList<Recognition>(size));
+        }
+
+        /**
+         * Copy out as Recognitions into a reused list, replacing its contents.  Only the
+         * Recognitions themselves are allocated.
+         */
+        public List<Recognition> toList(final List<Recognition> recognitions) {
+            recognitions.clear();
+            for (int i = 0; i < size; ++i) {
+                recognitions.add(new Recognition(ids[i], titles[i], confidences[i], null));
+            }
+            return recognitions;
+        }
+    }
+
     List<Recognition> recognizeImage(Bitmap bitmap);
 
+    /**
+     * Classify an image into a reusable holder, without allocating.
+     *
+     * @param bitmap Image, sized like the ones passed to recognizeImage.
+     * @param results Filled with the best results, up to its capacity.
+     */
+    void recognizeImage(Bitmap bitmap, Results results);
+
+    /**
+     * Classify several images, batching them into as few inference calls as the classifier's
+     * maximum batch size allows.
+     *
+     * @param bitmaps Images, each sized like the ones passed to recognizeImage.
+     * @return Results per image, in the same order as bitmaps.
+     */
+    List<List<Recognition>> recognizeImages(List<Bitmap> bitmaps);
+
+    /**
+     * Classify an already preprocessed input, skipping the Bitmap conversion.
+     *
+     * @param input Normalized input values in the layout the model expects.
+     */
+    List<Recognition> recognizeInput(float[] input);
+
+    /**
+     * Classify an already preprocessed input into a reusable holder, without allocating.
+     *
+     * @param input Normalized input values in the layout the model expects.
+     * @param results Filled with the best results, up to its capacity.
+     */
+    void recognizeInput(float[] input, Results results);
+
+    /**
+     * Classify an already preprocessed input held in a buffer, ideally a direct buffer in native
+     * byte order so it is fed without an intermediate heap copy.
+     *
+     * @param input Normalized input values from index 0, in the layout the model expects.
+     * @param results Filled with the best results, up to its capacity.
+     */
+    void recognizeInput(FloatBuffer input, Results results);
+
+    /**
+     * Classify an already prepared input for a quantized model, see isQuantized.
+     *
+     * @param input Raw uint8 channel values from index 0, in the layout the model expects.
+     * @param results Filled with the best results, up to its capacity.
+     */
+    void recognizeInput(ByteBuffer input, Results results);
+
+    /**
+     * @return True if the model takes uint8 input, prepared inputs must then be ByteBuffers.
+     */
+    boolean isQuantized();
+
+    /**
+     * Map quantized (uint8 or int32) outputs to confidences as scale * (value - zeroPoint).
+     * Only the selected results are dequantized.  Ignored for float outputs.
+     *
+     * @param scale Confidence per quantized step, positive.
+     * @param zeroPoint Quantized value of confidence 0.
+     */
+    void setOutputQuantization(float scale, int zeroPoint);
+
+    /**
+     * @param maxResults Return at most this many results, at least 1.
+     */
+    void setMaxResults(int maxResults);
+
+    /**
+     * @param threshold Only return results with a confidence above this.
+     */
+    void setThreshold(float threshold);
+
+    /**
+     * Add a top-K op after the output so only K scores and class indices are fetched per image,
+     * instead of the whole class vector.  Used while maxResults is at most k.
+     *
+     * @param k Number of results computed in the graph, 0 to disable.
+     * @return True if the graph supports it, otherwise the full output is used.
+     */
+    boolean enableGraphTopK(int k);
+
     void enableStatLogging(final boolean debug);
 
     String getStatString();
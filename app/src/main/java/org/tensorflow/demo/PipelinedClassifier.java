@@ -0,0 +1,41 @@
+package org.tensorflow.demo;
+
+import android.graphics.Bitmap;
+
+/**
+ * A Classifier that can also be driven as a pipeline, one stage per thread.
+ */
+public interface PipelinedClassifier extends Classifier {
+    /**
+     * Pipelined classification: with several slots, one thread can prepare an image into one
+     * slot while another runs the model on a second slot and a third collects the results of a
+     * third.  At most one thread per stage, and each slot goes prepare, run, collect in turn.
+     * Slot 0 is shared with the Classifier recognize calls, do not mix the two concurrently.
+     *
+     * @param numSlots Number of input and output buffer sets, at least 1.
+     */
+    void setNumSlots(int numSlots);
+
+    /**
+     * Pipeline stage 1: preprocess an image into a slot's input.
+     *
+     * @param slot Slot index, below numSlots.
+     * @param bitmap Image, sized like the ones passed to recognizeImage.
+     */
+    void prepareSlot(int slot, Bitmap bitmap);
+
+    /**
+     * Pipeline stage 2: run the model on a prepared slot, keeping its output in the slot.
+     *
+     * @param slot Slot index, below numSlots.
+     */
+    void runSlot(int slot);
+
+    /**
+     * Pipeline stage 3: select the best results of a slot's last run.
+     *
+     * @param slot Slot index, below numSlots.
+     * @param results Filled with the best results, up to its capacity.
+     */
+    void collectSlot(int slot, Results results);
+}
@@ -15,28 +15,46 @@ limitations under the License.
 
 package org.tensorflow.demo;
 
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.os.Trace;
 import android.util.Log;
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
-import java.util.PriorityQueue;
-import java.util.Vector;
+import org.tensorflow.DataType;
+import org.tensorflow.Graph;
 import org.tensorflow.Operation;
+import org.tensorflow.Tensor;
 import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
 
+import com.concreterose.lib.LabelTable;
+import com.concreterose.lib.TopKSelector;
+
 /** A classifier specialized to label images using TensorFlow. */
-public class TensorFlowImageClassifier implements Classifier {
+public class TensorFlowImageClassifier implements PipelinedClassifier {
     private static final String TAG = "TensorFlowImageCla...";
 
-    // Only return this many results with at least this confidence.
-    private static final int MAX_RESULTS = 3;
-    private static final float THRESHOLD = 0.1f;
+    private static final String ASSET_PREFIX = "file:///android_asset/";
+    private static final String FILE_PREFIX = "file://";
+
+    // By default only return this many results with at least this confidence.
+    private static final int DEFAULT_MAX_RESULTS = 3;
+    private static final float DEFAULT_THRESHOLD = 0.1f;
+
+    // Quantized outputs default to a uint8 softmax, 0..255 for 0..1.
+    private static final float DEFAULT_OUTPUT_SCALE = 1f / 255f;
 
     // Config values.
     private String inputName;
@@ -44,18 +62,67 @@ public class TensorFlowImageClassifier implements Classifier {
     private int inputSize;
     private int imageMean;
     private float imageStd;
+    private int maxBatchSize;
+    private int inputValuesPerImage;
+    private int numClasses;
+    private float threshold = DEFAULT_THRESHOLD;
+
+    // Quantized models: uint8 input fed as raw channel bytes, uint8 or int32 output selected
+    // on the raw values and dequantized as outputScale * (value - outputZeroPoint).
+    private boolean quantizedInput;
+    private DataType outputType;
+    private float outputScale = DEFAULT_OUTPUT_SCALE;
+    private int outputZeroPoint = 0;
+    private float rawThreshold;
+
+    /**
+     * One set of input and output buffers, sized for maxBatchSize images.  Slot 0 serves the
+     * recognize calls, extra slots let the pipeline calls prepare one image while another runs.
+     * Direct native-order buffers, fed and fetched without a heap array in between.  Only the
+     * input and output buffers matching the model's types are allocated.
+     */
+    private static final class Slot {
+        private FloatBuffer floatValues;
+        private ByteBuffer byteValues;
+        private FloatBuffer outputs;
+        private ByteBuffer byteOutputs;
+        private IntBuffer intOutputs;
+        private FloatBuffer topKValues;
+        private IntBuffer topKIndices;
+        private boolean usedGraphTopK = false;
+    }
 
     // Pre-allocated buffers.
-    private Vector<String> labels = new Vector<String>();
+    private LabelTable labels;
+    private String[] ids;
     private int[] intValues;
-    private float[] floatValues;
-    private float[] outputs;
+    private Slot[] slots;
     private String[] outputNames;
+    private FloatBuffer wrappedInput;
+    private float[] wrappedInputArray;
+    private final long[] inputDims = new long[4];
+
+    // Top-K selection scratch, its capacity is maxResults.  setMaxResults swaps in a new
+    // selector and holder rather than resizing, so a collect in progress keeps a consistent pair.
+    private volatile TopKSelector topK;
+    private volatile Results listResults;
+
+    // Optional graph-side top-K: when graphTopK > 0 only K values and indices per image are
+    // fetched.  Falls back to the full output when maxResults exceeds graphTopK.
+    private int graphTopK = 0;
+    private String[] topKOutputNames;
 
     private boolean logStats = false;
 
     private TensorFlowInferenceInterface inferenceInterface;
 
+    static {
+        // Graph's static initializer looks for the desktop tensorflow_jni library.  Load the
+        // AAR's native library first, TensorFlowInferenceInterface would only do so after the
+        // Graph is created.
+        System.loadLibrary("tensorflow_inference");
+    }
+
     private TensorFlowImageClassifier() {}
 
     /**
@@ -71,7 +138,7 @@ public class TensorFlowImageClassifier implements Classifier {
      * @param outputName The label of the output node.
      * @throws IOException
      */
-    public static Classifier create(
+    public static TensorFlowImageClassifier create(
             AssetManager assetManager,
             String modelFilename,
             String labelFilename,
@@ -80,32 +147,78 @@ public class TensorFlowImageClassifier implements Classifier {
             float imageStd,
             String inputName,
             String outputName) {
+        return create(assetManager, modelFilename, labelFilename, inputSize, imageMean, imageStd,
+                inputName, outputName, 1);
+    }
+
+    /**
+     * Initializes a native TensorFlow session for classifying images, with buffers for batches
+     * of up to maxBatchSize images per inference call.
+     *
+     * @param maxBatchSize The largest batch passed to one inference call, at least 1.
+     * @see #create(AssetManager, String, String, int, int, float, String, String)
+     */
+    public static TensorFlowImageClassifier create(
+            AssetManager assetManager,
+            String modelFilename,
+            String labelFilename,
+            int inputSize,
+            int imageMean,
+            float imageStd,
+            String inputName,
+            String outputName,
+            int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize " + maxBatchSize);
+        }
         TensorFlowImageClassifier c = new TensorFlowImageClassifier();
         c.inputName = inputName;
         c.outputName = outputName;
 
-        // Read the label names into memory.
-        // TODO(andrewharp): make this handle non-assets.
-        String actualFilename = labelFilename.split("file:///android_asset/")[1];
-        Log.i(TAG, "Reading labels from: " + actualFilename);
-        BufferedReader br = null;
+        // Map the label file, labels are decoded only when first shown.
+        Log.i(TAG, "Reading labels from: " + labelFilename);
         try {
-            br = new BufferedReader(new InputStreamReader(assetManager.open(actualFilename)));
-            String line;
-            while ((line = br.readLine()) != null) {
-                c.labels.add(line);
-            }
-            br.close();
+            c.labels = new LabelTable(mapFile(assetManager, labelFilename));
         } catch (IOException e) {
             throw new RuntimeException("Problem reading label file!" , e);
         }
 
-        c.inferenceInterface = new TensorFlowInferenceInterface(assetManager, modelFilename);
+        // Map the model and import it straight from the mapping.  The Java API only imports
+        // from a byte[], so one exact-size copy is made and dropped right after.
+        Log.i(TAG, "Reading model from: " + modelFilename);
+        final Graph graph = new Graph();
+        try {
+            final ByteBuffer model = mapFile(assetManager, modelFilename);
+            final byte[] graphDef = new byte[model.remaining()];
+            model.get(graphDef);
+            graph.importGraphDef(graphDef);
+        } catch (IOException e) {
+            graph.close();
+            throw new RuntimeException("Problem reading model file!", e);
+        } catch (RuntimeException e) {
+            graph.close();
+            throw e;
+        }
+        c.inferenceInterface = new TensorFlowInferenceInterface(graph);
 
         // The shape of the output is [N, NUM_CLASSES], where N is the batch size.
         final Operation operation = c.inferenceInterface.graphOperation(outputName);
-        final int numClasses = (int) operation.output(0).shape().size(1);
-        Log.i(TAG, "Read " + c.labels.size() + " labels, output layer size is " + numClasses);
+        c.numClasses = (int) operation.output(0).shape().size(1);
+        Log.i(TAG, "Read " + c.labels.size() + " labels, output layer size is " + c.numClasses);
+
+        // Quantized graphs take uint8 pixels and return uint8 or int32 scores.
+        c.quantizedInput = c.inferenceInterface.graphOperation(inputName).output(0).dataType() == DataType.UINT8;
+        c.outputType = operation.output(0).dataType();
+        if (c.outputType != DataType.FLOAT && c.outputType != DataType.UINT8 && c.outputType != DataType.INT32) {
+            throw new IllegalArgumentException("Unsupported output type " + c.outputType);
+        }
+        Log.i(TAG, "Input is " + (c.quantizedInput ? "uint8" : "float") + ", output is " + c.outputType);
+
+        // Result ids are the class index, computed once so results never build strings.
+        c.ids = new String[c.numClasses];
+        for (int i = 0; i < c.numClasses; ++i) {
+            c.ids[i] = String.valueOf(i).intern();
+        }
 
         // Ideally, inputSize could have been retrieved from the shape of the input operation.  Alas,
         // the placeholder node for input in the graphdef typically used does not specify a shape, so it
@@ -113,38 +226,421 @@ public class TensorFlowImageClassifier implements Classifier {
         c.inputSize = inputSize;
         c.imageMean = imageMean;
         c.imageStd = imageStd;
+        c.maxBatchSize = maxBatchSize;
+        c.inputValuesPerImage = inputSize * inputSize * 3;
 
         // Pre-allocate buffers.
         c.outputNames = new String[] {outputName};
         c.intValues = new int[inputSize * inputSize];
-        c.floatValues = new float[inputSize * inputSize * 3];
-        c.outputs = new float[numClasses];
+        c.slots = new Slot[] {c.newSlot()};
+        c.inputDims[1] = inputSize;
+        c.inputDims[2] = inputSize;
+        c.inputDims[3] = 3;
+        c.setMaxResults(DEFAULT_MAX_RESULTS);
+        c.updateRawThreshold();
 
         return c;
     }
 
+    private Slot newSlot() {
+        final Slot slot = new Slot();
+        if (quantizedInput) {
+            slot.byteValues = ByteBuffer.allocateDirect(inputValuesPerImage * maxBatchSize);
+        } else {
+            slot.floatValues = allocateFloats(inputValuesPerImage * maxBatchSize);
+        }
+        if (outputType == DataType.UINT8) {
+            slot.byteOutputs = ByteBuffer.allocateDirect(numClasses * maxBatchSize);
+        } else if (outputType == DataType.INT32) {
+            slot.intOutputs = allocateInts(numClasses * maxBatchSize);
+        } else {
+            slot.outputs = allocateFloats(numClasses * maxBatchSize);
+        }
+        if (graphTopK > 0) {
+            allocateTopK(slot, graphTopK);
+        }
+        return slot;
+    }
+
+    private void allocateTopK(final Slot slot, final int k) {
+        slot.topKValues = allocateFloats(maxBatchSize * k);
+        slot.topKIndices = allocateInts(maxBatchSize * k);
+    }
+
+    @Override
+    public void setNumSlots(final int numSlots) {
+        if (numSlots < 1) {
+            throw new IllegalArgumentException("numSlots " + numSlots);
+        }
+        final Slot[] resized = new Slot[numSlots];
+        for (int i = 0; i < numSlots; ++i) {
+            resized[i] = i < slots.length ? slots[i] : newSlot();
+        }
+        slots = resized;
+    }
+
+    @Override
+    public void setMaxResults(final int maxResults) {
+        if (maxResults < 1) {
+            throw new IllegalArgumentException("maxResults " + maxResults);
+        }
+        listResults = new Results(maxResults);
+        topK = new TopKSelector(maxResults);
+    }
+
+    @Override
+    public void setThreshold(final float threshold) {
+        this.threshold = threshold;
+        updateRawThreshold();
+    }
+
+    @Override
+    public boolean isQuantized() {
+        return quantizedInput;
+    }
+
+    @Override
+    public void setOutputQuantization(final float scale, final int zeroPoint) {
+        if (!(scale > 0)) {
+            throw new IllegalArgumentException("scale " + scale);
+        }
+        outputScale = scale;
+        outputZeroPoint = zeroPoint;
+        updateRawThreshold();
+    }
+
+    /** The threshold in quantized output units, so raw scores are compared directly. */
+    private void updateRawThreshold() {
+        rawThreshold = TopKSelector.getRawThreshold(threshold, outputScale, outputZeroPoint);
+    }
+
+    @Override
+    public boolean enableGraphTopK(final int k) {
+        graphTopK = 0;
+        if (k < 1) {
+            return false;
+        }
+        if (outputType != DataType.FLOAT) {
+            // Quantized scores are selected on the raw values, only K of them are dequantized.
+            Log.i(TAG, "Graph top-K is only used for float outputs");
+            return false;
+        }
+
+        final String topKName = outputName + "_top" + k;
+        try {
+            // Add Const(k) and TopKV2(output, k) to the loaded graph, once per k.
+            final Graph graph = inferenceInterface.graph();
+            if (graph.operation(topKName) == null) {
+                final Tensor<Integer> kTensor = Tensor.create(k, Integer.class);
+                try {
+                    final Operation kOperation = graph.opBuilder("Const", topKName + "_k")
+                            .setAttr("dtype", DataType.INT32)
+                            .setAttr("value", kTensor)
+                            .build();
+                    graph.opBuilder("TopKV2", topKName)
+                            .addInput(graph.operation(outputName).output(0))
+                            .addInput(kOperation.output(0))
+                            .build();
+                } finally {
+                    kTensor.close();
+                }
+            }
+
+            topKOutputNames = new String[] {topKName + ":0", topKName + ":1"};
+            for (final Slot slot : slots) {
+                allocateTopK(slot, k);
+            }
+            graphTopK = k;
+
+            // The op can build and still lack a kernel in a trimmed native library, run it once.
+            classifyPrepared(slots[0], 1);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Graph top-K unavailable, using the full output: " + e);
+            graphTopK = 0;
+            return false;
+        }
+        Log.i(TAG, "Using graph top-K, k=" + k);
+        return true;
+    }
+
     @Override
     public List<Recognition> recognizeImage(final Bitmap bitmap) {
+        final Results results = listResults;
+        recognizeImage(bitmap, results);
+        return results.toList();
+    }
+
+    @Override
+    public void recognizeImage(final Bitmap bitmap, final Results results) {
         // Log this method so that it can be analyzed with systrace.
         Trace.beginSection("recognizeImage");
 
         Trace.beginSection("preprocessBitmap");
-        // Preprocess the image data from 0-255 int to normalized float based
-        // on the provided parameters.
+        preprocessBitmap(bitmap, slots[0], 0);
+        Trace.endSection();
+
+        classifyPrepared(slots[0], 1);
+        collectResults(slots[0], 0, results);
+        Trace.endSection(); // "recognizeImage"
+    }
+
+    @Override
+    public void prepareSlot(final int slot, final Bitmap bitmap) {
+        Trace.beginSection("prepareSlot");
+        preprocessBitmap(bitmap, slots[slot], 0);
+        Trace.endSection();
+    }
+
+    @Override
+    public void runSlot(final int slot) {
+        Trace.beginSection("runSlot");
+        classifyPrepared(slots[slot], 1);
+        Trace.endSection();
+    }
+
+    @Override
+    public void collectSlot(final int slot, final Results results) {
+        collectResults(slots[slot], 0, results);
+    }
+
+    @Override
+    public List<List<Recognition>> recognizeImages(final List<Bitmap> bitmaps) {
+        Trace.beginSection("recognizeImages");
+        final List<List<Recognition>> recognitions = new ArrayList<List<Recognition>>(bitmaps.size());
+
+        // Run in chunks of up to maxBatchSize images, one inference call each.
+        for (int start = 0; start < bitmaps.size(); start += maxBatchSize) {
+            final int batchSize = Math.min(maxBatchSize, bitmaps.size() - start);
+
+            Trace.beginSection("preprocessBitmap");
+            for (int i = 0; i < batchSize; ++i) {
+                preprocessBitmap(bitmaps.get(start + i), slots[0], i);
+            }
+            Trace.endSection();
+
+            classifyPrepared(slots[0], batchSize);
+            final Results results = listResults;
+            for (int i = 0; i < batchSize; ++i) {
+                collectResults(slots[0], i, results);
+                recognitions.add(results.toList());
+            }
+        }
+
+        Trace.endSection(); // "recognizeImages"
+        return recognitions;
+    }
+
+    @Override
+    public List<Recognition> recognizeInput(final float[] input) {
+        final Results results = listResults;
+        recognizeInput(input, results);
+        return results.toList();
+    }
+
+    @Override
+    public void recognizeInput(final float[] input, final Results results) {
+        if (input.length != inputValuesPerImage) {
+            throw new IllegalArgumentException("input has " + input.length + " values, expected " + inputValuesPerImage);
+        }
+
+        // Heap input, the wrapper is reused while the caller reuses its array.
+        if (wrappedInputArray != input) {
+            wrappedInputArray = input;
+            wrappedInput = FloatBuffer.wrap(input);
+        }
+
+        Trace.beginSection("recognizeInput");
+        classify(wrappedInput, 1, slots[0]);
+        collectResults(slots[0], 0, results);
+        Trace.endSection(); // "recognizeInput"
+    }
+
+    @Override
+    public void recognizeInput(final FloatBuffer input, final Results results) {
+        if (input.capacity() < inputValuesPerImage) {
+            throw new IllegalArgumentException("input has " + input.capacity() + " values, expected " + inputValuesPerImage);
+        }
+
+        Trace.beginSection("recognizeInput");
+        classify(input, 1, slots[0]);
+        collectResults(slots[0], 0, results);
+        Trace.endSection(); // "recognizeInput"
+    }
+
+    @Override
+    public void recognizeInput(final ByteBuffer input, final Results results) {
+        if (input.capacity() < inputValuesPerImage) {
+            throw new IllegalArgumentException("input has " + input.capacity() + " values, expected " + inputValuesPerImage);
+        }
+
+        Trace.beginSection("recognizeInput");
+        classify(input, 1, slots[0]);
+        collectResults(slots[0], 0, results);
+        Trace.endSection(); // "recognizeInput"
+    }
+
+    /**
+     * Map a file read-only.  Names are file:///android_asset/ assets or filesystem paths, with
+     * or without file://.  Assets are only mapped when stored uncompressed (aaptOptions
+     * noCompress), compressed ones are read into the heap instead.
+     */
+    private static ByteBuffer mapFile(final AssetManager assetManager, final String filename)
+            throws IOException {
+        if (filename.startsWith(ASSET_PREFIX)) {
+            final String assetName = filename.substring(ASSET_PREFIX.length());
+            final AssetFileDescriptor fd;
+            try {
+                fd = assetManager.openFd(assetName);
+            } catch (FileNotFoundException e) {
+                Log.w(TAG, "Asset " + assetName + " is compressed, reading instead of mapping");
+                return readFully(assetManager.open(assetName));
+            }
+            final FileInputStream in = fd.createInputStream();
+            try {
+                return in.getChannel().map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(), fd.getLength());
+            } finally {
+                in.close();
+            }
+        }
+
+        final String path = filename.startsWith(FILE_PREFIX) ? filename.substring(FILE_PREFIX.length()) : filename;
+        final RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            final FileChannel channel = file.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            file.close();
+        }
+    }
+
+    private static ByteBuffer readFully(final InputStream in) throws IOException {
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] chunk = new byte[16384];
+            int count;
+            while ((count = in.read(chunk)) > 0) {
+                out.write(chunk, 0, count);
+            }
+            return ByteBuffer.wrap(out.toByteArray());
+        } finally {
+            in.close();
+        }
+    }
+
+    private String getLabel(final int c) {
+        return c < labels.size() ? labels.get(c) : "unknown";
+    }
+
+    /**
+     * Allocate a direct float buffer in native byte order, TensorFlow's tensor layout.
+     */
+    public static FloatBuffer allocateFloats(final int size) {
+        return ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    private static IntBuffer allocateInts(final int size) {
+        return ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    /**
+     * Preprocess the image data from 0-255 int to normalized float based on the provided
+     * parameters, or to raw bytes for a uint8 input, into a slot's input at batch index image.
+     */
+    private void preprocessBitmap(final Bitmap bitmap, final Slot slot, final int image) {
+        if (bitmap.getWidth() != inputSize || bitmap.getHeight() != inputSize) {
+            throw new IllegalArgumentException("bitmap is " + bitmap.getWidth() + "x" + bitmap.getHeight()
+                    + ", expected " + inputSize + "x" + inputSize);
+        }
         bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
-        for (int i = 0; i < intValues.length; ++i) {
-            final int val = intValues[i];
-            floatValues[i * 3 + 0] = (((val >> 16) & 0xFF) - imageMean) / imageStd;
-            floatValues[i * 3 + 1] = (((val >> 8) & 0xFF) - imageMean) / imageStd;
-            floatValues[i * 3 + 2] = ((val & 0xFF) - imageMean) / imageStd;
+        final int offset = image * inputValuesPerImage;
+        // Absolute puts straight into the direct buffer, no heap copy in between.
+        if (quantizedInput) {
+            final ByteBuffer dest = slot.byteValues;
+            for (int i = 0; i < intValues.length; ++i) {
+                final int val = intValues[i];
+                dest.put(offset + i * 3 + 0, (byte) (val >> 16));
+                dest.put(offset + i * 3 + 1, (byte) (val >> 8));
+                dest.put(offset + i * 3 + 2, (byte) val);
+            }
+        } else {
+            final FloatBuffer dest = slot.floatValues;
+            for (int i = 0; i < intValues.length; ++i) {
+                final int val = intValues[i];
+                dest.put(offset + i * 3 + 0, (((val >> 16) & 0xFF) - imageMean) / imageStd);
+                dest.put(offset + i * 3 + 1, (((val >> 8) & 0xFF) - imageMean) / imageStd);
+                dest.put(offset + i * 3 + 2, ((val & 0xFF) - imageMean) / imageStd);
+            }
         }
+    }
+
+    /**
+     * Classify the first batchSize images written by preprocessBitmap into a slot.
+     */
+    private void classifyPrepared(final Slot slot, final int batchSize) {
+        if (quantizedInput) {
+            classify(slot.byteValues, batchSize, slot);
+        } else {
+            classify(slot.floatValues, batchSize, slot);
+        }
+    }
+
+    /**
+     * Run one inference call on the first batchSize images in input, leaving the
+     * [batchSize, numClasses] scores in the slot's output buffer.
+     */
+    private void classify(final FloatBuffer input, final int batchSize, final Slot slot) {
+        if (quantizedInput) {
+            throw new IllegalStateException("Model takes uint8 input");
+        }
+
+        // Copy the input data into TensorFlow.  Only the used part of the buffer is fed, the
+        // tensor shape must match the element count exactly.  Feeding consumes the buffer, so
+        // the position is reset each time.
+        Trace.beginSection("feed");
+        input.clear();
+        input.limit(batchSize * inputValuesPerImage);
+        inputDims[0] = batchSize;
+        inferenceInterface.feed(inputName, input, inputDims);
         Trace.endSection();
 
-        // Copy the input data into TensorFlow.
+        runAndFetch(slot);
+    }
+
+    /**
+     * classify for a uint8 input, a quarter of the bytes of a float one.
+     */
+    private void classify(final ByteBuffer input, final int batchSize, final Slot slot) {
+        if (!quantizedInput) {
+            throw new IllegalStateException("Model takes float input");
+        }
+
         Trace.beginSection("feed");
-        inferenceInterface.feed(inputName, floatValues, 1, inputSize, inputSize, 3);
+        input.clear();
+        input.limit(batchSize * inputValuesPerImage);
+        inputDims[0] = batchSize;
+        inferenceInterface.feed(inputName, input, inputDims);
         Trace.endSection();
 
+        runAndFetch(slot);
+    }
+
+    private void runAndFetch(final Slot slot) {
+        slot.usedGraphTopK = graphTopK > 0 && topK.getCapacity() <= graphTopK;
+        if (slot.usedGraphTopK) {
+            // Only K sorted values and indices per image come back.
+            Trace.beginSection("run");
+            inferenceInterface.run(topKOutputNames, logStats);
+            Trace.endSection();
+
+            Trace.beginSection("fetch");
+            slot.topKValues.clear();
+            slot.topKIndices.clear();
+            inferenceInterface.fetch(topKOutputNames[0], slot.topKValues);
+            inferenceInterface.fetch(topKOutputNames[1], slot.topKIndices);
+            Trace.endSection();
+            return;
+        }
+
         // Run the inference call.
         Trace.beginSection("run");
         inferenceInterface.run(outputNames, logStats);
@@ -152,34 +648,55 @@ public class TensorFlowImageClassifier implements Classifier {
 
         // Copy the output Tensor back into the output array.
         Trace.beginSection("fetch");
-        inferenceInterface.fetch(outputName, outputs);
+        if (slot.byteOutputs != null) {
+            slot.byteOutputs.clear();
+            inferenceInterface.fetch(outputName, slot.byteOutputs);
+        } else if (slot.intOutputs != null) {
+            slot.intOutputs.clear();
+            inferenceInterface.fetch(outputName, slot.intOutputs);
+        } else {
+            slot.outputs.clear();
+            inferenceInterface.fetch(outputName, slot.outputs);
+        }
         Trace.endSection();
+    }
 
-        // Find the best classifications.
-        PriorityQueue<Recognition> pq =
-                new PriorityQueue<Recognition>(
-                        3,
-                        new Comparator<Recognition>() {
-                            @Override
-                            public int compare(Recognition lhs, Recognition rhs) {
-                                // Intentionally reversed to put high confidence at the head of the queue.
-                                return Float.compare(rhs.getConfidence(), lhs.getConfidence());
-                            }
-                        });
-        for (int i = 0; i < outputs.length; ++i) {
-            if (outputs[i] > THRESHOLD) {
-                pq.add(
-                        new Recognition(
-                                "" + i, labels.size() > i ? labels.get(i) : "unknown", outputs[i], null));
+    /**
+     * Fill results for one image of a slot's last classify call.
+     */
+    private void collectResults(final Slot slot, final int image, final Results results) {
+        final TopKSelector selector = topK;
+        final int k = Math.min(selector.getCapacity(), results.capacity());
+        results.clear();
+        if (slot.usedGraphTopK) {
+            // Already sorted by the graph, only the threshold is left.
+            final int offset = image * graphTopK;
+            for (int i = 0; i < k; ++i) {
+                final float score = slot.topKValues.get(offset + i);
+                if (score <= threshold) {
+                    break;
+                }
+                final int c = slot.topKIndices.get(offset + i);
+                results.add(c, ids[c], getLabel(c), score);
             }
+            return;
         }
-        final ArrayList<Recognition> recognitions = new ArrayList<Recognition>();
-        int recognitionsSize = Math.min(pq.size(), MAX_RESULTS);
-        for (int i = 0; i < recognitionsSize; ++i) {
-            recognitions.add(pq.poll());
+
+        final int offset = image * numClasses;
+        final int count;
+        if (slot.outputs != null) {
+            count = selector.select(slot.outputs, offset, numClasses, threshold, k);
+        } else if (slot.byteOutputs != null) {
+            count = selector.selectQuantized(slot.byteOutputs, offset, numClasses, rawThreshold, k,
+                    outputScale, outputZeroPoint);
+        } else {
+            count = selector.selectQuantized(slot.intOutputs, offset, numClasses, rawThreshold, k,
+                    outputScale, outputZeroPoint);
+        }
+        for (int i = 0; i < count; ++i) {
+            final int c = selector.getIndex(i);
+            results.add(c, ids[c], getLabel(c), selector.getScore(i));
         }
-        Trace.endSection(); // "recognizeImage"
-        return recognitions;
     }
 
     @Override
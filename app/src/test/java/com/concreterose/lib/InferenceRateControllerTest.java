@@ -0,0 +1,87 @@
+package com.concreterose.lib;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the rate controller backs off on stable results and snaps back.
+ */
+public class InferenceRateControllerTest {
+    private final static int[] CAT = {7, 3};
+    private final static int[] DOG = {9, 7};
+    private final static float[] CONFIDENCES = {0.8f, 0.1f};
+
+    @Test
+    public void onResults_backsOffToCap() {
+        final InferenceRateController controller = new InferenceRateController.Builder()
+                .setFirstBackoffMsecs(100)
+                .setMaxIntervalMsecs(500)
+                .build();
+        assertEquals(0L, controller.getIntervalMsecs());
+
+        controller.onResults(CAT, CONFIDENCES, 2);
+        assertEquals(0L, controller.getIntervalMsecs());
+        final long[] expected = {100, 200, 400, 500, 500};
+        for (long interval : expected) {
+            controller.onResults(CAT, CONFIDENCES, 2);
+            assertEquals(interval, controller.getIntervalMsecs());
+            assertEquals(InferenceRateController.DECISION_BACK_OFF, controller.getLastDecision());
+        }
+    }
+
+    @Test
+    public void onResults_snapsBackOnLabelChange() {
+        final InferenceRateController controller = new InferenceRateController.Builder().build();
+        for (int i = 0; i < 4; i++) {
+            controller.onResults(CAT, CONFIDENCES, 2);
+        }
+        assertTrue(controller.getIntervalMsecs() > 0L);
+
+        controller.onResults(DOG, CONFIDENCES, 2);
+        assertEquals(0L, controller.getIntervalMsecs());
+        assertEquals(InferenceRateController.DECISION_SNAP_BACK_LABEL, controller.getLastDecision());
+    }
+
+    @Test
+    public void onResults_snapsBackOnConfidenceShift() {
+        final InferenceRateController controller = new InferenceRateController.Builder()
+                .setStableDelta(0.2f)
+                .build();
+        controller.onResults(CAT, CONFIDENCES, 2);
+        controller.onResults(CAT, CONFIDENCES, 2);
+        assertTrue(controller.getIntervalMsecs() > 0L);
+
+        controller.onResults(CAT, new float[] {0.4f, 0.3f}, 2);
+        assertEquals(0L, controller.getIntervalMsecs());
+        assertEquals(0.6f, controller.getLastDelta(), 1e-5f);
+    }
+
+    @Test
+    public void shouldRun_followsInterval() {
+        final InferenceRateController controller = new InferenceRateController.Builder()
+                .setFirstBackoffMsecs(100)
+                .build();
+        assertTrue(controller.shouldRun(1000L));
+        controller.onResults(CAT, CONFIDENCES, 2);
+        assertTrue(controller.shouldRun(1001L));
+        controller.onResults(CAT, CONFIDENCES, 2);
+
+        assertFalse(controller.shouldRun(1050L));
+        assertTrue(controller.shouldRun(1101L));
+        assertEquals(3L, controller.getRunCount());
+        assertEquals(1L, controller.getSkipCount());
+    }
+
+    @Test
+    public void onSceneChange_snapsBack() {
+        final InferenceRateController controller = new InferenceRateController.Builder().build();
+        controller.onResults(CAT, CONFIDENCES, 2);
+        controller.onResults(CAT, CONFIDENCES, 2);
+        assertTrue(controller.getIntervalMsecs() > 0L);
+
+        controller.onSceneChange();
+        assertEquals(0L, controller.getIntervalMsecs());
+        assertEquals(InferenceRateController.DECISION_SNAP_BACK_SCENE, controller.getLastDecision());
+    }
+}
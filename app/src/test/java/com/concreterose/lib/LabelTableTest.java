@@ -0,0 +1,64 @@
+package com.concreterose.lib;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the label table splits lines like BufferedReader.readLine.
+ */
+public class LabelTableTest {
+
+    @Test
+    public void get_matchesReadLine() throws Exception {
+        checkMatchesReadLine("");
+        checkMatchesReadLine("one");
+        checkMatchesReadLine("one\n");
+        checkMatchesReadLine("one\ntwo\n");
+        checkMatchesReadLine("one\r\ntwo\rthree\n\nfive");
+        checkMatchesReadLine("\n\n");
+        checkMatchesReadLine("trailing cr\r");
+    }
+
+    @Test
+    public void get_decodesUtf8() throws Exception {
+        final LabelTable table = new LabelTable(ByteBuffer.wrap("caf\u00e9\n\u732b\n".getBytes("UTF-8")));
+        assertEquals(2, table.size());
+        assertEquals("caf\u00e9", table.get(0));
+        assertEquals("\u732b", table.get(1));
+        assertSame(table.get(1), table.get(1));
+    }
+
+    @Test
+    public void get_usesBufferPosition() throws Exception {
+        final ByteBuffer data = ByteBuffer.wrap("skip\nkeep\nlast".getBytes("UTF-8"));
+        data.position(5);
+        final LabelTable table = new LabelTable(data);
+        assertEquals(2, table.size());
+        assertEquals("keep", table.get(0));
+        assertEquals("last", table.get(1));
+    }
+
+    // ------------------------------------------------------------------------
+
+    private static void checkMatchesReadLine(String pText) throws Exception {
+        final List<String> expected = new ArrayList<>();
+        final BufferedReader reader = new BufferedReader(new StringReader(pText));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            expected.add(line);
+        }
+
+        final LabelTable table = new LabelTable(ByteBuffer.wrap(pText.getBytes("UTF-8")));
+        assertEquals(pText, expected.size(), table.size());
+        for (int i = 0; i < table.size(); i++) {
+            assertEquals(pText, expected.get(i), table.get(i));
+        }
+    }
+}
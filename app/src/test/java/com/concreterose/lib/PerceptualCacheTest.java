@@ -0,0 +1,165 @@
+package com.concreterose.lib;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check dHash separates scenes and the cache hits near duplicates.
+ */
+public class PerceptualCacheTest {
+    private final static int WIDTH = 64;
+    private final static int HEIGHT = 48;
+
+    @Test
+    public void dHash_nearDuplicatesAreClose() {
+        final byte[] scene = gradientScene(0);
+        final byte[] noisy = scene.clone();
+        final Random random = new Random(1);
+        for (int i = 0; i < noisy.length; i++) {
+            noisy[i] = (byte) clamp((noisy[i] & 0xFF) + random.nextInt(5) - 2);
+        }
+        final byte[] other = gradientScene(1);
+
+        final long hash = DHash.ofLuma(scene, WIDTH, HEIGHT);
+        assertTrue(DHash.distance(hash, DHash.ofLuma(noisy, WIDTH, HEIGHT)) <= 4);
+        assertTrue(DHash.distance(hash, DHash.ofLuma(other, WIDTH, HEIGHT)) > 16);
+    }
+
+    @Test
+    public void dHash_argbMatchesLuma() {
+        final byte[] luma = gradientScene(0);
+        final int[] pixels = new int[luma.length];
+        for (int i = 0; i < luma.length; i++) {
+            final int v = luma[i] & 0xFF;
+            pixels[i] = 0xFF000000 | (v << 16) | (v << 8) | v;
+        }
+        assertTrue(DHash.distance(DHash.ofLuma(luma, WIDTH, HEIGHT), DHash.ofArgb(pixels, WIDTH, HEIGHT)) <= 2);
+    }
+
+    @Test
+    public void dHash_modelInputMatchesArgb() {
+        final byte[] luma = gradientScene(0);
+        final int[] pixels = new int[luma.length];
+        final FloatBuffer floats = FloatBuffer.allocate(luma.length * 3);
+        final ByteBuffer bytes = ByteBuffer.allocate(luma.length * 3);
+        for (int i = 0; i < luma.length; i++) {
+            final int v = luma[i] & 0xFF;
+            pixels[i] = 0xFF000000 | (v << 16) | (v << 8) | v;
+            for (int c = 0; c < 3; c++) {
+                floats.put(i * 3 + c, (v - 117) / 2f);
+                bytes.put(i * 3 + c, (byte) v);
+            }
+        }
+        final long hash = DHash.ofArgb(pixels, WIDTH, HEIGHT);
+        assertEquals(hash, DHash.ofRgb(bytes, WIDTH, HEIGHT));
+        assertTrue(DHash.distance(hash, DHash.ofRgb(floats, WIDTH, HEIGHT)) <= 2);
+    }
+
+    @Test
+    public void get_hitsWithinDistance() {
+        final PerceptualCache<String> cache = new PerceptualCache.Builder()
+                .setMaxDistance(2)
+                .build();
+        cache.put(0x0FL, "a", 0L);
+        assertEquals("a", cache.get(0x0FL, 1L));
+        assertEquals("a", cache.get(0x03L, 1L));
+        assertNull(cache.get(0x00L, 1L));
+        assertEquals(2L, cache.getHits());
+        assertEquals(1L, cache.getMisses());
+    }
+
+    @Test
+    public void get_prefersClosest() {
+        final PerceptualCache<String> cache = new PerceptualCache.Builder()
+                .setMaxDistance(4)
+                .build();
+        cache.put(0x00L, "zero", 0L);
+        cache.put(0x07L, "seven", 0L);
+        assertEquals("seven", cache.get(0x0FL, 1L));
+        assertEquals("zero", cache.get(0x01L, 1L));
+    }
+
+    @Test
+    public void get_expiresAfterTtl() {
+        final PerceptualCache<String> cache = new PerceptualCache.Builder()
+                .setTtlMsecs(100L)
+                .build();
+        cache.put(1L, "a", 1000L);
+        assertEquals("a", cache.get(1L, 1099L));
+        assertNull(cache.get(1L, 1100L));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsed() {
+        final PerceptualCache<String> cache = new PerceptualCache.Builder()
+                .setMaxEntries(2)
+                .setMaxDistance(0)
+                .build();
+        cache.put(1L, "a", 0L);
+        cache.put(2L, "b", 0L);
+        assertEquals("a", cache.get(1L, 0L));
+        cache.put(4L, "c", 0L);
+        assertEquals(2, cache.size());
+        assertEquals("a", cache.get(1L, 0L));
+        assertNull(cache.get(2L, 0L));
+        assertEquals("c", cache.get(4L, 0L));
+    }
+
+    @Test
+    public void takeRecycled_returnsDroppedValues() {
+        final PerceptualCache<StringBuilder> cache = new PerceptualCache.Builder()
+                .setMaxEntries(1)
+                .setMaxDistance(0)
+                .setTtlMsecs(100L)
+                .build();
+        final StringBuilder a = new StringBuilder("a");
+        final StringBuilder b = new StringBuilder("b");
+        assertNull(cache.takeRecycled());
+
+        // Evicted.
+        cache.put(1L, a, 0L);
+        cache.put(2L, b, 0L);
+        assertSame(a, cache.takeRecycled());
+        assertNull(cache.takeRecycled());
+
+        // Replaced under the same hash, putting the same value back is not a drop.
+        cache.put(2L, b, 0L);
+        assertNull(cache.takeRecycled());
+        cache.put(2L, a, 0L);
+        assertSame(b, cache.takeRecycled());
+
+        // Expired.
+        assertNull(cache.get(2L, 100L));
+        assertSame(a, cache.takeRecycled());
+
+        // Cleared.
+        cache.put(3L, b, 200L);
+        cache.clear();
+        assertSame(b, cache.takeRecycled());
+    }
+
+    // ------------------------------------------------------------------------
+
+    private static byte[] gradientScene(int pVariant) {
+        final byte[] luma = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                final int v = pVariant == 0
+                        ? (x * 4 + (y / 8) * 20) % 256
+                        : (int) (128 + 100 * Math.sin(x * 0.3 + y * 0.2));
+                luma[y * WIDTH + x] = (byte) clamp(v);
+            }
+        }
+        return luma;
+    }
+
+    private static int clamp(int pValue) {
+        return Math.max(0, Math.min(255, pValue));
+    }
+}
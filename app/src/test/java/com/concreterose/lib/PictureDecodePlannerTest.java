@@ -0,0 +1,84 @@
+package com.concreterose.lib;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check picture sample sizes against targets and budgets, and strip sizes.
+ */
+public class PictureDecodePlannerTest {
+    private final static long UNLIMITED = Long.MAX_VALUE;
+
+    @Test
+    public void getSampleSize_fullResolutionWithoutTarget() {
+        assertEquals(1, PictureDecodePlanner.getSampleSize(4000, 3000, 0, 0, UNLIMITED, 4));
+    }
+
+    @Test
+    public void getSampleSize_coversTarget() {
+        // 4000x3000 / 4 = 1000x750 covers 800x600, / 8 would not.
+        assertEquals(4, PictureDecodePlanner.getSampleSize(4000, 3000, 800, 600, UNLIMITED, 4));
+        // Exactly the target size is still covered.
+        assertEquals(4, PictureDecodePlanner.getSampleSize(4000, 3000, 1000, 750, UNLIMITED, 4));
+    }
+
+    @Test
+    public void getSampleSize_targetEitherOrientation() {
+        // A portrait target against a landscape picture.
+        assertEquals(
+                PictureDecodePlanner.getSampleSize(4000, 3000, 800, 600, UNLIMITED, 4),
+                PictureDecodePlanner.getSampleSize(4000, 3000, 600, 800, UNLIMITED, 4));
+        assertEquals(4, PictureDecodePlanner.getSampleSize(3000, 4000, 800, 600, UNLIMITED, 4));
+    }
+
+    @Test
+    public void getSampleSize_oddSizesRoundDown() {
+        // 4001 / 2 = 2000 is one short of 2001.
+        assertEquals(1, PictureDecodePlanner.getSampleSize(4001, 3001, 2001, 1500, UNLIMITED, 4));
+        assertEquals(2, PictureDecodePlanner.getSampleSize(4001, 3001, 2000, 1500, UNLIMITED, 4));
+    }
+
+    @Test
+    public void getSampleSize_budgetWins() {
+        // Full size is 48 MB, 1/2 is 12 MB, 1/4 is 3 MB.
+        assertEquals(2, PictureDecodePlanner.getSampleSize(4000, 3000, 0, 0, 12000000L, 4));
+        assertEquals(4, PictureDecodePlanner.getSampleSize(4000, 3000, 0, 0, 11999999L, 4));
+        assertEquals(4, PictureDecodePlanner.getSampleSize(4000, 3000, 4000, 3000, 4000000L, 4));
+        // Two bytes per pixel halves the footprint.
+        assertEquals(2, PictureDecodePlanner.getSampleSize(4000, 3000, 0, 0, 6000000L, 2));
+    }
+
+    @Test
+    public void getSampleSize_capped() {
+        assertEquals(32, PictureDecodePlanner.getSampleSize(4000, 3000, 1, 1, UNLIMITED, 4));
+        assertEquals(32, PictureDecodePlanner.getSampleSize(4000, 3000, 0, 0, 1L, 4));
+    }
+
+    @Test
+    public void getNextSampleSize_doublesToCap() {
+        assertEquals(2, PictureDecodePlanner.getNextSampleSize(1));
+        assertEquals(16, PictureDecodePlanner.getNextSampleSize(8));
+        assertEquals(32, PictureDecodePlanner.getNextSampleSize(32));
+    }
+
+    @Test
+    public void getDecodedBytes_roundsDown() {
+        assertEquals(1000L * 750 * 4, PictureDecodePlanner.getDecodedBytes(4003, 3003, 4, 4));
+    }
+
+    @Test
+    public void getStripRows_fitsBudget() {
+        // 1000 pixels * 4 bytes = 4000 bytes per row.
+        assertEquals(16, PictureDecodePlanner.getStripRows(1000, 750, 64000, 4));
+        assertEquals(15, PictureDecodePlanner.getStripRows(1000, 750, 63999, 4));
+    }
+
+    @Test
+    public void getStripRows_clamped() {
+        // Never more than the picture, never less than one row.
+        assertEquals(750, PictureDecodePlanner.getStripRows(1000, 750, Integer.MAX_VALUE, 4));
+        assertEquals(1, PictureDecodePlanner.getStripRows(1000, 750, 100, 4));
+        assertEquals(1, PictureDecodePlanner.getStripRows(0, 1, 100, 4));
+    }
+}
@@ -0,0 +1,71 @@
+package com.concreterose.lib;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check preview size choice against targets, cost and crop waste.
+ */
+public class PreviewSizeChooserTest {
+    private final static int[] WIDTHS = {640, 176, 1280, 320, 1920};
+    private final static int[] HEIGHTS = {480, 144, 720, 240, 1080};
+
+    @Test
+    public void meetsTarget_eitherOrientation() {
+        final PreviewSizeChooser chooser = new PreviewSizeChooser(PreviewSizeChooser.DIRECT_NSECS_PER_PIXEL)
+                .addTarget(300, 400);
+        assertTrue(chooser.meetsTarget(400, 300));
+        assertTrue(chooser.meetsTarget(300, 400));
+        assertFalse(chooser.meetsTarget(320, 240));
+    }
+
+    @Test
+    public void choose_cheapestMeetingTarget() {
+        final PreviewSizeChooser chooser = new PreviewSizeChooser(PreviewSizeChooser.DIRECT_NSECS_PER_PIXEL)
+                .addTarget(224, 224);
+        assertEquals(3, chooser.choose(WIDTHS, HEIGHTS));
+    }
+
+    @Test
+    public void choose_meetsEveryTarget() {
+        // A classifier input and half of a 1080x1920 screen.
+        final PreviewSizeChooser chooser = new PreviewSizeChooser(PreviewSizeChooser.DIRECT_NSECS_PER_PIXEL)
+                .addTarget(224, 224)
+                .addTarget(540, 960);
+        assertEquals(2, chooser.choose(WIDTHS, HEIGHTS));
+    }
+
+    @Test
+    public void choose_equalCostPrefersLessWaste() {
+        final PreviewSizeChooser chooser = new PreviewSizeChooser(PreviewSizeChooser.DIRECT_NSECS_PER_PIXEL)
+                .addTarget(200, 200);
+        assertEquals(1, chooser.choose(new int[] {600, 400}, new int[] {200, 300}));
+        assertEquals(0, chooser.choose(new int[] {400, 600}, new int[] {300, 200}));
+    }
+
+    @Test
+    public void choose_fallsBackToLargest() {
+        final PreviewSizeChooser chooser = new PreviewSizeChooser(PreviewSizeChooser.DIRECT_NSECS_PER_PIXEL)
+                .addTarget(2000, 2000);
+        assertEquals(4, chooser.choose(WIDTHS, HEIGHTS));
+    }
+
+    @Test
+    public void choose_noCandidates() {
+        final PreviewSizeChooser chooser = new PreviewSizeChooser(PreviewSizeChooser.DIRECT_NSECS_PER_PIXEL)
+                .addTarget(224, 224);
+        assertEquals(-1, chooser.choose(new int[0], new int[0]));
+    }
+
+    @Test
+    public void clearTargets_forgetsTargets() {
+        final PreviewSizeChooser chooser = new PreviewSizeChooser(PreviewSizeChooser.DIRECT_NSECS_PER_PIXEL)
+                .addTarget(2000, 2000);
+        assertTrue(chooser.hasTarget());
+        chooser.clearTargets().addTarget(224, 224);
+        assertEquals(3, chooser.choose(WIDTHS, HEIGHTS));
+        chooser.clearTargets();
+        assertFalse(chooser.hasTarget());
+    }
+}
@@ -0,0 +1,71 @@
+package com.concreterose.lib;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the quality controller steps tiers with hysteresis.
+ */
+public class QualityControllerTest {
+
+    @Test
+    public void update_stepsDownWhenOverBudget() {
+        final QualityController controller = new QualityController.Builder(3)
+                .setBudgetMsecs(100)
+                .setDwellSamples(3, 10)
+                .build();
+        assertFalse(controller.update(200));
+        assertFalse(controller.update(200));
+        assertTrue(controller.update(200));
+        assertEquals(1, controller.getTier());
+
+        for (int i = 0; i < 20; i++) {
+            controller.update(200);
+        }
+        assertEquals(2, controller.getTier());
+        assertEquals(2L, controller.getTierChanges());
+    }
+
+    @Test
+    public void update_stepsUpOnlyWellUnderBudget() {
+        final QualityController controller = new QualityController.Builder(2)
+                .setBudgetMsecs(100)
+                .setUpshiftFraction(0.5f)
+                .setDwellSamples(1, 5)
+                .build();
+        controller.update(300);
+        assertEquals(1, controller.getTier());
+
+        // Fits the budget, but not by enough to step back up.
+        for (int i = 0; i < 20; i++) {
+            controller.update(70);
+        }
+        assertEquals(1, controller.getTier());
+
+        // The average has to fall below half the budget first.
+        assertFalse(controller.update(30));
+        int samples = 1;
+        while (!controller.update(30)) {
+            samples++;
+        }
+        assertTrue(samples < 10);
+        assertEquals(0, controller.getTier());
+    }
+
+    @Test
+    public void update_ignoresSingleSpike() {
+        final QualityController controller = new QualityController.Builder(2)
+                .setBudgetMsecs(100)
+                .setSmoothing(0.2f)
+                .setDwellSamples(3, 10)
+                .build();
+        for (int i = 0; i < 10; i++) {
+            controller.update(60);
+        }
+        controller.update(250);
+        controller.update(60);
+        assertEquals(0, controller.getTier());
+        assertTrue(controller.getAverageMsecs() < 100.0f);
+    }
+}
@@ -0,0 +1,187 @@
+package com.concreterose.lib;
+
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replay a small recording and check delivery, looping, pacing and buffers.
+ */
+public class ReplayFrameSourceTest {
+    private final static int WIDTH = 4;
+    private final static int HEIGHT = 2;
+    private final static int FRAMES = 3;
+    private final static long WAIT_MSECS = 5000;
+
+    @Test
+    public void start_deliversFramesInOrder() throws Exception {
+        final ReplayFrameSource source = new ReplayFrameSource.Builder(writeRecording(FRAMES))
+                .setLoop(false)
+                .build();
+        assertEquals(WIDTH, source.getWidth());
+        assertEquals(HEIGHT, source.getHeight());
+
+        final Recorder recorder = new Recorder(source, FRAMES, true);
+        final byte[] buffer = new byte[source.getBufferSize()];
+        source.addBuffer(buffer);
+        source.start(recorder);
+        assertTrue(recorder.mDone.await(WAIT_MSECS, TimeUnit.MILLISECONDS));
+        source.stop();
+
+        assertEquals(FRAMES, recorder.mFirstBytes.size());
+        for (int i = 0; i < FRAMES; i++) {
+            assertEquals(i, (int) recorder.mFirstBytes.get(i));
+            assertSame(buffer, recorder.mBuffers.get(i));
+        }
+        assertEquals((long) FRAMES, source.getFramesDelivered());
+        assertNull(recorder.mError);
+    }
+
+    @Test
+    public void start_loops() throws Exception {
+        final ReplayFrameSource source = new ReplayFrameSource.Builder(writeRecording(FRAMES)).build();
+        final Recorder recorder = new Recorder(source, 2 * FRAMES + 1, true);
+        source.addBuffer(new byte[source.getBufferSize()]);
+        source.start(recorder);
+        assertTrue(recorder.mDone.await(WAIT_MSECS, TimeUnit.MILLISECONDS));
+        source.stop();
+
+        for (int i = 0; i < 2 * FRAMES + 1; i++) {
+            assertEquals(i % FRAMES, (int) recorder.mFirstBytes.get(i));
+        }
+    }
+
+    @Test
+    public void start_pacesFixedRate() throws Exception {
+        final ReplayFrameSource source = new ReplayFrameSource.Builder(writeRecording(FRAMES))
+                .setFramesPerSecond(50f)
+                .build();
+        final Recorder recorder = new Recorder(source, 5, true);
+        source.addBuffer(new byte[source.getBufferSize()]);
+        source.start(recorder);
+        assertTrue(recorder.mDone.await(WAIT_MSECS, TimeUnit.MILLISECONDS));
+        source.stop();
+
+        // Four 20 msec intervals, allowing for timer slop.
+        final long elapsed = recorder.mTimestamps.get(4) - recorder.mTimestamps.get(0);
+        assertTrue("elapsed " + elapsed, elapsed >= 70L);
+    }
+
+    @Test
+    public void start_dropsFramesWithoutFreeBuffers() throws Exception {
+        final ReplayFrameSource source = new ReplayFrameSource.Builder(writeRecording(FRAMES))
+                .setFramesPerSecond(200f)
+                .build();
+
+        // Never hands the buffer back, so later frames have nowhere to go.
+        final Recorder recorder = new Recorder(source, 1, false);
+        source.addBuffer(new byte[source.getBufferSize()]);
+        source.start(recorder);
+        assertTrue(recorder.mDone.await(WAIT_MSECS, TimeUnit.MILLISECONDS));
+        final long deadline = System.currentTimeMillis() + WAIT_MSECS;
+        while (source.getFramesDropped() < 3L && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        source.stop();
+
+        assertEquals(1L, source.getFramesDelivered());
+        assertTrue(source.getFramesDropped() >= 3L);
+    }
+
+    @Test
+    public void build_rejectsEmptyRecording() throws Exception {
+        try {
+            new ReplayFrameSource.Builder(writeRecording(0)).build();
+            fail("built from a recording with no frames");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void start_reportsTruncatedRecording() throws Exception {
+        final File file = writeRecording(1);
+        final ReplayFrameSource source = new ReplayFrameSource.Builder(file).build();
+
+        // Header only by the time the replay opens it.
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(12);
+        raf.close();
+
+        final Recorder recorder = new Recorder(source, 1, true);
+        source.addBuffer(new byte[source.getBufferSize()]);
+        source.start(recorder);
+        assertTrue(recorder.mDone.await(WAIT_MSECS, TimeUnit.MILLISECONDS));
+        source.stop();
+
+        assertNotNull(recorder.mError);
+        assertEquals(0L, source.getFramesDelivered());
+    }
+
+    // ------------------------------------------------------------------------
+
+    private final static class Recorder implements FrameSource.FrameCallback {
+        private final FrameSource mSource;
+        private final boolean mRecycle;
+        private final List<Integer> mFirstBytes = new ArrayList<>();
+        private final List<byte[]> mBuffers = new ArrayList<>();
+        private final List<Long> mTimestamps = new ArrayList<>();
+        private final CountDownLatch mDone;
+        private volatile Exception mError = null;
+
+        private Recorder(FrameSource pSource, int pFrames, boolean pRecycle) {
+            mSource = pSource;
+            mRecycle = pRecycle;
+            mDone = new CountDownLatch(pFrames);
+        }
+
+        @Override
+        public void onFrame(byte[] pData, long pTimestampMsecs) {
+            if (mDone.getCount() > 0) {
+                mFirstBytes.add((int) pData[0]);
+                mBuffers.add(pData);
+                mTimestamps.add(pTimestampMsecs);
+                mDone.countDown();
+            }
+            if (mRecycle) {
+                mSource.addBuffer(pData);
+            }
+        }
+
+        @Override
+        public void onError(Exception pException) {
+            mError = pException;
+            while (mDone.getCount() > 0) {
+                mDone.countDown();
+            }
+        }
+    }
+
+    private static File writeRecording(int pFrames) throws IOException {
+        final File file = File.createTempFile("replay", ".nv21");
+        file.deleteOnExit();
+        final byte[] frame = new byte[YuvConverter.getNv21BufferSize(WIDTH, HEIGHT)];
+        final DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            ReplayFrameSource.writeHeader(out, WIDTH, HEIGHT);
+            for (int i = 0; i < pFrames; i++) {
+                // Number each frame in its first byte.
+                frame[0] = (byte) i;
+                ReplayFrameSource.writeFrame(out, frame, WIDTH, HEIGHT);
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,112 @@
+package com.concreterose.lib;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the scene change gate passes changes and holds back still frames.
+ */
+public class SceneChangeGateTest {
+    private final static int WIDTH = 160;
+    private final static int HEIGHT = 120;
+
+    @Test
+    public void accept_firstFrameAndChanges() {
+        final SceneChangeGate gate = new SceneChangeGate.Builder()
+                .setThreshold(10.0f)
+                .setMaxStaleMsecs(0)
+                .build();
+        assertTrue(gate.accept(frame(100), WIDTH, HEIGHT, 0L));
+        assertFalse(gate.accept(frame(104), WIDTH, HEIGHT, 10L));
+        assertEquals(4.0f, gate.getLastScore(), 0.0f);
+        assertTrue(gate.accept(frame(130), WIDTH, HEIGHT, 20L));
+        assertEquals(30.0f, gate.getLastScore(), 0.0f);
+        assertEquals(2L, gate.getAcceptedCount());
+        assertEquals(1L, gate.getSkippedCount());
+    }
+
+    @Test
+    public void accept_slowDriftAddsUp() {
+        final SceneChangeGate gate = new SceneChangeGate.Builder()
+                .setThreshold(10.0f)
+                .setMaxStaleMsecs(0)
+                .build();
+        assertTrue(gate.accept(frame(100), WIDTH, HEIGHT, 0L));
+        for (int level = 103; level < 110; level += 3) {
+            assertFalse(gate.accept(frame(level), WIDTH, HEIGHT, level));
+        }
+        assertTrue(gate.accept(frame(112), WIDTH, HEIGHT, 200L));
+    }
+
+    @Test
+    public void accept_forcedWhenStale() {
+        final SceneChangeGate gate = new SceneChangeGate.Builder()
+                .setMaxStaleMsecs(500)
+                .build();
+        assertTrue(gate.accept(frame(100), WIDTH, HEIGHT, 1000L));
+        assertFalse(gate.isLastStale());
+        assertFalse(gate.accept(frame(100), WIDTH, HEIGHT, 1499L));
+        assertFalse(gate.isLastStale());
+        assertTrue(gate.accept(frame(100), WIDTH, HEIGHT, 1500L));
+        assertTrue(gate.isLastStale());
+
+        // A real change is not reported as stale, even when it is late.
+        assertTrue(gate.accept(frame(200), WIDTH, HEIGHT, 3000L));
+        assertFalse(gate.isLastStale());
+    }
+
+    @Test
+    public void accept_sizeChangeResets() {
+        final SceneChangeGate gate = new SceneChangeGate.Builder()
+                .setMaxStaleMsecs(0)
+                .build();
+        assertTrue(gate.accept(frame(100), WIDTH, HEIGHT, 0L));
+        assertTrue(gate.accept(frame(100), HEIGHT, WIDTH, 10L));
+    }
+
+    @Test
+    public void check_uncommittedChangeIsNotTheReference() {
+        final SceneChangeGate gate = new SceneChangeGate.Builder()
+                .setThreshold(10.0f)
+                .setMaxStaleMsecs(0)
+                .build();
+        assertTrue(gate.check(frame(100), WIDTH, HEIGHT, 0L));
+        gate.commit();
+
+        // A moderate change the caller did not classify, say rate limited.
+        assertTrue(gate.check(frame(120), WIDTH, HEIGHT, 10L));
+        assertEquals(20.0f, gate.getLastScore(), 0.0f);
+
+        // Still scored against the classified frame, so still a change.
+        assertTrue(gate.check(frame(120), WIDTH, HEIGHT, 20L));
+        assertEquals(20.0f, gate.getLastScore(), 0.0f);
+        gate.commit();
+        assertFalse(gate.check(frame(120), WIDTH, HEIGHT, 30L));
+        assertEquals(2L, gate.getAcceptedCount());
+    }
+
+    @Test
+    public void commit_withoutCheckDoesNothing() {
+        final SceneChangeGate gate = new SceneChangeGate.Builder()
+                .setMaxStaleMsecs(0)
+                .build();
+        gate.commit();
+        assertEquals(0L, gate.getAcceptedCount());
+        assertTrue(gate.check(frame(100), WIDTH, HEIGHT, 0L));
+        gate.commit();
+        gate.commit();
+        assertEquals(1L, gate.getAcceptedCount());
+    }
+
+    // ------------------------------------------------------------------------
+
+    /** NV21 sized frame with a flat luma plane. */
+    private static byte[] frame(int pLevel) {
+        final byte[] data = new byte[WIDTH * HEIGHT * 3 / 2];
+        Arrays.fill(data, 0, WIDTH * HEIGHT, (byte) pLevel);
+        return data;
+    }
+}
@@ -0,0 +1,93 @@
+package com.concreterose.lib;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the sharpness gate tells edges from blur and respects focusing.
+ */
+public class SharpnessGateTest {
+    private final static int WIDTH = 320;
+    private final static int HEIGHT = 240;
+
+    @Test
+    public void measure_sharpBeatsBlurred() {
+        final SharpnessGate gate = new SharpnessGate.Builder().build();
+        final byte[] sharp = checkerboard();
+        final byte[] blurred = boxBlur(sharp, 6);
+        final float sharpScore = gate.measure(sharp, WIDTH, HEIGHT);
+        final float blurredScore = gate.measure(blurred, WIDTH, HEIGHT);
+        assertTrue(sharpScore + " vs " + blurredScore, sharpScore > 2 * blurredScore);
+    }
+
+    @Test
+    public void measure_flatIsZero() {
+        final SharpnessGate gate = new SharpnessGate.Builder().build();
+        final byte[] flat = new byte[WIDTH * HEIGHT];
+        Arrays.fill(flat, (byte) 90);
+        assertEquals(0.0f, gate.measure(flat, WIDTH, HEIGHT), 0.0f);
+    }
+
+    @Test
+    public void measure_averagesNoise() {
+        // Flat grey plus noise with a standard deviation of 4, at 960x720
+        // (10x10 blocks).  Picking single pixels would score about 320.
+        final int width = 960;
+        final int height = 720;
+        final byte[] noisy = new byte[width * height];
+        final Random random = new Random(1);
+        for (int i = 0; i < noisy.length; i++) {
+            noisy[i] = (byte) (128 + Math.round(random.nextGaussian() * 4));
+        }
+        final float score = new SharpnessGate.Builder().build().measure(noisy, width, height);
+        assertTrue("score " + score, score < SharpnessGate.DEFAULT_MIN_SHARPNESS);
+    }
+
+    @Test
+    public void accept_rejectsBlurryAndFocusing() {
+        final SharpnessGate gate = new SharpnessGate.Builder()
+                .setMinSharpness(10000.0f)
+                .build();
+        final byte[] sharp = checkerboard();
+        assertTrue(gate.accept(sharp, WIDTH, HEIGHT, false));
+        assertFalse(gate.accept(sharp, WIDTH, HEIGHT, true));
+        assertFalse(gate.accept(boxBlur(sharp, 12), WIDTH, HEIGHT, false));
+        assertEquals(1L, gate.getAcceptedCount());
+        assertEquals(1L, gate.getFocusingCount());
+        assertEquals(1L, gate.getBlurryCount());
+    }
+
+    // ------------------------------------------------------------------------
+
+    private static byte[] checkerboard() {
+        final byte[] luma = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                luma[y * WIDTH + x] = (byte) ((((x / 16) + (y / 16)) & 1) == 0 ? 40 : 210);
+            }
+        }
+        return luma;
+    }
+
+    /** Horizontal box blur, like motion blur. */
+    private static byte[] boxBlur(byte[] pLuma, int pRadius) {
+        final byte[] out = new byte[pLuma.length];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int sum = 0;
+                int count = 0;
+                for (int dx = -pRadius; dx <= pRadius; dx++) {
+                    final int xx = Math.max(0, Math.min(WIDTH - 1, x + dx));
+                    sum += pLuma[y * WIDTH + xx] & 0xFF;
+                    count++;
+                }
+                out[y * WIDTH + x] = (byte) (sum / count);
+            }
+        }
+        return out;
+    }
+}
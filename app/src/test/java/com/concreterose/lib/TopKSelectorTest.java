@@ -0,0 +1,154 @@
+package com.concreterose.lib;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check top-K selection against a full sort, and quantized selection.
+ */
+public class TopKSelectorTest {
+
+    @Test
+    public void select_bestFirst() {
+        final TopKSelector selector = new TopKSelector(3);
+        final FloatBuffer scores = FloatBuffer.wrap(new float[] {0.1f, 0.5f, 0.05f, 0.9f, 0.3f, 0.7f});
+        assertEquals(3, selector.select(scores, 0, 6, 0.0f, 3));
+        assertEquals(3, selector.getIndex(0));
+        assertEquals(5, selector.getIndex(1));
+        assertEquals(1, selector.getIndex(2));
+        assertEquals(0.9f, selector.getScore(0), 0f);
+        assertEquals(0.5f, selector.getScore(2), 0f);
+    }
+
+    @Test
+    public void select_threshold() {
+        final TopKSelector selector = new TopKSelector(3);
+        final FloatBuffer scores = FloatBuffer.wrap(new float[] {0.1f, 0.5f, 0.2f, 0.05f});
+        // Only scores above the threshold, equal is not enough.
+        assertEquals(2, selector.select(scores, 0, 4, 0.1f, 3));
+        assertEquals(1, selector.getIndex(0));
+        assertEquals(2, selector.getIndex(1));
+        assertEquals(0, selector.select(scores, 0, 4, 0.5f, 3));
+        assertEquals(0, selector.getCount());
+    }
+
+    @Test
+    public void select_kCappedAtCapacity() {
+        final TopKSelector selector = new TopKSelector(2);
+        final FloatBuffer scores = FloatBuffer.wrap(new float[] {0.4f, 0.3f, 0.2f, 0.1f});
+        assertEquals(2, selector.select(scores, 0, 4, 0.0f, 10));
+        assertEquals(1, selector.select(scores, 0, 4, 0.0f, 1));
+        assertEquals(0, selector.getIndex(0));
+        assertEquals(0, selector.select(scores, 0, 4, 0.0f, 0));
+    }
+
+    @Test
+    public void select_rowAtOffset() {
+        // Second image of a batch of two, three classes each.
+        final TopKSelector selector = new TopKSelector(1);
+        final FloatBuffer scores = FloatBuffer.wrap(new float[] {0.9f, 0.0f, 0.1f, 0.2f, 0.6f, 0.2f});
+        assertEquals(1, selector.select(scores, 3, 3, 0.0f, 1));
+        assertEquals(1, selector.getIndex(0));
+        assertEquals(0.6f, selector.getScore(0), 0f);
+    }
+
+    @Test
+    public void select_matchesSort() {
+        final Random random = new Random(11);
+        final int classes = 1001;
+        final float[] values = new float[classes];
+        final TopKSelector selector = new TopKSelector(5);
+        for (int trial = 0; trial < 20; trial++) {
+            for (int i = 0; i < classes; i++) {
+                values[i] = random.nextFloat();
+            }
+            final float[] sorted = values.clone();
+            Arrays.sort(sorted);
+
+            assertEquals(5, selector.select(FloatBuffer.wrap(values), 0, classes, 0.0f, 5));
+            for (int r = 0; r < 5; r++) {
+                assertEquals(sorted[classes - 1 - r], selector.getScore(r), 0f);
+                assertEquals(selector.getScore(r), values[selector.getIndex(r)], 0f);
+            }
+        }
+    }
+
+    @Test
+    public void getRawThreshold_notRounded() {
+        // 0.1 of a uint8 softmax is 25.5 steps: 25 is below it, 26 above.
+        final float raw = TopKSelector.getRawThreshold(0.1f, 1f / 255f, 0);
+        assertEquals(25.5f, raw, 1e-4f);
+
+        final TopKSelector selector = new TopKSelector(3);
+        final ByteBuffer scores = ByteBuffer.wrap(new byte[] {25, 26, 10});
+        assertEquals(1, selector.selectQuantized(scores, 0, 3, raw, 3, 1f / 255f, 0));
+        assertEquals(1, selector.getIndex(0));
+
+        // A zero point shifts the threshold by the same number of steps.
+        assertEquals(35.5f, TopKSelector.getRawThreshold(0.1f, 1f / 255f, 10), 1e-4f);
+    }
+
+    @Test
+    public void selectQuantized_uint8IsUnsigned() {
+        // 200 and 255 are negative as Java bytes, they must still win.
+        final TopKSelector selector = new TopKSelector(3);
+        final ByteBuffer scores = ByteBuffer.wrap(new byte[] {100, (byte) 200, 50, (byte) 255});
+        assertEquals(3, selector.selectQuantized(scores, 0, 4, 0.0f, 3, 1f / 255f, 0));
+        assertEquals(3, selector.getIndex(0));
+        assertEquals(1, selector.getIndex(1));
+        assertEquals(0, selector.getIndex(2));
+        assertEquals(1.0f, selector.getScore(0), 1e-6f);
+        assertEquals(200f / 255f, selector.getScore(1), 1e-6f);
+    }
+
+    @Test
+    public void selectQuantized_int32() {
+        final TopKSelector selector = new TopKSelector(2);
+        final IntBuffer scores = IntBuffer.wrap(new int[] {-5, 70000, 300, -100000, 69999});
+        assertEquals(2, selector.selectQuantized(scores, 0, 5, -1000f, 2, 1e-5f, 0));
+        assertEquals(1, selector.getIndex(0));
+        assertEquals(4, selector.getIndex(1));
+        assertEquals(0.7f, selector.getScore(0), 1e-6f);
+    }
+
+    @Test
+    public void selectQuantized_matchesUint8AndInt32() {
+        // The same raw values selected from either output type give the same results.
+        final Random random = new Random(5);
+        final int classes = 1001;
+        final byte[] bytes = new byte[classes];
+        final int[] ints = new int[classes];
+        random.nextBytes(bytes);
+        for (int i = 0; i < classes; i++) {
+            ints[i] = bytes[i] & 0xFF;
+        }
+        final TopKSelector byteSelector = new TopKSelector(5);
+        final TopKSelector intSelector = new TopKSelector(5);
+        final float raw = TopKSelector.getRawThreshold(0.1f, 1f / 255f, 0);
+        final int count = byteSelector.selectQuantized(ByteBuffer.wrap(bytes), 0, classes, raw, 5, 1f / 255f, 0);
+        assertEquals(count, intSelector.selectQuantized(IntBuffer.wrap(ints), 0, classes, raw, 5, 1f / 255f, 0));
+        for (int r = 0; r < count; r++) {
+            // Ties may come out in either order, the scores may not.
+            assertEquals(byteSelector.getScore(r), intSelector.getScore(r), 0f);
+            assertEquals(ints[byteSelector.getIndex(r)], ints[intSelector.getIndex(r)]);
+        }
+    }
+
+    @Test
+    public void selectQuantized_dequantizesSelected() {
+        // Confidence = scale * (raw - zeroPoint), raw 128 is confidence 0.
+        final TopKSelector selector = new TopKSelector(2);
+        final ByteBuffer scores = ByteBuffer.wrap(new byte[] {(byte) 128, (byte) 192, (byte) 160});
+        final float raw = TopKSelector.getRawThreshold(0.0f, 0.5f / 64f, 128);
+        assertEquals(2, selector.selectQuantized(scores, 0, 3, raw, 2, 0.5f / 64f, 128));
+        assertEquals(0.5f, selector.getScore(0), 1e-6f);
+        assertEquals(0.25f, selector.getScore(1), 1e-6f);
+    }
+}
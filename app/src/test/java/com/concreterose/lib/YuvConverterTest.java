@@ -0,0 +1,219 @@
+package com.concreterose.lib;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the direct YUV conversion against a floating point BT.601 reference.
+ */
+public class YuvConverterTest {
+    private final static int WIDTH = 6;
+    private final static int HEIGHT = 4;
+
+    @Test
+    public void toArgb_gray() throws Exception {
+        assertEquals(0xFF000000, YuvConverter.toArgb(16, 128, 128));
+        assertEquals(0xFFFFFFFF, YuvConverter.toArgb(255, 128, 128));
+        final int gray = YuvConverter.toArgb(126, 128, 128);
+        assertEquals((gray >> 16) & 0xFF, gray & 0xFF);
+        assertEquals((gray >> 8) & 0xFF, gray & 0xFF);
+    }
+
+    @Test
+    public void toArgb_matchesReference() throws Exception {
+        for (int y = 0; y < 256; y += 5) {
+            for (int u = 0; u < 256; u += 15) {
+                for (int v = 0; v < 256; v += 15) {
+                    final int actual = YuvConverter.toArgb(y, u, v);
+                    final int expected = referenceArgb(y, u, v);
+                    for (int shift = 0; shift <= 16; shift += 8) {
+                        final int a = (actual >> shift) & 0xFF;
+                        final int e = (expected >> shift) & 0xFF;
+                        assertTrue("yuv=" + y + "," + u + "," + v, Math.abs(a - e) <= 1);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void nv21ToArgb_usesSharedChroma() throws Exception {
+        final byte[] nv21 = makeNv21();
+        final int[] out = new int[WIDTH * HEIGHT];
+        YuvConverter.nv21ToArgb(nv21, WIDTH, HEIGHT, out);
+
+        final int frameSize = WIDTH * HEIGHT;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                final int uvIndex = frameSize + (y / 2) * WIDTH + (x / 2) * 2;
+                final int expected = YuvConverter.toArgb(
+                        nv21[y * WIDTH + x] & 0xFF, nv21[uvIndex + 1] & 0xFF, nv21[uvIndex] & 0xFF);
+                assertEquals(expected, out[y * WIDTH + x]);
+            }
+        }
+    }
+
+    @Test
+    public void yv12ToArgb_matchesNv21() throws Exception {
+        final byte[] nv21 = makeNv21();
+        final byte[] yv12 = new byte[YuvConverter.getYv12BufferSize(WIDTH, HEIGHT)];
+
+        // Repack the same planes with YV12 strides: 16 for Y, 16 for each chroma plane.
+        final int frameSize = WIDTH * HEIGHT;
+        for (int y = 0; y < HEIGHT; y++) {
+            System.arraycopy(nv21, y * WIDTH, yv12, y * 16, WIDTH);
+        }
+        final int vPlane = 16 * HEIGHT;
+        final int uPlane = vPlane + 16 * (HEIGHT / 2);
+        for (int y = 0; y < HEIGHT / 2; y++) {
+            for (int x = 0; x < WIDTH / 2; x++) {
+                yv12[vPlane + y * 16 + x] = nv21[frameSize + y * WIDTH + x * 2];
+                yv12[uPlane + y * 16 + x] = nv21[frameSize + y * WIDTH + x * 2 + 1];
+            }
+        }
+
+        final int[] expected = new int[frameSize];
+        final int[] actual = new int[frameSize];
+        YuvConverter.nv21ToArgb(nv21, WIDTH, HEIGHT, expected);
+        YuvConverter.yv12ToArgb(yv12, WIDTH, HEIGHT, actual);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void nv21ToArgb_backCameraMatchesMatrix() throws Exception {
+        // Typical back camera: sensor orientation 90, display rotations 0..270.
+        checkOrientationMatchesMatrix(90, false);
+        checkOrientationMatchesMatrix(0, false);
+        checkOrientationMatchesMatrix(270, false);
+        checkOrientationMatchesMatrix(180, false);
+    }
+
+    @Test
+    public void nv21ToArgb_frontCameraMatchesMatrix() throws Exception {
+        // Front camera in portrait: rotated and mirrored.
+        checkOrientationMatchesMatrix(90, true);
+        checkOrientationMatchesMatrix(0, true);
+        checkOrientationMatchesMatrix(270, true);
+        checkOrientationMatchesMatrix(180, true);
+    }
+
+    @Test
+    public void rotateArgb_matchesNv21Rotation() throws Exception {
+        final byte[] nv21 = makeNv21();
+        final int[] plain = new int[WIDTH * HEIGHT];
+        YuvConverter.nv21ToArgb(nv21, WIDTH, HEIGHT, plain);
+        for (int rotation = 0; rotation < 360; rotation += 90) {
+            for (int flip = 0; flip < 2; flip++) {
+                final int[] expected = new int[WIDTH * HEIGHT];
+                final int[] actual = new int[WIDTH * HEIGHT];
+                YuvConverter.nv21ToArgb(nv21, WIDTH, HEIGHT, rotation, flip == 1, expected);
+                YuvConverter.rotateArgb(plain, WIDTH, HEIGHT, rotation, flip == 1, actual);
+                assertArrayEquals("rotation=" + rotation + " flip=" + flip, expected, actual);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getDestinationIndex_rejectsOddRotation() throws Exception {
+        YuvConverter.getDestinationIndex(0, 0, WIDTH, HEIGHT, 45, false);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nv21ToArgb_rejectsShortBuffer() throws Exception {
+        YuvConverter.nv21ToArgb(new byte[WIDTH * HEIGHT], WIDTH, HEIGHT, new int[WIDTH * HEIGHT]);
+    }
+
+    // ------------------------------------------------------------------------
+
+    private static byte[] makeNv21() {
+        final byte[] nv21 = new byte[YuvConverter.getNv21BufferSize(WIDTH, HEIGHT)];
+        for (int i = 0; i < nv21.length; i++) {
+            nv21[i] = (byte) ((i * 37 + 11) & 0xFF);
+        }
+        return nv21;
+    }
+
+    /**
+     * Convert unrotated, then push every pixel center through the same
+     * transform CameraLib.fixCameraRotation builds with a Matrix.
+     */
+    private static void checkOrientationMatchesMatrix(int pRotation, boolean pFlipVertical) {
+        final byte[] nv21 = makeNv21();
+        final int[] plain = new int[WIDTH * HEIGHT];
+        final int[] rotated = new int[WIDTH * HEIGHT];
+        YuvConverter.nv21ToArgb(nv21, WIDTH, HEIGHT, plain);
+        YuvConverter.nv21ToArgb(nv21, WIDTH, HEIGHT, pRotation, pFlipVertical, rotated);
+
+        final boolean swap = (pRotation % 180) == 90;
+        final int dstWidth = swap ? HEIGHT : WIDTH;
+        final int dstHeight = swap ? WIDTH : HEIGHT;
+        final double[] matrix = buildPreviewMatrix(pRotation, pFlipVertical);
+
+        final int[] expected = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                final double cx = x + 0.5;
+                final double cy = y + 0.5;
+                final int dx = (int) Math.floor(matrix[0] * cx + matrix[1] * cy + matrix[2]);
+                final int dy = (int) Math.floor(matrix[3] * cx + matrix[4] * cy + matrix[5]);
+                assertTrue("in bounds", dx >= 0 && dx < dstWidth && dy >= 0 && dy < dstHeight);
+                expected[dy * dstWidth + dx] = plain[y * WIDTH + x];
+            }
+        }
+        assertArrayEquals("rotation=" + pRotation + " flip=" + pFlipVertical, expected, rotated);
+    }
+
+    /**
+     * Same steps as CameraLib.fixCameraRotation, as a row-major 2x3 affine.
+     */
+    private static double[] buildPreviewMatrix(int pRotation, boolean pFlipVertical) {
+        double[] m = new double[] {1, 0, 0, 0, 1, 0};
+        if (pRotation != 0) {
+            m = postRotate(m, pRotation, WIDTH / 2, HEIGHT / 2);
+            if ((pRotation % 180) == 90) {
+                final int dx = (WIDTH - HEIGHT) / 2;
+                final int dy = (HEIGHT - WIDTH) / 2;
+                m = postConcat(m, new double[] {1, 0, -dx, 0, 1, -dy});
+            }
+        }
+        if (pFlipVertical) {
+            final int cy = (pRotation % 180) == 0 ? HEIGHT / 2 : WIDTH / 2;
+            m = postConcat(m, new double[] {1, 0, 0, 0, -1, 2 * cy});
+        }
+        return m;
+    }
+
+    private static double[] postRotate(double[] pMatrix, int pDegrees, double pPx, double pPy) {
+        final double radians = Math.toRadians(pDegrees);
+        final double cos = Math.round(Math.cos(radians));
+        final double sin = Math.round(Math.sin(radians));
+        return postConcat(pMatrix, new double[] {
+                cos, -sin, pPx - cos * pPx + sin * pPy,
+                sin, cos, pPy - sin * pPx - cos * pPy});
+    }
+
+    private static double[] postConcat(double[] pMatrix, double[] pOther) {
+        return new double[] {
+                pOther[0] * pMatrix[0] + pOther[1] * pMatrix[3],
+                pOther[0] * pMatrix[1] + pOther[1] * pMatrix[4],
+                pOther[0] * pMatrix[2] + pOther[1] * pMatrix[5] + pOther[2],
+                pOther[3] * pMatrix[0] + pOther[4] * pMatrix[3],
+                pOther[3] * pMatrix[1] + pOther[4] * pMatrix[4],
+                pOther[3] * pMatrix[2] + pOther[4] * pMatrix[5] + pOther[5]};
+    }
+
+    private static int referenceArgb(int pY, int pU, int pV) {
+        final double y = 1.164 * Math.max(0, pY - 16);
+        final double u = pU - 128;
+        final double v = pV - 128;
+        final int r = clamp(y + 1.596 * v);
+        final int g = clamp(y - 0.813 * v - 0.391 * u);
+        final int b = clamp(y + 2.018 * u);
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private static int clamp(double pValue) {
+        return (int) Math.max(0, Math.min(255, Math.floor(pValue)));
+    }
+}
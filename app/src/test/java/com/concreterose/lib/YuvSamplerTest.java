@@ -0,0 +1,163 @@
+package com.concreterose.lib;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the fused sampler against YuvConverter and reference crops.
+ */
+public class YuvSamplerTest {
+    private final static int WIDTH = 8;
+    private final static int HEIGHT = 8;
+
+    private final static float[] IDENTITY = {1f, 0f, 0f, 0f, 1f, 0f};
+
+    @Test
+    public void sampleNv21_identityMatchesConverter() throws Exception {
+        final byte[] nv21 = makeNv21();
+        final int[] argb = new int[WIDTH * HEIGHT];
+        YuvConverter.nv21ToArgb(nv21, WIDTH, HEIGHT, argb);
+
+        for (int mode : new int[] {YuvSampler.SAMPLE_NEAREST, YuvSampler.SAMPLE_BILINEAR}) {
+            final YuvSampler sampler = new YuvSampler(WIDTH, HEIGHT, 0f, 1f, mode);
+            sampler.setTransform(WIDTH, HEIGHT, IDENTITY);
+            final float[] out = new float[WIDTH * HEIGHT * 3];
+            assertTrue(sampler.sampleNv21(nv21, out));
+            assertArrayEquals(toFloats(argb, 0f, 1f), out, 0f);
+        }
+    }
+
+    @Test
+    public void sampleNv21_cropAndScale() throws Exception {
+        final byte[] nv21 = makeNv21();
+        final int[] argb = new int[WIDTH * HEIGHT];
+        YuvConverter.nv21ToArgb(nv21, WIDTH, HEIGHT, argb);
+
+        // Destination pixel (x, y) covers source 2x+1..2x+3, 2y+2..2y+4, centered on (2x+2, 2y+3).
+        final int dstWidth = 3;
+        final int dstHeight = 2;
+        final int[] crop = new int[dstWidth * dstHeight];
+        for (int y = 0; y < dstHeight; y++) {
+            for (int x = 0; x < dstWidth; x++) {
+                crop[y * dstWidth + x] = argb[(2 * y + 3) * WIDTH + 2 * x + 2];
+            }
+        }
+
+        final YuvSampler sampler = new YuvSampler(dstWidth, dstHeight, 0f, 1f, YuvSampler.SAMPLE_NEAREST);
+        sampler.setTransform(WIDTH, HEIGHT, new float[] {2f, 0f, 1f, 0f, 2f, 2f});
+        final float[] out = new float[dstWidth * dstHeight * 3];
+        assertTrue(sampler.sampleNv21(nv21, out));
+        assertArrayEquals(toFloats(crop, 0f, 1f), out, 0f);
+    }
+
+    @Test
+    public void sampleNv21_rotationMatchesConverter() throws Exception {
+        final int width = 8;
+        final int height = 6;
+        final byte[] nv21 = makeNv21(width, height);
+        final int[] rotated = new int[width * height];
+        YuvConverter.nv21ToArgb(nv21, width, height, 90, false, rotated);
+
+        // 90 degrees clockwise: destination (c, r) is source (r, height - 1 - c).
+        final YuvSampler sampler = new YuvSampler(height, width, 0f, 1f, YuvSampler.SAMPLE_NEAREST);
+        sampler.setTransform(width, height, new float[] {0f, 1f, 0f, -1f, 0f, height});
+        final float[] out = new float[width * height * 3];
+        assertTrue(sampler.sampleNv21(nv21, out));
+        assertArrayEquals(toFloats(rotated, 0f, 1f), out, 0f);
+    }
+
+    @Test
+    public void sampleNv21_bilinearInterpolatesLuma() throws Exception {
+        final byte[] nv21 = new byte[YuvConverter.getNv21BufferSize(WIDTH, HEIGHT)];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                nv21[y * WIDTH + x] = (byte) (40 + 20 * x);
+            }
+        }
+        Arrays.fill(nv21, WIDTH * HEIGHT, nv21.length, (byte) 128);
+
+        // Half a pixel right, each sample falls midway between two columns.
+        final YuvSampler sampler = new YuvSampler(WIDTH, HEIGHT, 0f, 1f, YuvSampler.SAMPLE_BILINEAR);
+        sampler.setTransform(WIDTH, HEIGHT, new float[] {1f, 0f, 0.5f, 0f, 1f, 0f});
+        final float[] out = new float[WIDTH * HEIGHT * 3];
+        assertTrue(sampler.sampleNv21(nv21, out));
+        for (int x = 0; x < WIDTH - 1; x++) {
+            final int expected = YuvConverter.toArgb(50 + 20 * x, 128, 128);
+            assertEquals("x=" + x, (expected >> 8) & 0xFF, out[(3 * WIDTH + x) * 3 + 1], 0f);
+        }
+    }
+
+    @Test
+    public void sampleNv21_normalizes() throws Exception {
+        final byte[] nv21 = makeNv21();
+        final int[] argb = new int[WIDTH * HEIGHT];
+        YuvConverter.nv21ToArgb(nv21, WIDTH, HEIGHT, argb);
+
+        final YuvSampler sampler = new YuvSampler(WIDTH, HEIGHT, 117f, 2f, YuvSampler.SAMPLE_NEAREST);
+        sampler.setTransform(WIDTH, HEIGHT, IDENTITY);
+        final float[] out = new float[WIDTH * HEIGHT * 3];
+        assertTrue(sampler.sampleNv21(nv21, out));
+        assertArrayEquals(toFloats(argb, 117f, 2f), out, 1e-6f);
+    }
+
+    @Test
+    public void sampleNv21_bytesAreRawChannels() throws Exception {
+        final byte[] nv21 = makeNv21();
+        final int[] argb = new int[WIDTH * HEIGHT];
+        YuvConverter.nv21ToArgb(nv21, WIDTH, HEIGHT, argb);
+
+        // Normalization does not apply to the quantized path.
+        final YuvSampler sampler = new YuvSampler(WIDTH, HEIGHT, 117f, 2f, YuvSampler.SAMPLE_BILINEAR);
+        sampler.setTransform(WIDTH, HEIGHT, IDENTITY);
+        final ByteBuffer out = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 3);
+        assertTrue(sampler.sampleNv21(nv21, out));
+        assertEquals(0, out.position());
+        for (int i = 0; i < argb.length; i++) {
+            assertEquals((argb[i] >> 16) & 0xFF, out.get(i * 3) & 0xFF);
+            assertEquals((argb[i] >> 8) & 0xFF, out.get(i * 3 + 1) & 0xFF);
+            assertEquals(argb[i] & 0xFF, out.get(i * 3 + 2) & 0xFF);
+        }
+    }
+
+    @Test
+    public void sampleNv21_skipsWithoutTransform() throws Exception {
+        final YuvSampler sampler = new YuvSampler(WIDTH, HEIGHT, 0f, 1f, YuvSampler.SAMPLE_NEAREST);
+        assertFalse(sampler.hasTransform());
+        final float[] out = new float[WIDTH * HEIGHT * 3];
+        Arrays.fill(out, 7f);
+        assertFalse(sampler.sampleNv21(makeNv21(), out));
+        assertEquals(7f, out[0], 0f);
+        assertFalse(sampler.sampleNv21(makeNv21(), ByteBuffer.allocate(WIDTH * HEIGHT * 3)));
+    }
+
+    // ------------------------------------------------------------------------
+
+    private static byte[] makeNv21() {
+        return makeNv21(WIDTH, HEIGHT);
+    }
+
+    private static byte[] makeNv21(int pWidth, int pHeight) {
+        final byte[] nv21 = new byte[YuvConverter.getNv21BufferSize(pWidth, pHeight)];
+        for (int i = 0; i < pWidth * pHeight; i++) {
+            nv21[i] = (byte) ((i * 37 + 11) % 256);
+        }
+        for (int i = pWidth * pHeight; i < nv21.length; i++) {
+            nv21[i] = (byte) ((i * 53 + 7) % 256);
+        }
+        return nv21;
+    }
+
+    private static float[] toFloats(int[] pArgb, float pMean, float pStd) {
+        final float[] out = new float[pArgb.length * 3];
+        for (int i = 0; i < pArgb.length; i++) {
+            out[i * 3] = (((pArgb[i] >> 16) & 0xFF) - pMean) / pStd;
+            out[i * 3 + 1] = (((pArgb[i] >> 8) & 0xFF) - pMean) / pStd;
+            out[i * 3 + 2] = ((pArgb[i] & 0xFF) - pMean) / pStd;
+        }
+        return out;
+    }
+}
@@ -0,0 +1,139 @@
+package com.concreterose.tfclassifywhaaat;
+
+import org.junit.Test;
+import org.tensorflow.demo.Classifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drive the pipeline with a fake classifier: ordering, backpressure, run
+ * failures and close.
+ */
+public class ClassifierPipelineTest {
+    private final static long WAIT_MSECS = 5000;
+
+    @Test
+    public void submit_deliversInOrder() throws Exception {
+        final int images = 50;
+        final Recorder recorder = new Recorder(images);
+        final ClassifierPipeline pipeline = new ClassifierPipeline.Builder(new FakeClassifier(1, 3))
+                .setNumSlots(3)
+                .setListener(recorder)
+                .build();
+        for (int i = 0; i < images; i++) {
+            assertEquals(i, pipeline.submit(null));
+        }
+        assertTrue(recorder.mDone.await(WAIT_MSECS, TimeUnit.MILLISECONDS));
+        pipeline.close();
+
+        synchronized (recorder) {
+            for (int i = 0; i < images; i++) {
+                assertEquals(i, (long) recorder.mSequences.get(i));
+                // Each result belongs to the image prepared for that sequence.
+                assertEquals(i, (int) recorder.mClasses.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void submit_blocksWhileSlotsBusy() throws Exception {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final FakeClassifier classifier = new FakeClassifier(2, 0);
+        classifier.setGate(gate);
+        final Recorder recorder = new Recorder(3);
+        final ClassifierPipeline pipeline = new ClassifierPipeline.Builder(classifier)
+                .setNumSlots(2)
+                .setListener(recorder)
+                .build();
+
+        // Both slots taken, one running and one waiting to run.
+        assertEquals(0L, pipeline.submit(null));
+        assertEquals(1L, pipeline.submit(null));
+
+        final AtomicLong third = new AtomicLong(Long.MIN_VALUE);
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                third.set(pipeline.submit(null));
+            }
+        });
+        producer.start();
+        producer.join(200L);
+        assertTrue(producer.isAlive());
+        assertEquals(Long.MIN_VALUE, third.get());
+
+        gate.countDown();
+        producer.join(WAIT_MSECS);
+        assertEquals(2L, third.get());
+        assertTrue(recorder.mDone.await(WAIT_MSECS, TimeUnit.MILLISECONDS));
+        pipeline.close();
+    }
+
+    @Test
+    public void runFailure_deliversEmptyResults() throws Exception {
+        final FakeClassifier classifier = new FakeClassifier(3, 0);
+        classifier.setFailImage(1);
+        final Recorder recorder = new Recorder(3);
+        final ClassifierPipeline pipeline = new ClassifierPipeline.Builder(classifier)
+                .setListener(recorder)
+                .build();
+        for (int i = 0; i < 3; i++) {
+            pipeline.submit(null);
+        }
+        assertTrue(recorder.mDone.await(WAIT_MSECS, TimeUnit.MILLISECONDS));
+        pipeline.close();
+
+        synchronized (recorder) {
+            assertEquals(1, (int) recorder.mSizes.get(0));
+            assertEquals(0, (int) recorder.mSizes.get(1));
+            assertEquals(1, (int) recorder.mSizes.get(2));
+        }
+    }
+
+    @Test
+    public void close_finishesQueuedThenClosesClassifier() throws Exception {
+        final FakeClassifier classifier = new FakeClassifier(4, 2);
+        final Recorder recorder = new Recorder(2);
+        final ClassifierPipeline pipeline = new ClassifierPipeline.Builder(classifier)
+                .setListener(recorder)
+                .build();
+        pipeline.submit(null);
+        pipeline.submit(null);
+        pipeline.close();
+        assertEquals(-1L, pipeline.submit(null));
+
+        assertTrue(recorder.mDone.await(WAIT_MSECS, TimeUnit.MILLISECONDS));
+        final long deadline = System.currentTimeMillis() + WAIT_MSECS;
+        while (classifier.getCloseCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(1, classifier.getCloseCount());
+    }
+
+    // ------------------------------------------------------------------------
+
+    private final static class Recorder implements ClassifierPipeline.Listener {
+        private final List<Long> mSequences = new ArrayList<>();
+        private final List<Integer> mClasses = new ArrayList<>();
+        private final List<Integer> mSizes = new ArrayList<>();
+        private final CountDownLatch mDone;
+
+        private Recorder(int pExpected) {
+            mDone = new CountDownLatch(pExpected);
+        }
+
+        @Override
+        public synchronized void onResults(long pSequence, Classifier.Results pResults) {
+            mSequences.add(pSequence);
+            mClasses.add(pResults.size() > 0 ? pResults.getClassIndex(0) : -1);
+            mSizes.add(pResults.size());
+            mDone.countDown();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.concreterose.tfclassifywhaaat;
+
+import android.graphics.Bitmap;
+
+import org.junit.Test;
+import org.tensorflow.demo.Classifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drive the pool with fake classifiers: ordering, backpressure, close and
+ * sessions that fail to start.
+ */
+public class ClassifierPoolTest {
+    private final static long WAIT_MSECS = 5000;
+
+    @Test
+    public void submit_deliversInOrderUnderRandomLatency() throws Exception {
+        final int images = 100;
+        final Recorder recorder = new Recorder(images);
+        final ClassifierPool pool = new ClassifierPool.Builder(new Factory(5, null))
+                .setNumSessions(3)
+                .setListener(recorder)
+                .build();
+
+        int submitted = 0;
+        while (submitted < images) {
+            if (pool.submit(null) >= 0) {
+                submitted++;
+            } else {
+                Thread.sleep(1L);
+            }
+        }
+        assertTrue(recorder.mDone.await(WAIT_MSECS, TimeUnit.MILLISECONDS));
+        pool.close();
+
+        synchronized (recorder) {
+            for (int i = 0; i < images; i++) {
+                assertEquals(i, (long) recorder.mSequences.get(i));
+                assertEquals(1, (int) recorder.mSizes.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void submit_dropsWhenFull() throws Exception {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final Factory factory = new Factory(0, gate);
+        final Recorder recorder = new Recorder(2);
+        final ClassifierPool pool = new ClassifierPool.Builder(factory)
+                .setNumSessions(1)
+                .setMaxPending(2)
+                .setListener(recorder)
+                .build();
+
+        assertEquals(0L, pool.submit(null));
+        assertEquals(1L, pool.submit(null));
+        assertEquals(-1L, pool.submit(null));
+
+        gate.countDown();
+        assertTrue(recorder.mDone.await(WAIT_MSECS, TimeUnit.MILLISECONDS));
+        pool.close();
+    }
+
+    @Test
+    public void close_finishesQueuedThenClosesSessions() throws Exception {
+        final Factory factory = new Factory(2, null);
+        final Recorder recorder = new Recorder(4);
+        final ClassifierPool pool = new ClassifierPool.Builder(factory)
+                .setNumSessions(2)
+                .setMaxPending(4)
+                .setListener(recorder)
+                .build();
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, pool.submit(null));
+        }
+        pool.close();
+        assertEquals(-1L, pool.submit(null));
+
+        assertTrue(recorder.mDone.await(WAIT_MSECS, TimeUnit.MILLISECONDS));
+        final long deadline = System.currentTimeMillis() + WAIT_MSECS;
+        while (factory.getClosed() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(2, factory.getClosed());
+    }
+
+    @Test
+    public void submit_failsOnceEverySessionFailed() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Recorder recorder = new Recorder(1);
+        final ClassifierPool pool = new ClassifierPool.Builder(new ClassifierPool.Factory() {
+            @Override
+            public Classifier create(int pIndex) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IllegalStateException("no model");
+            }
+        })
+                .setNumSessions(2)
+                .setListener(recorder)
+                .build();
+
+        // Queued before the sessions fail, still delivered, with no results.
+        assertEquals(0L, pool.submit(null));
+        release.countDown();
+        assertTrue(recorder.mDone.await(WAIT_MSECS, TimeUnit.MILLISECONDS));
+        synchronized (recorder) {
+            assertEquals(0L, (long) recorder.mSequences.get(0));
+            assertEquals(0, (int) recorder.mSizes.get(0));
+        }
+
+        final long deadline = System.currentTimeMillis() + WAIT_MSECS;
+        while (pool.getLiveSessions() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(0, pool.getLiveSessions());
+        assertEquals(-1L, pool.submit(null));
+        pool.close();
+    }
+
+    @Test
+    public void submit_survivesOneFailedSession() throws Exception {
+        final FakeClassifier working = new FakeClassifier(3, 1);
+        final Recorder recorder = new Recorder(3);
+        final ClassifierPool pool = new ClassifierPool.Builder(new ClassifierPool.Factory() {
+            @Override
+            public Classifier create(int pIndex) {
+                if (pIndex == 0) {
+                    throw new IllegalStateException("no model");
+                }
+                return working;
+            }
+        })
+                .setNumSessions(2)
+                .setListener(recorder)
+                .build();
+
+        for (int i = 0; i < 3; i++) {
+            while (pool.submit(null) < 0) {
+                Thread.sleep(1L);
+            }
+        }
+        assertTrue(recorder.mDone.await(WAIT_MSECS, TimeUnit.MILLISECONDS));
+        assertEquals(1, pool.getLiveSessions());
+        pool.close();
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * One fake per session, optionally all held on a gate.
+     */
+    private final static class Factory implements ClassifierPool.Factory {
+        private final int mMaxLatencyMsecs;
+        private final CountDownLatch mGate;
+        private final List<FakeClassifier> mCreated = new ArrayList<>();
+
+        private Factory(int pMaxLatencyMsecs, CountDownLatch pGate) {
+            mMaxLatencyMsecs = pMaxLatencyMsecs;
+            mGate = pGate;
+        }
+
+        @Override
+        public synchronized Classifier create(int pIndex) {
+            final FakeClassifier classifier = new FakeClassifier(pIndex, mMaxLatencyMsecs);
+            classifier.setGate(mGate);
+            mCreated.add(classifier);
+            return classifier;
+        }
+
+        private synchronized int getClosed() {
+            int closed = 0;
+            for (FakeClassifier classifier : mCreated) {
+                closed += classifier.getCloseCount();
+            }
+            return closed;
+        }
+    }
+
+    private final static class Recorder implements ClassifierPool.Listener {
+        private final List<Long> mSequences = new ArrayList<>();
+        private final List<Integer> mSizes = new ArrayList<>();
+        private final CountDownLatch mDone;
+
+        private Recorder(int pExpected) {
+            mDone = new CountDownLatch(pExpected);
+        }
+
+        @Override
+        public synchronized void onResults(Bitmap pBitmap, long pSequence, Classifier.Results pResults) {
+            mSequences.add(pSequence);
+            mSizes.add(pResults.size());
+            mDone.countDown();
+        }
+    }
+}
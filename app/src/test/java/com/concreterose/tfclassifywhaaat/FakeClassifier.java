@@ -0,0 +1,176 @@
+package com.concreterose.tfclassifywhaaat;
+
+import android.graphics.Bitmap;
+
+import org.tensorflow.demo.PipelinedClassifier;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Classifier stand-in for the pool and pipeline tests, no model and no
+ * pixels (bitmaps may be null).
+ *
+ * Each prepared or recognized image is numbered in call order, and its one
+ * result carries that number as the class index, so a test can match
+ * results to submissions.  Runs sleep a random time to shuffle completion
+ * order, and can wait on a gate or fail for a chosen image.
+ */
+final class FakeClassifier implements PipelinedClassifier {
+    private final Random mRandom;
+    private final int mMaxLatencyMsecs;
+    private final AtomicInteger mCalls = new AtomicInteger();
+    private volatile CountDownLatch mGate = null;
+    private volatile int mFailImage = -1;
+    private volatile int mCloseCount = 0;
+
+    private int[] mSlotImages = new int[1];
+
+    FakeClassifier(long pSeed, int pMaxLatencyMsecs) {
+        mRandom = new Random(pSeed);
+        mMaxLatencyMsecs = pMaxLatencyMsecs;
+    }
+
+    /**
+     * Hold every run until the gate opens.
+     */
+    void setGate(CountDownLatch pGate) {
+        mGate = pGate;
+    }
+
+    /**
+     * Throw from the run of one image.
+     */
+    void setFailImage(int pImage) {
+        mFailImage = pImage;
+    }
+
+    int getCloseCount() {
+        return mCloseCount;
+    }
+
+    private void work(int pImage) {
+        try {
+            final CountDownLatch gate = mGate;
+            if (gate != null) {
+                gate.await();
+            }
+            final int latency;
+            synchronized (mRandom) {
+                latency = mMaxLatencyMsecs > 0 ? mRandom.nextInt(mMaxLatencyMsecs + 1) : 0;
+            }
+            Thread.sleep(latency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (pImage == mFailImage) {
+            throw new IllegalStateException("image " + pImage);
+        }
+    }
+
+    private static void fill(int pImage, Results pResults) {
+        pResults.clear();
+        pResults.add(pImage, String.valueOf(pImage), "image", 1f);
+    }
+
+    // ------------------------------------------------------------------------
+
+    @Override
+    public void recognizeImage(Bitmap pBitmap, Results pResults) {
+        final int image = mCalls.getAndIncrement();
+        work(image);
+        fill(image, pResults);
+    }
+
+    @Override
+    public void setNumSlots(int pNumSlots) {
+        mSlotImages = new int[pNumSlots];
+    }
+
+    @Override
+    public void prepareSlot(int pSlot, Bitmap pBitmap) {
+        mSlotImages[pSlot] = mCalls.getAndIncrement();
+    }
+
+    @Override
+    public void runSlot(int pSlot) {
+        work(mSlotImages[pSlot]);
+    }
+
+    @Override
+    public void collectSlot(int pSlot, Results pResults) {
+        fill(mSlotImages[pSlot], pResults);
+    }
+
+    @Override
+    public void setMaxResults(int pMaxResults) {
+    }
+
+    @Override
+    public void close() {
+        mCloseCount++;
+    }
+
+    // Not used by the pool or the pipeline.
+
+    @Override
+    public List<Recognition> recognizeImage(Bitmap pBitmap) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<List<Recognition>> recognizeImages(List<Bitmap> pBitmaps) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<Recognition> recognizeInput(float[] pInput) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void recognizeInput(float[] pInput, Results pResults) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void recognizeInput(FloatBuffer pInput, Results pResults) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void recognizeInput(ByteBuffer pInput, Results pResults) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isQuantized() {
+        return false;
+    }
+
+    @Override
+    public void setOutputQuantization(float pScale, int pZeroPoint) {
+    }
+
+    @Override
+    public void setThreshold(float pThreshold) {
+    }
+
+    @Override
+    public boolean enableGraphTopK(int pK) {
+        return false;
+    }
+
+    @Override
+    public void enableStatLogging(boolean pDebug) {
+    }
+
+    @Override
+    public String getStatString() {
+        return "";
+    }
+}